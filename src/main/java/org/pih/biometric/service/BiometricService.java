@@ -10,8 +10,11 @@
 package org.pih.biometric.service;
 
 import org.apache.catalina.connector.Connector;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.api.VirtualThreads;
 import org.pih.biometric.service.model.BiometricConfig;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -21,6 +24,8 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
@@ -37,6 +42,7 @@ import java.lang.management.RuntimeMXBean;
  */
 @SpringBootApplication
 @EnableConfigurationProperties
+@EnableScheduling
 @Configuration
 public class BiometricService {
 
@@ -49,11 +55,15 @@ public class BiometricService {
     }
 
     /**
-     * Enable an AJP connector if specified
+     * Enable an AJP connector if specified, and process requests on virtual threads if enabled
      */
     @Bean
     public EmbeddedServletContainerFactory servletContainer() {
         TomcatEmbeddedServletContainerFactory tomcat = new TomcatEmbeddedServletContainerFactory();
+        boolean virtualThreads = getConfig().isVirtualThreadsEnabled() && VirtualThreads.isAvailable();
+        if (virtualThreads) {
+            tomcat.addConnectorCustomizers(BiometricService::useVirtualThreads);
+        }
         if (getConfig().getAjpPort() != null) {
             Connector ajpConnector = new Connector("AJP/1.3");
             ajpConnector.setProtocol("AJP/1.3");
@@ -61,12 +71,37 @@ public class BiometricService {
             ajpConnector.setSecure(false);
             ajpConnector.setAllowTrace(false);
             ajpConnector.setScheme("http");
+            if (virtualThreads) {
+                useVirtualThreads(ajpConnector);
+            }
             tomcat.addAdditionalTomcatConnectors(ajpConnector);
         }
 
         return tomcat;
     }
 
+    /**
+     * Runs scheduled background jobs on a pool of scheduledJobThreads threads, rather than the single thread used by
+     * default, so that a long-running job such as compaction or purging does not delay snapshots or replication
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(Math.max(1, getConfig().getScheduledJobThreads()));
+        scheduler.setThreadNamePrefix("scheduled-");
+        return scheduler;
+    }
+
+    /**
+     * Processes the requests received by the given connector on a virtual thread each, rather than a pool of platform threads
+     */
+    private static void useVirtualThreads(Connector connector) {
+        ProtocolHandler protocolHandler = connector.getProtocolHandler();
+        if (protocolHandler instanceof AbstractProtocol) {
+            ((AbstractProtocol<?>) protocolHandler).setExecutor(VirtualThreads.newThreadPerTaskExecutor("http-" + connector.getPort() + "-"));
+        }
+    }
+
     /**
      * Run the application
      */
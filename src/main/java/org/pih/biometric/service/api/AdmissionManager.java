@@ -0,0 +1,279 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.DeadlineExceededException;
+import org.pih.biometric.service.exception.ServiceOverloadedException;
+import org.pih.biometric.service.exception.TooManyRequestsException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.OperationStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Component that limits the number of operations that use the matching engine at once, both in total and for each type
+ * of operation.  Operations that cannot start immediately wait in a bounded queue, and are started in order of priority
+ * (verification first, identification after other requests, and background maintenance last) and then of arrival.
+ * An operation is rejected immediately if the queue is full, or once it has waited for the configured time without
+ * starting, so that the system sheds load rather than creating an unbounded number of clients and license requests.
+ * Waiting uses locks rather than monitors, so that waiting virtual threads release their carriers.  Admitted work runs
+ * on the calling thread, and is responsible for confining its own native calls, see NativeCallExecutor.
+ */
+@Component
+public class AdmissionManager {
+
+    /**
+     * The types of operation, in order of priority.  Maintenance operations are background work that should only
+     * proceed when no requests are waiting
+     */
+    public enum Operation {
+        VERIFY, READ, ENROLL, IDENTIFY, MAINTENANCE
+    }
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Waiter> waiting = new TreeSet<>(Comparator.comparing((Waiter w) -> w.operation).thenComparingLong(w -> w.sequence));
+    private final Map<Operation, OperationState> states = new EnumMap<>(Operation.class);
+    private int totalActive = 0;
+    private long nextSequence = 0;
+
+    public AdmissionManager() {
+        for (Operation operation : Operation.values()) {
+            states.put(operation, new OperationState());
+        }
+    }
+
+    /**
+     * @return the result of the given work, once the operation has been admitted
+     * @throws TooManyRequestsException if too many operations are already waiting
+     * @throws ServiceOverloadedException if the operation could not be started within the configured time
+     * @throws DeadlineExceededException if the deadline of the request passes before the operation can start
+     */
+    public <T> T execute(Operation operation, Supplier<T> work) {
+        RequestDeadline.check(operation.name());
+        if (!config.isAdmissionControlEnabled()) {
+            return work.get();
+        }
+        admit(operation);
+        try {
+            RequestDeadline.check(operation.name()); // Skip the work if the request expired while waiting
+            return work.get();
+        }
+        finally {
+            release(operation);
+        }
+    }
+
+    /**
+     * Performs the given work, once the operation has been admitted
+     */
+    public void execute(Operation operation, Runnable work) {
+        execute(operation, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return the number of operations waiting to be admitted
+     */
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current state of admission for each type of operation
+     */
+    public List<OperationStats> getStats() {
+        List<OperationStats> ret = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Operation operation : Operation.values()) {
+                OperationState state = states.get(operation);
+                OperationStats stats = new OperationStats();
+                stats.setOperation(operation.name());
+                stats.setLimit(getLimit(operation));
+                stats.setActive(state.active);
+                stats.setWaiting(state.waiting);
+                stats.setAdmitted(state.admitted);
+                stats.setRejected(state.rejected);
+                stats.setTimedOut(state.timedOut);
+                ret.add(stats);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return ret;
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    private void admit(Operation operation) {
+        lock.lock();
+        try {
+            OperationState state = states.get(operation);
+            if (waiting.isEmpty() && canStart(operation)) {
+                start(operation);
+                return;
+            }
+            if (waiting.size() >= config.getAdmissionQueueSize()) {
+                state.rejected++;
+                log.debug("Rejecting " + operation + " operation, " + waiting.size() + " operations are waiting");
+                throw new TooManyRequestsException(operation.name(), config.getAdmissionRetryAfterSeconds());
+            }
+
+            Waiter waiter = new Waiter(operation, nextSequence++, lock.newCondition());
+            waiting.add(waiter);
+            state.waiting++;
+            dispatch(); // Operations waiting ahead of this one may be held only by the limits for their own type
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(config.getAdmissionQueueTimeoutMs());
+            Long deadlineMs = RequestDeadline.getRemainingMs();
+            boolean limitedByDeadline = (deadlineMs != null && deadlineMs < config.getAdmissionQueueTimeoutMs());
+            if (limitedByDeadline) {
+                remainingNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+            }
+            try {
+                while (!waiter.admitted) {
+                    if (remainingNanos <= 0) {
+                        waiting.remove(waiter);
+                        state.waiting--;
+                        state.timedOut++;
+                        if (limitedByDeadline) {
+                            log.debug("Rejecting " + operation + " operation, request deadline passed while waiting");
+                            throw new DeadlineExceededException(operation.name());
+                        }
+                        log.debug("Rejecting " + operation + " operation, unable to start within " + config.getAdmissionQueueTimeoutMs() + "ms");
+                        throw new ServiceOverloadedException(operation.name(), config.getAdmissionRetryAfterSeconds());
+                    }
+                    remainingNanos = waiter.condition.awaitNanos(remainingNanos);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (waiter.admitted) {
+                    releaseWhileLocked(operation);
+                }
+                else {
+                    waiting.remove(waiter);
+                    state.waiting--;
+                }
+                throw new BiometricServiceException("Interrupted while waiting to start " + operation + " operation", e);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Operation operation) {
+        lock.lock();
+        try {
+            releaseWhileLocked(operation);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseWhileLocked(Operation operation) {
+        states.get(operation).active--;
+        totalActive--;
+        dispatch();
+    }
+
+    /**
+     * Starts as many waiting operations as the limits allow, in order of priority
+     */
+    private void dispatch() {
+        Iterator<Waiter> iterator = waiting.iterator();
+        while (iterator.hasNext() && totalActive < getTotalLimit()) {
+            Waiter waiter = iterator.next();
+            if (canStart(waiter.operation)) {
+                iterator.remove();
+                states.get(waiter.operation).waiting--;
+                start(waiter.operation);
+                waiter.admitted = true;
+                waiter.condition.signal();
+            }
+        }
+    }
+
+    private boolean canStart(Operation operation) {
+        return totalActive < getTotalLimit() && states.get(operation).active < getLimit(operation);
+    }
+
+    private void start(Operation operation) {
+        OperationState state = states.get(operation);
+        state.active++;
+        state.admitted++;
+        totalActive++;
+    }
+
+    private int getTotalLimit() {
+        int limit = config.getMaxConcurrentOperations();
+        return (limit > 0 ? limit : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return the configured limit for the given operation, which defaults to the total limit
+     */
+    private int getLimit(Operation operation) {
+        Integer limit = config.getOperationLimits().get(operation.name().toLowerCase());
+        return (limit != null && limit > 0 ? Math.min(limit, getTotalLimit()) : getTotalLimit());
+    }
+
+    private static class OperationState {
+        private int active;
+        private int waiting;
+        private long admitted;
+        private long rejected;
+        private long timedOut;
+    }
+
+    private static class Waiter {
+
+        private final Operation operation;
+        private final long sequence;
+        private final Condition condition;
+        private boolean admitted = false;
+
+        private Waiter(Operation operation, long sequence, Condition condition) {
+            this.operation = operation;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+    }
+}
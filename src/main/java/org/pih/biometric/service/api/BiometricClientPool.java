@@ -0,0 +1,343 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import com.neurotec.biometrics.NBiometricOperation;
+import com.neurotec.biometrics.NBiometricStatus;
+import com.neurotec.biometrics.NBiometricTask;
+import com.neurotec.biometrics.NMatchingSpeed;
+import com.neurotec.biometrics.NTemplateSize;
+import com.neurotec.biometrics.client.NBiometricClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.InvalidRequestException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PreDestroy;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Component that keeps a warm set of biometric clients for each matching profile, so that clients (and their
+ * database connections) are reused across requests rather than being created and configured for every operation.
+ *
+ * A client keeps its own view of the database, which is only kept current for changes made through that client.
+ * Every change made through any client therefore advances the pool generation.  An idle client from an earlier
+ * generation is kept, configured, and only reconnected to the database when it is next borrowed, so a change does not
+ * throw away the warm clients of every profile, and clients of profiles that are rarely used are not refreshed until needed.
+ * Clients borrowed before the pool is invalidated are disposed of rather than reused.
+ *
+ * Scratch clients, which have no database connection and hold only the subjects enrolled in them for a single operation,
+ * are pooled separately for each profile, and are emptied as they are released.
+ */
+@Component
+public class BiometricClientPool {
+
+    public static final String DEFAULT_PROFILE = "default";
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricLicenseManager licenseManager; // Ensures clients are disposed of before the Neurotechnology core is shut down
+
+    @Autowired
+    NativeResourceTracker resourceTracker;
+
+    private final Map<String, BlockingDeque<PooledClient>> idleClients = new ConcurrentHashMap<>();
+    private final Map<NBiometricClient, PooledClient> borrowedClients = new ConcurrentHashMap<>();
+    private final Map<String, BlockingDeque<NBiometricClient>> idleScratchClients = new ConcurrentHashMap<>();
+    private final Map<NBiometricClient, String> borrowedScratchClients = new ConcurrentHashMap<>();
+    private long generation = 0;
+    private long minimumGeneration = 0;
+    private Integer defaultMaximalResultCount;
+    private Integer defaultTimeout;
+    private volatile String lastError;
+
+    @PreDestroy
+    public void shutdown() {
+        invalidate();
+    }
+
+    /**
+     * Disposes of all idle clients, and ensures that any clients currently borrowed are not reused.
+     * This must be called if the underlying database is replaced
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation++;
+            minimumGeneration = generation;
+        }
+        for (BlockingDeque<PooledClient> clients : idleClients.values()) {
+            PooledClient pooled;
+            while ((pooled = clients.poll()) != null) {
+                resourceTracker.dispose(pooled.client);
+            }
+        }
+        for (BlockingDeque<NBiometricClient> clients : idleScratchClients.values()) {
+            NBiometricClient client;
+            while ((client = clients.poll()) != null) {
+                resourceTracker.dispose(client);
+            }
+        }
+    }
+
+    /**
+     * @return a client configured for the given profile, or for the default profile if none is given
+     */
+    public NBiometricClient borrow(String profileName) {
+        String profile = StringUtils.isEmpty(profileName) ? DEFAULT_PROFILE : profileName;
+        BiometricConfig.MatchingProfile matchingProfile = getProfile(profile);
+
+        long currentGeneration = getGeneration();
+        PooledClient pooled = getIdleClients(profile).pollFirst();
+        if (pooled != null && pooled.generation != currentGeneration) {
+            try {
+                log.debug("Refreshing client for profile " + profile + " from an earlier generation");
+                pooled.client.setDatabaseConnectionToSQLite(config.getSqliteDatabasePath());
+                pooled.generation = currentGeneration;
+            }
+            catch (RuntimeException e) {
+                log.warn("Unable to refresh client for profile " + profile + ", creating a new client", e);
+                resourceTracker.dispose(pooled.client);
+                pooled = null;
+            }
+        }
+        if (pooled == null) {
+            log.debug("Creating new client for profile " + profile);
+            pooled = new PooledClient(profile, createClient(matchingProfile, true), currentGeneration);
+        }
+        lastError = null;
+        borrowedClients.put(pooled.client, pooled);
+        return pooled.client;
+    }
+
+    /**
+     * Returns the given client to the pool, reset to its profile configuration
+     * @param modified true if the client was used to change the enrolled subjects
+     */
+    public void release(NBiometricClient client, boolean modified) {
+        if (client == null) {
+            return;
+        }
+        PooledClient pooled = borrowedClients.remove(client);
+        if (pooled == null) {
+            resourceTracker.dispose(client);
+            return;
+        }
+        boolean invalidated;
+        synchronized (this) {
+            if (modified) {
+                // This client saw its own change, so it remains current if it was current beforehand
+                if (pooled.generation == generation) {
+                    pooled.generation = generation + 1;
+                }
+                generation++;
+            }
+            invalidated = pooled.generation < minimumGeneration;
+        }
+        BlockingDeque<PooledClient> idle = getIdleClients(pooled.profile);
+        if (invalidated || idle.size() >= config.getClientPoolSize()) {
+            resourceTracker.dispose(client);
+            return;
+        }
+        configure(client, getProfile(pooled.profile));
+        idle.offerFirst(pooled);
+    }
+
+    /**
+     * @return a client configured for the given profile, or for the default profile if none is given, with no database
+     * connection, so that it holds only the subjects enrolled in it, such as the candidates for a single identification
+     */
+    public NBiometricClient borrowScratch(String profileName) {
+        String profile = StringUtils.isEmpty(profileName) ? DEFAULT_PROFILE : profileName;
+        BiometricConfig.MatchingProfile matchingProfile = getProfile(profile);
+        NBiometricClient client = getIdleScratchClients(profile).pollFirst();
+        if (client == null) {
+            log.debug("Creating new scratch client for profile " + profile);
+            client = createClient(matchingProfile, false);
+        }
+        borrowedScratchClients.put(client, profile);
+        return client;
+    }
+
+    /**
+     * Removes all subjects from the given scratch client, and returns it to the pool, reset to its profile configuration
+     */
+    public void releaseScratch(NBiometricClient client) {
+        if (client == null) {
+            return;
+        }
+        String profile = borrowedScratchClients.remove(client);
+        BlockingDeque<NBiometricClient> idle = (profile == null ? null : getIdleScratchClients(profile));
+        if (idle == null || idle.size() >= config.getClientPoolSize()) {
+            resourceTracker.dispose(client);
+            return;
+        }
+        NBiometricTask task = null;
+        try {
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.CLEAR), null));
+            client.performTask(task);
+            if (task.getStatus() != NBiometricStatus.OK) {
+                log.warn("Unable to clear scratch client. Status: " + task.getStatus());
+                resourceTracker.dispose(client);
+                return;
+            }
+        }
+        catch (RuntimeException e) {
+            log.warn("Unable to clear scratch client", e);
+            resourceTracker.dispose(client);
+            return;
+        }
+        finally {
+            resourceTracker.dispose(task);
+        }
+        configure(client, getProfile(profile));
+        idle.offerFirst(client);
+    }
+
+    /**
+     * @return a new client with no database connection, owned by the caller rather than the pool, for holding a
+     * partition of the gallery across searches using any profile.  It uses the matching speed of the default profile,
+     * and the lowest matching threshold of any profile, so that each search can apply the threshold of its own profile
+     */
+    public NBiometricClient createPartitionClient() {
+        BiometricConfig.MatchingProfile profile = getProfile(DEFAULT_PROFILE);
+        for (String name : config.getMatchingProfiles().keySet()) {
+            profile.setMatchingThreshold(Math.min(profile.getMatchingThreshold(), getProfile(name).getMatchingThreshold()));
+        }
+        return createClient(profile, false);
+    }
+
+    /**
+     * @return the named profile, or the default profile if none is given, with any settings it does not specify taken
+     * from the top-level configuration
+     */
+    public BiometricConfig.MatchingProfile getMatchingProfile(String profileName) {
+        return getProfile(StringUtils.isEmpty(profileName) ? DEFAULT_PROFILE : profileName);
+    }
+
+    /**
+     * Creates idle clients for the given profile, up to the configured pool size, so that the first requests using the
+     * profile do not need to create and configure clients of their own
+     */
+    public void fill(String profileName) {
+        String profile = StringUtils.isEmpty(profileName) ? DEFAULT_PROFILE : profileName;
+        BlockingDeque<PooledClient> idle = getIdleClients(profile);
+        while (idle.size() < config.getClientPoolSize()) {
+            log.debug("Creating idle client for profile " + profile);
+            idle.offerLast(new PooledClient(profile, createClient(getProfile(profile), true), getGeneration()));
+        }
+    }
+
+    /**
+     * @return the reason the last attempt to create a client failed, or null if a client has since been created or
+     * borrowed successfully, as the pool can then still serve requests
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return the number of idle clients held for the given profile
+     */
+    public int getIdleCount(String profile) {
+        return getIdleClients(profile).size();
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    private BlockingDeque<PooledClient> getIdleClients(String profile) {
+        return idleClients.computeIfAbsent(profile, p -> new LinkedBlockingDeque<>());
+    }
+
+    private BlockingDeque<NBiometricClient> getIdleScratchClients(String profile) {
+        return idleScratchClients.computeIfAbsent(profile, p -> new LinkedBlockingDeque<>());
+    }
+
+    /**
+     * @return the named profile, with any settings it does not specify taken from the top-level configuration
+     */
+    private BiometricConfig.MatchingProfile getProfile(String profile) {
+        BiometricConfig.MatchingProfile configured = config.getMatchingProfiles().get(profile);
+        if (configured == null && !DEFAULT_PROFILE.equals(profile)) {
+            throw new InvalidRequestException("Unknown matching profile: " + profile);
+        }
+        BiometricConfig.MatchingProfile ret = new BiometricConfig.MatchingProfile();
+        ret.setMatchingSpeed(configured != null && configured.getMatchingSpeed() != null ? configured.getMatchingSpeed() : config.getMatchingSpeed());
+        ret.setMatchingThreshold(configured != null && configured.getMatchingThreshold() != null ? configured.getMatchingThreshold() : config.getMatchingThreshold());
+        ret.setTemplateSize(configured != null && configured.getTemplateSize() != null ? configured.getTemplateSize() : config.getTemplateSize());
+        return ret;
+    }
+
+    /**
+     * @return Biometric client, configured with appropriate properties from the given profile, and connected to the
+     * database if requested
+     */
+    private NBiometricClient createClient(BiometricConfig.MatchingProfile profile, boolean connected) {
+        NBiometricClient client;
+        try {
+            client = resourceTracker.trackRetained(new NBiometricClient());
+            if (connected) {
+                client.setDatabaseConnectionToSQLite(config.getSqliteDatabasePath());
+            }
+            lastError = null;
+        }
+        catch (RuntimeException e) {
+            lastError = e.getMessage();
+            throw e;
+        }
+        synchronized (this) {
+            if (defaultMaximalResultCount == null) {
+                defaultMaximalResultCount = client.getMatchingMaximalResultCount();
+                defaultTimeout = client.getTimeout();
+            }
+        }
+        configure(client, profile);
+        return client;
+    }
+
+    /**
+     * Applies the given profile to the client, undoing any per-request settings applied while it was borrowed
+     */
+    private void configure(NBiometricClient client, BiometricConfig.MatchingProfile profile) {
+        client.setMatchingThreshold(profile.getMatchingThreshold());
+        client.setFingersMatchingSpeed(NMatchingSpeed.valueOf(profile.getMatchingSpeed().name()));
+        client.setFingersTemplateSize(NTemplateSize.valueOf(profile.getTemplateSize().name()));
+        client.setMatchingMaximalResultCount(defaultMaximalResultCount);
+        client.setMatchingFirstResultOnly(false);
+        client.setTimeout(defaultTimeout);
+    }
+
+    private static class PooledClient {
+
+        private final String profile;
+        private final NBiometricClient client;
+        private long generation;
+
+        private PooledClient(String profile, NBiometricClient client, long generation) {
+            this.profile = profile;
+            this.client = client;
+            this.generation = generation;
+        }
+    }
+}
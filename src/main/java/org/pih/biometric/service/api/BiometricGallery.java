@@ -0,0 +1,169 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.SubjectChange;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Component that holds the templates of all enrolled subjects in memory, ordered by subjectId.
+ * The gallery is populated on startup from the latest snapshot (or the database), and is kept current
+ * by applying each change as it is recorded in the SubjectChangeLog
+ */
+@Component
+public class BiometricGallery {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private final ConcurrentNavigableMap<String, GalleryEntry> entries = new ConcurrentSkipListMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean loaded = false;
+
+    private volatile long modifiedKnownSince = 0;
+
+    /**
+     * @return true if the gallery is configured to be maintained
+     */
+    public boolean isEnabled() {
+        return config.isMatchingServiceEnabled() && config.isGalleryEnabled();
+    }
+
+    /**
+     * Applies the given change to the gallery
+     */
+    public void apply(SubjectChange change) {
+        if (change.getType() == SubjectChange.Type.DELETE) {
+            if (entries.remove(change.getSubjectId()) != null) {
+                for (Listener listener : listeners) {
+                    listener.removed(change.getSubjectId());
+                }
+            }
+        }
+        else {
+            put(new GalleryEntry(change.getSubjectId(), change.getSequence(), change.getTimestamp(), change.getTemplate()));
+        }
+    }
+
+    /**
+     * Adds or replaces the given entry
+     */
+    public void put(GalleryEntry entry) {
+        entries.put(entry.getSubjectId(), entry);
+        for (Listener listener : listeners) {
+            listener.put(entry);
+        }
+    }
+
+    /**
+     * @return the entry for the given subjectId, or null if the subject is not in the gallery
+     */
+    public GalleryEntry get(String subjectId) {
+        return entries.get(subjectId);
+    }
+
+    /**
+     * @return all entries in the gallery, ordered by subjectId
+     */
+    public Collection<GalleryEntry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * @return a live view of the entries in the gallery with a subjectId after the given subjectId, ordered by subjectId
+     */
+    public Collection<GalleryEntry> getEntriesAfter(String subjectId) {
+        return (subjectId == null ? entries.values() : entries.tailMap(subjectId, false).values());
+    }
+
+    /**
+     * @return the number of subjects in the gallery
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all entries from the gallery and marks it as not loaded
+     */
+    public void clear() {
+        loaded = false;
+        modifiedKnownSince = 0;
+        entries.clear();
+        for (Listener listener : listeners) {
+            listener.cleared();
+        }
+    }
+
+    /**
+     * @return true if the gallery has been fully populated and can be relied upon
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * @return the time from which the modification time of every change is known, or 0 if it is known for all entries.
+     * Entries loaded from the database when no snapshot was available were changed at some unknown time before this
+     */
+    public long getModifiedKnownSince() {
+        return modifiedKnownSince;
+    }
+
+    public void setModifiedKnownSince(long modifiedKnownSince) {
+        this.modifiedKnownSince = modifiedKnownSince;
+    }
+
+    /**
+     * Registers a listener to be notified of every subsequent change to the gallery
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Callback for components that maintain derived data, such as indexes, alongside the gallery
+     */
+    public interface Listener {
+
+        /**
+         * Called after the given entry has been added or replaced
+         */
+        void put(GalleryEntry entry);
+
+        /**
+         * Called after the entry for the given subjectId has been removed
+         */
+        void removed(String subjectId);
+
+        /**
+         * Called after all entries have been removed
+         */
+        void cleared();
+    }
+}
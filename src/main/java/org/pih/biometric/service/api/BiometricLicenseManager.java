@@ -23,6 +23,8 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Component that obtains and releases licenses for particular biometric components
@@ -39,6 +41,9 @@ public class BiometricLicenseManager {
 	@Autowired
     BiometricConfig config;
 
+    private final Map<String, Integer> leases = new HashMap<>();
+    private final Map<String, String> errors = new HashMap<>();
+
     /**
      * On startup, we ensure licenses are appropriately added and the fingerprint server is available
      */
@@ -122,31 +127,71 @@ public class BiometricLicenseManager {
 
     /**
      * Before operations requiring use of the Neurotechnology components, one must obtain a license for the particular component
+     * Licenses are held process-wide, so each component is leased:  the license is only obtained by the first holder,
+     * and only released once the last holder releases it, so that one operation releasing a license does not take it
+     * away from another that is still using it
      */
     protected void obtainLicense(String component) {
-        log.debug("Obtaining license for component: " + component);
-        try {
-            if (!NLicense.obtainComponents("/local", 5000, component)) {
-                throw new BiometricServiceException("Unable to obtain a license for " + component);
+        synchronized (leases) {
+            int holders = leases.getOrDefault(component, 0);
+            if (holders == 0) {
+                log.debug("Obtaining license for component: " + component);
+                try {
+                    if (!NLicense.obtainComponents("/local", 5000, component)) {
+                        errors.put(component, "License not available");
+                        throw new BiometricServiceException("Unable to obtain a license for " + component);
+                    }
+                }
+                catch (IOException e) {
+                    errors.put(component, e.getMessage());
+                    throw new BiometricServiceException("Unable to obtain a license for " + component, e);
+                }
+                errors.remove(component);
+                log.debug("Obtained license for component: " + component);
             }
+            leases.put(component, holders + 1);
         }
-        catch (IOException e) {
-            throw new BiometricServiceException("Unable to obtain a license for " + component, e);
-        }
-        log.debug("Obtained license for component: " + component);
     }
 
     /**
      * After operations requiring use of the Neurotechnology components, one must release the license for the particular component
+     * The license is only released once every holder has released it
      */
     protected void releaseLicense(String component) {
-        log.debug("Releasing license for component: " + component);
-        try {
-            NLicense.releaseComponents(component);
-            log.debug("License released...");
+        synchronized (leases) {
+            int holders = leases.getOrDefault(component, 0);
+            if (holders > 1) {
+                leases.put(component, holders - 1);
+                return;
+            }
+            leases.remove(component);
+            log.debug("Releasing license for component: " + component);
+            try {
+                NLicense.releaseComponents(component);
+                log.debug("License released...");
+            }
+            catch (Exception e) {
+                throw new BiometricServiceException("An error occurred while releasing " + component + " license", e);
+            }
         }
-        catch (Exception e) {
-            throw new BiometricServiceException("An error occurred while releasing " + component + " license", e);
+    }
+
+    /**
+     * @return the reason the license for the given component could not be obtained the last time it was requested,
+     * or null if it was obtained
+     */
+    public String getLastError(String component) {
+        synchronized (leases) {
+            return errors.get(component);
+        }
+    }
+
+    /**
+     * @return the number of holders of the license for the given component
+     */
+    public int getLeaseCount(String component) {
+        synchronized (leases) {
+            return leases.getOrDefault(component, 0);
         }
     }
 }
\ No newline at end of file
@@ -12,30 +12,39 @@ package org.pih.biometric.service.api;
 import com.neurotec.biometrics.NBiometricOperation;
 import com.neurotec.biometrics.NBiometricStatus;
 import com.neurotec.biometrics.NBiometricTask;
+import com.neurotec.biometrics.NFPosition;
 import com.neurotec.biometrics.NFRecord;
 import com.neurotec.biometrics.NFTemplate;
 import com.neurotec.biometrics.NMatchingResult;
-import com.neurotec.biometrics.NMatchingSpeed;
 import com.neurotec.biometrics.NSubject;
 import com.neurotec.biometrics.NTemplate;
-import com.neurotec.biometrics.NTemplateSize;
 import com.neurotec.biometrics.client.NBiometricClient;
-import com.neurotec.biometrics.standards.CBEFFBDBFormatIdentifiers;
-import com.neurotec.biometrics.standards.CBEFFBiometricOrganizations;
-import com.neurotec.biometrics.standards.FMRecord;
 import com.neurotec.io.NBuffer;
 import com.neurotec.lang.NObject;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.DeadlineExceededException;
 import org.pih.biometric.service.exception.DuplicateSubjectException;
+import org.pih.biometric.service.exception.FingerNotFoundException;
+import org.pih.biometric.service.exception.GalleryUnavailableException;
+import org.pih.biometric.service.exception.InvalidRequestException;
+import org.pih.biometric.service.exception.PoorQualityException;
 import org.pih.biometric.service.exception.ServiceNotEnabledException;
+import org.pih.biometric.service.exception.SubjectNotFoundException;
 import org.pih.biometric.service.model.BiometricConfig;
 import org.pih.biometric.service.model.BiometricMatch;
 import org.pih.biometric.service.model.BiometricSubject;
 import org.pih.biometric.service.model.BiometricTemplateFormat;
+import org.pih.biometric.service.model.DeletionResult;
 import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.IdentificationOptions;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.pih.biometric.service.model.SubjectChange;
+import org.pih.biometric.service.model.SubjectLookup;
+import org.pih.biometric.service.model.SubjectLookupResult;
+import org.pih.biometric.service.model.VerificationResult;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
@@ -43,15 +52,29 @@ import org.springframework.util.StringUtils;
 import javax.annotation.PostConstruct;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * Component that enables interaction with the biometric matching service, including enrollment, matching, and retrieval of templates
  */
 @Component
 public class BiometricMatchingEngine {
+
+    private static final String WARMUP_SUBJECT_ID = "warmup";
+    private static final int PATCH_LOCK_STRIPES = 64;
+    private static final int MAX_QUALITY = 100;
 	
 	protected final Log log = LogFactory.getLog(this.getClass());
 
@@ -61,12 +84,47 @@ public class BiometricMatchingEngine {
     @Autowired
     BiometricLicenseManager licenseManager;
 
+    @Autowired
+    SubjectChangeLog changeLog;
+
+    @Autowired
+    PeerCoordinator peerCoordinator;
+
+    @Autowired
+    BiometricClientPool clientPool;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    CandidateIndex candidateIndex;
+
+    @Autowired
+    IdentificationCoalescer coalescer;
+
+    @Autowired
+    AdmissionManager admissionManager;
+
+    @Autowired
+    NativeCallExecutor nativeCallExecutor;
+
+    @Autowired
+    NativeResourceTracker resourceTracker;
+
+    @Autowired
+    TemplateFormatConverter formatConverter;
+
+    private final Lock[] patchLocks = new Lock[PATCH_LOCK_STRIPES];
+
     /**
      * On startup, we ensure licenses are appropriately added and the server is available
-     * TODO: do we want to obtain licenses on startup as well, as we now have the scanning engine do?
+     * Licenses, clients, and the matcher are then warmed up once the application has started, see EngineWarmer
      */
     @PostConstruct
     public void startup() {
+        for (int i = 0; i < patchLocks.length; i++) {
+            patchLocks[i] = new ReentrantLock();
+        }
         initializeDatabase();
     }
 
@@ -74,6 +132,10 @@ public class BiometricMatchingEngine {
      * Saves a biometrics subject
      */
     public BiometricSubject enroll(BiometricSubject biometricSubject) {
+        return execute(AdmissionManager.Operation.ENROLL, () -> doEnroll(biometricSubject));
+    }
+
+    private BiometricSubject doEnroll(BiometricSubject biometricSubject) {
         log.debug("Enrolling subject: " + biometricSubject.getSubjectId());
 
         NBiometricClient client = null;
@@ -88,12 +150,19 @@ public class BiometricMatchingEngine {
             throw new BiometricServiceException("Unable to enroll biometrics since subject does not contain any fingerprints");
         }
 
+        if (peerCoordinator.isEnabled()) {
+            coalescer.invalidate();
+            return peerCoordinator.enroll(biometricSubject);
+        }
+
         obtainLicense();
         try {
-            client = createBiometricClient();
+            client = createBiometricClient(null);
             subject = createSubject(biometricSubject);
-            task = client.createTask(EnumSet.of(NBiometricOperation.ENROLL), subject);
+            checkQuality(subject);
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.ENROLL), subject));
             client.performTask(task);
+            checkTimeout(task.getStatus(), "enrollment");
 
             // Check the result and handle errors if they occur
             if (task.getStatus() != NBiometricStatus.OK) {
@@ -105,11 +174,14 @@ public class BiometricMatchingEngine {
                 }
             }
 
+            recordChange(SubjectChange.Type.ENROLL, subject);
             log.debug("Template saved successfully for " + biometricSubject.getSubjectId());
         }
         finally {
             releaseLicense();
-            dispose(task, subject, client);
+            dispose(task, subject);
+            clientPool.release(client, true);
+            coalescer.invalidate();
         }
 
         return biometricSubject;
@@ -119,6 +191,10 @@ public class BiometricMatchingEngine {
      * Updates a biometrics subject
      */
     public BiometricSubject update(BiometricSubject biometricSubject) {
+        return execute(AdmissionManager.Operation.ENROLL, () -> doUpdate(biometricSubject));
+    }
+
+    private BiometricSubject doUpdate(BiometricSubject biometricSubject) {
         log.debug("Updating subject: " + biometricSubject.getSubjectId());
 
         NBiometricClient client = null;
@@ -133,23 +209,33 @@ public class BiometricMatchingEngine {
             throw new BiometricServiceException("Unable to update template since no fingerprints are included");
         }
 
+        if (peerCoordinator.isEnabled()) {
+            coalescer.invalidate();
+            return peerCoordinator.update(biometricSubject);
+        }
+
         obtainLicense();
         try {
-            client = createBiometricClient();
+            client = createBiometricClient(null);
             subject = createSubject(biometricSubject);
-            task = client.createTask(EnumSet.of(NBiometricOperation.UPDATE), subject);
+            checkQuality(subject);
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.UPDATE), subject));
             client.performTask(task);
+            checkTimeout(task.getStatus(), "update");
 
             // Check the result and handle errors if they occur
             if (task.getStatus() != NBiometricStatus.OK) {
                 throw new BiometricServiceException("Unable to save the template. Status: " + task.getStatus(), task.getError());
             }
 
+            recordChange(SubjectChange.Type.UPDATE, subject);
             log.debug("Template saved successfully for " + biometricSubject.getSubjectId());
         }
         finally {
             releaseLicense();
-            dispose(task, subject, client);
+            dispose(task, subject);
+            clientPool.release(client, true);
+            coalescer.invalidate();
         }
 
         return biometricSubject;
@@ -159,7 +245,37 @@ public class BiometricMatchingEngine {
      * @return a List of BiometricsMatch that match the given biometricSubject, along with information on the match quality
      */
     public List<BiometricMatch> identify(BiometricSubject biometricSubject) {
-        List<BiometricMatch> ret = new ArrayList<BiometricMatch>();
+        return search(biometricSubject).getMatches();
+    }
+
+    /**
+     * @return the matches for the given biometricSubject
+     */
+    public IdentificationResult search(BiometricSubject biometricSubject) {
+        return search(biometricSubject, new IdentificationOptions());
+    }
+
+    /**
+     * @return the matches for the given biometricSubject, best first, limited by the given options.  If this node coordinates
+     * peer nodes, the search is performed across all peers, and the result indicates whether any peers were unavailable.
+     * Identical searches requested at the same time share a single search and its result, and are admitted as a single operation
+     */
+    public IdentificationResult search(BiometricSubject biometricSubject, IdentificationOptions options) {
+        return coalescer.execute(biometricSubject, options, () ->
+                execute(AdmissionManager.Operation.IDENTIFY, () -> doSearch(biometricSubject, options)));
+    }
+
+    /**
+     * @return the matches for the given biometricSubject, best first, limited by the given options
+     */
+    private IdentificationResult doSearch(BiometricSubject biometricSubject, IdentificationOptions options) {
+        if (peerCoordinator.isEnabled()) {
+            return peerCoordinator.identify(biometricSubject, options);
+        }
+
+        // Keep only the best maxResults matches, in a min-heap so the weakest retained match is evicted first
+        int maxResults = (options.getMaxResults() == null ? Integer.MAX_VALUE : options.getMaxResults());
+        PriorityQueue<BiometricMatch> best = new PriorityQueue<>(Comparator.comparing(BiometricMatch::getMatchScore));
 
         log.debug("Identifying Matches for source template...");
 
@@ -168,44 +284,192 @@ public class BiometricMatchingEngine {
 
         obtainLicense();
         try {
-            client = createBiometricClient();
             subject = createSubject(biometricSubject);
-            NBiometricStatus status = client.identify(subject);
 
-            if (status == NBiometricStatus.OK) {
-                log.debug("Found " + subject.getMatchingResults().size() + " possible matches");
-                for (NMatchingResult result : subject.getMatchingResults()) {
-                    ret.add(new BiometricMatch(result.getId(), result.getScore()));
+            // If the probe finger positions alone narrow the search, match against the partitions for those positions.
+            // If the prefilter narrows it to a set of candidates, match against only those, and fall back to searching
+            // all subjects if none match
+            boolean searchAll = true;
+            CandidateIndex.Selection selection = null;
+            if (candidateIndex.isEnabled() && subject.getTemplateBuffer() != null) {
+                selection = candidateIndex.select(subject.getTemplateBuffer().toByteArray());
+            }
+            if (selection != null && selection.isPartitioned()) {
+                identifyPartitions(subject, selection, options, best, maxResults);
+                searchAll = false;
+            }
+            else if (selection != null) {
+                identifyCandidates(subject, selection, options, best, maxResults);
+                searchAll = best.isEmpty() && config.isPrefilterFallbackEnabled();
+                if (searchAll) {
+                    log.debug("No match found among " + selection.getSubjectIds().size() + " candidates, searching all subjects");
+                }
+            }
+
+            if (searchAll) {
+                client = createBiometricClient(options.getProfile());
+                applyOptions(client, options);
+                NBiometricStatus status = client.identify(subject);
+                checkTimeout(status, "identification");
+
+                if (status == NBiometricStatus.OK) {
+                    log.debug("Found " + subject.getMatchingResults().size() + " possible matches");
+                    for (NMatchingResult result : subject.getMatchingResults()) {
+                        addMatch(best, maxResults, options, result.getId(), result.getScore());
+                    }
+                }
+                else if (status == NBiometricStatus.MATCH_NOT_FOUND) {
+                    log.debug("No match found");
+                }
+                else {
+                    log.warn("Identification failed. Status: " + status);
                 }
             }
-            else if (status == NBiometricStatus.MATCH_NOT_FOUND) {
-                log.debug("No match found");
+        }
+        finally {
+            releaseLicense();
+            dispose(subject);
+            clientPool.release(client, false);
+        }
+
+        List<BiometricMatch> ret = new ArrayList<BiometricMatch>(best);
+        ret.sort(Comparator.comparing(BiometricMatch::getMatchScore).reversed());
+        return new IdentificationResult(ret);
+    }
+
+    /**
+     * @return the result of comparing the given biometricSubject with the enrolled templates of the subject with the given subjectId.
+     * Only that subject is compared, taking its templates from the gallery if it is loaded, so this does not depend on the number enrolled
+     * @throws InvalidRequestException if the given biometricSubject has no fingerprint with a template to compare
+     */
+    public VerificationResult verify(String subjectId, BiometricSubject biometricSubject, String profile) {
+        checkProbe(biometricSubject);
+        return execute(AdmissionManager.Operation.VERIFY, () -> doVerify(subjectId, biometricSubject, profile));
+    }
+
+    private VerificationResult doVerify(String subjectId, BiometricSubject biometricSubject, String profile) {
+        log.debug("Verifying subject: " + subjectId);
+
+        if (peerCoordinator.isEnabled()) {
+            return peerCoordinator.verify(subjectId, biometricSubject, profile);
+        }
+
+        NBiometricClient client = null;
+        NSubject subject = null;
+        NSubject reference = null;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(profile);
+            subject = createSubject(biometricSubject);
+            reference = resourceTracker.track(new NSubject());
+
+            GalleryEntry entry = (gallery.isEnabled() && gallery.isLoaded() ? gallery.get(subjectId) : null);
+            if (entry != null && entry.getTemplate() != null) {
+                reference.setTemplateBuffer(new NBuffer(entry.getTemplate()));
+                reference.setId(subjectId);
             }
             else {
-                log.warn("Identification failed. Status: " + status);
+                reference.setId(subjectId);
+                NBiometricStatus status = client.get(reference);
+                checkTimeout(status, "verification");
+                if (status == NBiometricStatus.ID_NOT_FOUND) {
+                    throw new SubjectNotFoundException(subjectId);
+                }
+                if (status != NBiometricStatus.OK) {
+                    throw new BiometricServiceException("An error occurred while looking up biometrics for subject. Status: " + status);
+                }
+            }
+
+            NBiometricStatus status = client.verify(subject, reference);
+            checkTimeout(status, "verification");
+            if (status == NBiometricStatus.OK) {
+                int score = 0;
+                for (NMatchingResult result : subject.getMatchingResults()) {
+                    score = Math.max(score, result.getScore());
+                }
+                return new VerificationResult(subjectId, score, true);
             }
+            if (status == NBiometricStatus.MATCH_NOT_FOUND) {
+                return new VerificationResult(subjectId, 0, false);
+            }
+            throw new BiometricServiceException("Verification of subject " + subjectId + " failed. Status: " + status);
         }
         finally {
             releaseLicense();
-            dispose(subject, client);
+            dispose(reference, subject);
+            clientPool.release(client, false);
         }
+    }
 
-        return ret;
+    /**
+     * Enrolls, identifies, and verifies the given sample subject against a scratch database at the given location, so that
+     * the native libraries, the matching license, and the matcher are initialized before the first request needs them.
+     * The enrolled subjects, the gallery, and the change log are not affected
+     */
+    public void warmUp(BiometricSubject sample, File scratchDatabase) {
+        nativeCallExecutor.run(() -> doWarmUp(sample, scratchDatabase));
+    }
+
+    private void doWarmUp(BiometricSubject sample, File scratchDatabase) {
+        log.debug("Warming up matcher with a scratch database at " + scratchDatabase);
+
+        NBiometricClient client = null;
+        NSubject subject = null;
+        NSubject probe = null;
+        NBiometricTask task = null;
+
+        obtainLicense();
+        try {
+            client = resourceTracker.track(new NBiometricClient());
+            client.setDatabaseConnectionToSQLite(scratchDatabase.getAbsolutePath());
+            BiometricSubject scratchSubject = new BiometricSubject(WARMUP_SUBJECT_ID);
+            scratchSubject.setFingerprints(sample.getFingerprints());
+            subject = createSubject(scratchSubject);
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.ENROLL), subject));
+            client.performTask(task);
+            if (task.getStatus() != NBiometricStatus.OK && task.getStatus() != NBiometricStatus.DUPLICATE_ID) {
+                throw new BiometricServiceException("Unable to enroll warm-up subject. Status: " + task.getStatus(), task.getError());
+            }
+
+            BiometricSubject probeSubject = new BiometricSubject();
+            probeSubject.setFingerprints(sample.getFingerprints());
+            probe = createSubject(probeSubject);
+            NBiometricStatus status = client.identify(probe);
+            if (status != NBiometricStatus.OK && status != NBiometricStatus.MATCH_NOT_FOUND) {
+                throw new BiometricServiceException("Unable to identify warm-up subject. Status: " + status);
+            }
+            status = client.verify(probe, subject);
+            if (status != NBiometricStatus.OK && status != NBiometricStatus.MATCH_NOT_FOUND) {
+                throw new BiometricServiceException("Unable to verify warm-up subject. Status: " + status);
+            }
+        }
+        finally {
+            releaseLicense();
+            dispose(task, probe, subject, client);
+        }
     }
 
     /**
      * @return a count of all biometrics enrolled in the system
      */
     public Integer getNumberEnrolled() {
+        return execute(AdmissionManager.Operation.READ, () -> doGetNumberEnrolled());
+    }
+
+    private Integer doGetNumberEnrolled() {
+        if (peerCoordinator.isEnabled()) {
+            return peerCoordinator.getNumberEnrolled();
+        }
         NBiometricClient client = null;
         obtainLicense();
         try {
-            client = createBiometricClient();
+            client = createBiometricClient(null);
             return client.getCount();
         }
         finally {
             releaseLicense();
-            dispose(client);
+            clientPool.release(client, false);
         }
     }
 
@@ -216,49 +480,147 @@ public class BiometricMatchingEngine {
         return getSubject(subjectId, BiometricTemplateFormat.PROPRIETARY);
     }
 
+    /**
+     * @return the version of the subject with the given subjectId, which is the sequence of the last change recorded to it,
+     * or null if it is not known, because the gallery is not loaded, or the subject is not in it.  This is read from the
+     * gallery without using the database or a license
+     */
+    public Long getSubjectVersion(String subjectId) {
+        if (!gallery.isEnabled() || !gallery.isLoaded()) {
+            return null;
+        }
+        GalleryEntry entry = gallery.get(subjectId);
+        return (entry == null ? null : entry.getVersion());
+    }
+
     /**
      * @return the biometric template for the given subjectId with the specified format.
      * If format is null, it defaults to the Neurotechnology proprietary format
      */
     public BiometricSubject getSubject(String subjectId, BiometricTemplateFormat format) {
+        return execute(AdmissionManager.Operation.READ, () -> doGetSubject(subjectId, format));
+    }
+
+    private BiometricSubject doGetSubject(String subjectId, BiometricTemplateFormat format) {
         log.debug("Retrieving subject: " + subjectId);
-        BiometricSubject biometricSubject = null;
+
+        if (peerCoordinator.isEnabled()) {
+            return peerCoordinator.getSubject(subjectId, format);
+        }
 
         NBiometricClient client = null;
-        NSubject subject = null;
 
         obtainLicense();
         try {
-            client = createBiometricClient();
-            subject = createSubject(new BiometricSubject(subjectId));
-            NBiometricStatus status = client.get(subject);
+            client = createBiometricClient(null);
+            return readSubject(client, subjectId, format);
+        }
+        finally {
+            releaseLicense();
+            clientPool.release(client, false);
+        }
+    }
+
+    /**
+     * @return the result of each of the given lookups, in the same order, retrieved using a single client and license.
+     * If the gallery is loaded, lookups that ask only whether a subject exists are answered from the gallery
+     */
+    public List<SubjectLookupResult> getSubjects(List<SubjectLookup> lookups) {
+        return execute(AdmissionManager.Operation.READ, () -> doGetSubjects(lookups));
+    }
 
-            format = (format == null ? BiometricTemplateFormat.PROPRIETARY : format);
+    private List<SubjectLookupResult> doGetSubjects(List<SubjectLookup> lookups) {
+        log.debug("Retrieving " + lookups.size() + " subjects");
 
-            if (status == NBiometricStatus.OK) {
+        if (peerCoordinator.isEnabled()) {
+            return peerCoordinator.getSubjects(lookups);
+        }
 
-                biometricSubject = new BiometricSubject(subjectId);
-                log.debug("Found subject " + subjectId + ", extracting overall template in format: " + format);
+        List<SubjectLookupResult> ret = new ArrayList<>(lookups.size());
+        Map<BiometricTemplateFormat, Map<String, byte[]>> toConvert = new EnumMap<>(BiometricTemplateFormat.class);
+        boolean galleryLoaded = gallery.isEnabled() && gallery.isLoaded();
+        NBiometricClient client = null;
 
-                if (format != BiometricTemplateFormat.PROPRIETARY) {
-                    subject = convertSubjectFromFormat(subject, format);
+        obtainLicense();
+        try {
+            for (SubjectLookup lookup : lookups) {
+                RequestDeadline.check("retrieval");
+                if (lookup.isExistenceOnly() && galleryLoaded) {
+                    ret.add(new SubjectLookupResult(lookup.getSubjectId(), gallery.get(lookup.getSubjectId()) != null, null));
+                    continue;
+                }
+                if (client == null) {
+                    client = createBiometricClient(null);
+                }
+                byte[] template = readTemplate(client, lookup.getSubjectId());
+                if (template == null || lookup.isExistenceOnly()) {
+                    ret.add(new SubjectLookupResult(lookup.getSubjectId(), template != null, null));
+                    continue;
                 }
+                BiometricSubject subject = new BiometricSubject(lookup.getSubjectId());
+                BiometricTemplateFormat format = getFormat(lookup.getFormat());
+                if (format == BiometricTemplateFormat.PROPRIETARY) {
+                    subject.setFingerprints(toFingerprints(template));
+                }
+                else {
+                    toConvert.computeIfAbsent(format, f -> new LinkedHashMap<>()).put(lookup.getSubjectId(), template);
+                }
+                ret.add(new SubjectLookupResult(lookup.getSubjectId(), true, subject));
+            }
+        }
+        finally {
+            releaseLicense();
+            clientPool.release(client, false);
+        }
 
-                NFTemplate fingers = subject.getTemplate().getFingers();
-                if (fingers != null) {
-                    for (NFRecord record : fingers.getRecords()) {
-                        Fingerprint fp = new Fingerprint();
-                        fp.setFormat(format);
-                        if (record.getPosition() != null) {
-                            fp.setType(record.getPosition().name());
-                        }
-                        byte[] fingerBytes = record.save().toByteArray();
-                        fp.setTemplate(Base64.encodeBase64String(fingerBytes));
-                        biometricSubject.addFingerprint(fp);
-                    }
+        // Subjects requested in other formats are converted together, so that each batch is converted in parallel
+        for (Map.Entry<BiometricTemplateFormat, Map<String, byte[]>> entry : toConvert.entrySet()) {
+            Map<String, List<Fingerprint>> converted = formatConverter.convertAll(entry.getValue(), entry.getKey());
+            for (int i = 0; i < lookups.size(); i++) {
+                BiometricSubject subject = ret.get(i).getSubject();
+                if (subject != null && getFormat(lookups.get(i).getFormat()) == entry.getKey()) {
+                    subject.setFingerprints(new ArrayList<>(converted.get(subject.getSubjectId())));
                 }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the subject with the given subjectId read using the given client, with templates in the specified format,
+     * or null if it is not found
+     */
+    private BiometricSubject readSubject(NBiometricClient client, String subjectId, BiometricTemplateFormat format) {
+        byte[] template = readTemplate(client, subjectId);
+        if (template == null) {
+            return null;
+        }
+        format = getFormat(format);
+        log.debug("Found subject " + subjectId + ", extracting overall template in format: " + format);
+
+        BiometricSubject biometricSubject = new BiometricSubject(subjectId);
+        if (format == BiometricTemplateFormat.PROPRIETARY) {
+            biometricSubject.setFingerprints(toFingerprints(template));
+        }
+        else {
+            biometricSubject.setFingerprints(new ArrayList<>(formatConverter.convert(subjectId, template, format)));
+        }
+        return biometricSubject;
+    }
+
+    /**
+     * @return the enrolled template of the subject with the given subjectId read using the given client, in the
+     * proprietary format, or null if it is not found
+     */
+    private byte[] readTemplate(NBiometricClient client, String subjectId) {
+        NSubject subject = null;
+        try {
+            subject = createSubject(new BiometricSubject(subjectId));
+            NBiometricStatus status = client.get(subject);
+            checkTimeout(status, "retrieval");
 
-                return biometricSubject;
+            if (status == NBiometricStatus.OK) {
+                return subject.getTemplateBuffer().toByteArray();
             }
             else if (status != NBiometricStatus.ID_NOT_FOUND) {
                 throw new BiometricServiceException("An error occurred while looking up biometrics for subject. Status: " + status);
@@ -268,134 +630,870 @@ public class BiometricMatchingEngine {
             }
         }
         finally {
-            releaseLicense();
-            dispose(subject, client);
+            dispose(subject);
         }
 
         return null;
     }
 
     /**
-     * // TODO: This method is currently untested.  Here for reference only
+     * @return a fingerprint in the proprietary format for each finger record of the given proprietary template
      */
-    protected NSubject convertSubjectFromFormat(NSubject subject, BiometricTemplateFormat format) {
-        // Extracting a template in a format other than the default requires an extraction license
-        if (format != null && format != BiometricTemplateFormat.PROPRIETARY) {
-            try {
-                licenseManager.obtainExtractionLicense();
-                if (format == BiometricTemplateFormat.ISO) {
-                    subject.setTemplateBuffer(subject.getTemplateBuffer(
-                            CBEFFBiometricOrganizations.ISO_IEC_JTC_1_SC_37_BIOMETRICS,
-                            CBEFFBDBFormatIdentifiers.ISO_IEC_JTC_1_SC_37_BIOMETRICS_FINGER_MINUTIAE_RECORD_FORMAT,
-                            FMRecord.VERSION_ISO_CURRENT));
-                }
-                else {
-                    throw new BiometricServiceException("Unable to handle extract template in format: " + format);
+    private List<Fingerprint> toFingerprints(byte[] template) {
+        List<Fingerprint> ret = new ArrayList<>();
+        NTemplate nTemplate = null;
+        try {
+            nTemplate = resourceTracker.track(new NTemplate(new NBuffer(template)));
+            if (nTemplate.getFingers() != null) {
+                for (NFRecord record : nTemplate.getFingers().getRecords()) {
+                    Fingerprint fp = new Fingerprint();
+                    fp.setFormat(BiometricTemplateFormat.PROPRIETARY);
+                    if (record.getPosition() != null) {
+                        fp.setType(record.getPosition().name());
+                    }
+                    fp.setTemplate(Base64.encodeBase64String(record.save().toByteArray()));
+                    ret.add(fp);
                 }
             }
-            finally {
-                licenseManager.releaseExtractionLicense();
-            }
         }
-        return subject;
+        finally {
+            dispose(nTemplate);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the given format, defaulting to the Neurotechnology proprietary format
+     */
+    private BiometricTemplateFormat getFormat(BiometricTemplateFormat format) {
+        return (format == null ? BiometricTemplateFormat.PROPRIETARY : format);
     }
 
     /**
      * Deletes the subject associated with the given subjectId
      */
     public void deleteSubject(String subjectId) {
+        execute(AdmissionManager.Operation.ENROLL, () -> doDeleteSubject(subjectId));
+    }
+
+    private void doDeleteSubject(String subjectId) {
         log.debug("Deleting template for subject " + subjectId);
 
+        if (peerCoordinator.isEnabled()) {
+            coalescer.invalidate();
+            peerCoordinator.deleteSubject(subjectId);
+            return;
+        }
+
         NBiometricClient client = null;
 
         obtainLicense();
         try {
-            client = createBiometricClient();
+            client = createBiometricClient(null);
             NBiometricStatus status = client.delete(subjectId);
+            checkTimeout(status, "deletion");
 
+            if (status == NBiometricStatus.ID_NOT_FOUND) {
+                throw new SubjectNotFoundException(subjectId);
+            }
             if (status != NBiometricStatus.OK) {
                 throw new BiometricServiceException("An error occurred while deleting the template for subject " + subjectId + ". Status: " + status);
             }
 
+            formatConverter.invalidate(subjectId);
+            changeLog.append(new SubjectChange(SubjectChange.Type.DELETE, subjectId, null));
+
             log.debug("No saved biometrics found for subject: " + subjectId);
         }
         finally {
             releaseLicense();
-            dispose(client);
+            clientPool.release(client, true);
+            coalescer.invalidate();
         }
     }
 
-    //***** CONVENIENCE METHODS *****
-
-    private void obtainLicense() {
-        licenseManager.obtainMatchingLicense();
+    /**
+     * Deletes the subjects associated with the given subjectIds, using a single client and license
+     * @return the subjectIds that were deleted, and those that were not found
+     */
+    public DeletionResult deleteSubjects(List<String> subjectIds) {
+        return execute(AdmissionManager.Operation.ENROLL, () -> doDeleteSubjects(subjectIds, new DeletionResult()));
     }
 
-    private void releaseLicense() {
-        licenseManager.releaseMatchingLicense();
+    /**
+     * Deletes the subjects associated with the given subjectIds as for deleteSubjects, but as a maintenance operation,
+     * so that the deletion gives way to live traffic.  Each subject is added to the given result as soon as it is
+     * deleted or found not to be enrolled, so that if the deletion fails partway, the result records the progress made
+     * @return the given result
+     */
+    public DeletionResult purgeSubjects(List<String> subjectIds, DeletionResult result) {
+        return execute(AdmissionManager.Operation.MAINTENANCE, () -> doDeleteSubjects(subjectIds, result));
     }
 
-    private void initializeDatabase() {
-        if (!StringUtils.isEmpty(config.getSqliteDatabasePath())) {
-            File sqlDb = new File(config.getSqliteDatabasePath());
-            if (!sqlDb.exists()) {
-                try {
-                    sqlDb.getParentFile().mkdirs();
-                    sqlDb.createNewFile();
+    private DeletionResult doDeleteSubjects(List<String> subjectIds, DeletionResult ret) {
+        log.debug("Deleting templates for " + subjectIds.size() + " subjects");
+
+        if (peerCoordinator.isEnabled()) {
+            coalescer.invalidate();
+            DeletionResult result = peerCoordinator.deleteSubjects(subjectIds);
+            ret.getDeleted().addAll(result.getDeleted());
+            ret.getNotFound().addAll(result.getNotFound());
+            return ret;
+        }
+
+        NBiometricClient client = null;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(null);
+            for (String subjectId : subjectIds) {
+                RequestDeadline.check("deletion");
+                NBiometricStatus status = client.delete(subjectId);
+                checkTimeout(status, "deletion");
+
+                if (status == NBiometricStatus.ID_NOT_FOUND) {
+                    ret.getNotFound().add(subjectId);
                 }
-                catch (Exception e) {
-                    throw new BiometricServiceException("Unable to create database file at " + config.getSqliteDatabasePath(), e);
+                else if (status != NBiometricStatus.OK) {
+                    throw new BiometricServiceException("An error occurred while deleting the template for subject " + subjectId + ". Status: " + status);
+                }
+                else {
+                    ret.getDeleted().add(subjectId);
+                    formatConverter.invalidate(subjectId);
+                    changeLog.append(new SubjectChange(SubjectChange.Type.DELETE, subjectId, null));
                 }
             }
         }
+        finally {
+            releaseLicense();
+            clientPool.release(client, true);
+            coalescer.invalidate();
+        }
+        return ret;
     }
 
     /**
-     * @return Biometric client, configured with appropriate properties from configuration
+     * Adds the given fingerprint to the subject with the given subjectId at the given finger position, replacing any
+     * finger records the subject already has at that position.  The other finger records of the subject are kept as stored
      */
-    private NBiometricClient createBiometricClient() {
-        if (!config.isMatchingServiceEnabled()) {
-            throw new ServiceNotEnabledException("Biometric Enrollment, Identification, and Matching");
+    public void putFinger(String subjectId, String position, Fingerprint fingerprint) {
+        if (fingerprint == null || fingerprint.getTemplate() == null) {
+            throw new InvalidRequestException("Unable to add finger since no template is included");
         }
-        NBiometricClient client = new NBiometricClient();
-        client.setDatabaseConnectionToSQLite(config.getSqliteDatabasePath());
-        client.setMatchingThreshold(config.getMatchingThreshold());
-        client.setFingersMatchingSpeed(NMatchingSpeed.valueOf(config.getMatchingSpeed().name()));
-        client.setFingersTemplateSize(NTemplateSize.valueOf(config.getTemplateSize().name()));
-        return client;
+        execute(AdmissionManager.Operation.ENROLL, () -> doPatchFinger(subjectId, position, fingerprint));
     }
 
     /**
-     * @return converts a BiometricSubject to an NSubject
-     * // TODO: Unclear how the type and format should be applied here
+     * Removes the finger records at the given finger position from the subject with the given subjectId
      */
-    private NSubject createSubject(BiometricSubject biometricSubject) {
-        NSubject subject = new NSubject();
-        NFTemplate compositeTemplate = null;
-        if (!biometricSubject.getFingerprints().isEmpty()) {
-            try {
-                compositeTemplate = new NFTemplate();
-                for (Fingerprint fp : biometricSubject.getFingerprints()) {
-                    if (fp.getTemplate() != null) {
-                        NTemplate template = null;
-                        try {
-                            byte[] templateBytes = Base64.decodeBase64(fp.getTemplate());
-                            template = new NTemplate(new NBuffer(templateBytes));
-                            if (template.getFingers() != null) {
-                                for (NFRecord record : template.getFingers().getRecords()) {
-                                    compositeTemplate.getRecords().add(record);
-                                }
-                            }
-                        }
-                        finally {
-                            dispose(template);
-                        }
-                    }
-                }
-                subject.setTemplateBuffer(compositeTemplate.save());
+    public void removeFinger(String subjectId, String position) {
+        execute(AdmissionManager.Operation.ENROLL, () -> doPatchFinger(subjectId, position, null));
+    }
+
+    /**
+     * Replaces the finger records of the subject at the given position with those of the given fingerprint, or removes
+     * them if no fingerprint is given.  The stored template is patched, so the finger records at other positions are
+     * neither re-sent nor re-processed.  The template is read from the database, rather than the gallery, and patches to
+     * the same subject are made one at a time, so that a patch is never based on a template that another has since replaced
+     */
+    private void doPatchFinger(String subjectId, String positionName, Fingerprint fingerprint) {
+        log.debug((fingerprint == null ? "Removing " : "Replacing ") + positionName + " finger of subject " + subjectId);
+
+        NFPosition position = parsePosition(positionName);
+
+        if (peerCoordinator.isEnabled()) {
+            coalescer.invalidate();
+            if (fingerprint == null) {
+                peerCoordinator.removeFinger(subjectId, position.name());
             }
-            finally {
-                dispose(compositeTemplate);
+            else {
+                peerCoordinator.putFinger(subjectId, position.name(), fingerprint);
+            }
+            return;
+        }
+
+        Lock patchLock = getPatchLock(subjectId);
+        patchLock.lock();
+        try {
+            patchStoredTemplate(subjectId, position, fingerprint);
+        }
+        finally {
+            patchLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the finger records at the given position in the template of the subject read from the database
+     */
+    private void patchStoredTemplate(String subjectId, NFPosition position, Fingerprint fingerprint) {
+        NBiometricClient client = null;
+        NSubject existing = null;
+        NTemplate stored = null;
+        NTemplate added = null;
+        NFTemplate patched = null;
+        NSubject subject = null;
+        NBiometricTask task = null;
+        boolean modified = false;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(null);
+
+            existing = resourceTracker.track(new NSubject());
+            existing.setId(subjectId);
+            NBiometricStatus status = client.get(existing);
+            checkTimeout(status, "update");
+            if (status == NBiometricStatus.ID_NOT_FOUND) {
+                throw new SubjectNotFoundException(subjectId);
+            }
+            if (status != NBiometricStatus.OK) {
+                throw new BiometricServiceException("An error occurred while looking up biometrics for subject. Status: " + status);
+            }
+            stored = resourceTracker.track(new NTemplate(existing.getTemplateBuffer()));
+
+            patched = resourceTracker.track(new NFTemplate());
+            int numRemoved = 0;
+            if (stored.getFingers() != null) {
+                for (NFRecord record : stored.getFingers().getRecords()) {
+                    if (record.getPosition() == position) {
+                        numRemoved++;
+                    }
+                    else {
+                        patched.getRecords().add(record);
+                    }
+                }
+            }
+
+            if (fingerprint == null) {
+                if (numRemoved == 0) {
+                    throw new FingerNotFoundException(subjectId, position.name());
+                }
+            }
+            else {
+                added = resourceTracker.track(new NTemplate(new NBuffer(formatConverter.importTemplate(fingerprint))));
+                if (added.getFingers() == null || added.getFingers().getRecords().isEmpty()) {
+                    throw new InvalidRequestException("Unable to add finger since the template contains no finger records");
+                }
+                for (NFRecord record : added.getFingers().getRecords()) {
+                    checkQuality(record);
+                    record.setPosition(position);
+                    patched.getRecords().add(record);
+                }
+            }
+
+            if (patched.getRecords().isEmpty()) {
+                throw new InvalidRequestException("Unable to remove the only finger of subject " + subjectId + ".  Delete the subject instead.");
+            }
+
+            subject = resourceTracker.track(new NSubject());
+            subject.setTemplateBuffer(patched.save());
+            subject.setId(subjectId); // This needs to come last, or it gets reset
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.UPDATE), subject));
+            client.performTask(task);
+            checkTimeout(task.getStatus(), "update");
+            if (task.getStatus() != NBiometricStatus.OK) {
+                throw new BiometricServiceException("Unable to save the template. Status: " + task.getStatus(), task.getError());
+            }
+            modified = true;
+            recordChange(SubjectChange.Type.UPDATE, subject);
+            log.debug("Template saved successfully for " + subjectId);
+        }
+        finally {
+            releaseLicense();
+            dispose(task, subject, patched, added, stored, existing);
+            clientPool.release(client, modified);
+            if (modified) {
+                coalescer.invalidate();
+            }
+        }
+    }
+
+    /**
+     * @return up to limit subjectIds, in order, of the enrolled subjects after the given subjectId (or from the first, if
+     * not given), and only those modified at or after the given time, if given.  Only as many entries as are needed for
+     * the page are read from the gallery, which is required, since the database can only list all subjects at once.
+     * Filtering by the time of modification requires a time no earlier than the gallery's modifiedKnownSince
+     * @throws GalleryUnavailableException if the gallery is not enabled, or has not yet been loaded
+     */
+    public List<String> getSubjectIds(String after, int limit, Long modifiedSince) {
+        return execute(AdmissionManager.Operation.READ, () -> doGetSubjectIds(after, limit, modifiedSince));
+    }
+
+    private List<String> doGetSubjectIds(String after, int limit, Long modifiedSince) {
+        if (peerCoordinator.isEnabled()) {
+            return peerCoordinator.getSubjectIds(after, limit, modifiedSince);
+        }
+        List<String> ret = new ArrayList<>();
+        if (gallery.isEnabled() && gallery.isLoaded()) {
+            if (modifiedSince != null && modifiedSince < gallery.getModifiedKnownSince()) {
+                throw new InvalidRequestException("Modification times are only known since " + gallery.getModifiedKnownSince() + ", when the gallery was loaded from the database.  List all subjects instead");
+            }
+            for (GalleryEntry entry : gallery.getEntriesAfter(after)) {
+                if (ret.size() >= limit) {
+                    break;
+                }
+                if (modifiedSince == null || entry.getModified() >= modifiedSince) {
+                    ret.add(entry.getSubjectId());
+                }
+            }
+            return ret;
+        }
+        if (modifiedSince != null && !gallery.isEnabled()) {
+            throw new InvalidRequestException("Listing subjects by the time of modification requires the gallery to be enabled");
+        }
+        throw new GalleryUnavailableException("Listing subjects by page");
+    }
+
+    /**
+     * @return the subjectIds of all enrolled subjects, in order
+     */
+    public List<String> getSubjectIds() {
+        return executeNative(AdmissionManager.Operation.READ, () -> doGetSubjectIds());
+    }
+
+    private List<String> doGetSubjectIds() {
+        NBiometricClient client = null;
+        NSubject[] subjects = null;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(null);
+            subjects = client.list();
+            List<String> ret = new ArrayList<>(subjects.length);
+            for (NSubject listed : subjects) {
+                resourceTracker.track(listed);
+                ret.add(listed.getId());
+            }
+            Collections.sort(ret);
+            return ret;
+        }
+        finally {
+            releaseLicense();
+            if (subjects != null) {
+                dispose(subjects);
+            }
+            clientPool.release(client, false);
+        }
+    }
+
+    /**
+     * Re-encodes the enrolled template of the subject with the given subjectId, saving each finger record without the
+     * optional data indicated by the given NFRecord save flags, and replaces the enrolled template if this makes it smaller.
+     * This runs at maintenance priority, behind all requests
+     * @return the number of bytes saved, or 0 if the template was not replaced
+     */
+    public int compactSubject(String subjectId, int recordFlags) {
+        return executeNative(AdmissionManager.Operation.MAINTENANCE, () -> doCompactSubject(subjectId, recordFlags));
+    }
+
+    private int doCompactSubject(String subjectId, int recordFlags) {
+        NBiometricClient client = null;
+        NSubject subject = null;
+        NTemplate template = null;
+        NFTemplate compactTemplate = null;
+        NSubject compactSubject = null;
+        NBiometricTask task = null;
+        boolean modified = false;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(null);
+            subject = resourceTracker.track(new NSubject());
+            subject.setId(subjectId);
+            NBiometricStatus status = client.get(subject);
+            if (status == NBiometricStatus.ID_NOT_FOUND) {
+                throw new SubjectNotFoundException(subjectId);
+            }
+            if (status != NBiometricStatus.OK) {
+                throw new BiometricServiceException("An error occurred while looking up biometrics for subject. Status: " + status);
+            }
+            byte[] original = subject.getTemplateBuffer().toByteArray();
+
+            template = resourceTracker.track(new NTemplate(new NBuffer(original)));
+            if (template.getFingers() == null) {
+                return 0;
+            }
+            compactTemplate = resourceTracker.track(new NFTemplate());
+            for (NFRecord record : template.getFingers().getRecords()) {
+                NFRecord compactRecord = resourceTracker.track(new NFRecord(record.save(recordFlags)));
+                try {
+                    compactTemplate.getRecords().add(compactRecord);
+                }
+                finally {
+                    dispose(compactRecord);
+                }
+            }
+            NBuffer compacted = compactTemplate.save();
+            int saved = original.length - compacted.toByteArray().length;
+            if (saved <= 0) {
+                return 0;
+            }
+
+            compactSubject = resourceTracker.track(new NSubject());
+            compactSubject.setTemplateBuffer(compacted);
+            compactSubject.setId(subjectId); // This needs to come last, or it gets reset
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.UPDATE), compactSubject));
+            client.performTask(task);
+            checkTimeout(task.getStatus(), "compaction");
+            if (task.getStatus() != NBiometricStatus.OK) {
+                throw new BiometricServiceException("Unable to save the compacted template. Status: " + task.getStatus(), task.getError());
+            }
+            modified = true;
+            recordChange(SubjectChange.Type.UPDATE, compactSubject);
+            log.debug("Compacted template for " + subjectId + " from " + original.length + " to " + (original.length - saved) + " bytes");
+            return saved;
+        }
+        finally {
+            releaseLicense();
+            dispose(task, compactSubject, compactTemplate, template, subject);
+            clientPool.release(client, modified);
+            if (modified) {
+                coalescer.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Passes the subjectId and composite template of every enrolled subject to the given consumer
+     * This reads through the entire database, and is intended only for populating the gallery
+     */
+    public void forEachSubjectTemplate(BiConsumer<String, byte[]> consumer) {
+        nativeCallExecutor.run(() -> doForEachSubjectTemplate(consumer));
+    }
+
+    private void doForEachSubjectTemplate(BiConsumer<String, byte[]> consumer) {
+        log.debug("Reading all subjects from the database");
+
+        NBiometricClient client = null;
+        NSubject[] subjects = null;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(null);
+            subjects = client.list();
+            for (NSubject listed : subjects) {
+                resourceTracker.track(listed);
+            }
+            for (NSubject listed : subjects) {
+                NSubject subject = null;
+                try {
+                    subject = createSubject(new BiometricSubject(listed.getId()));
+                    NBiometricStatus status = client.get(subject);
+                    if (status == NBiometricStatus.OK) {
+                        consumer.accept(listed.getId(), subject.getTemplateBuffer().toByteArray());
+                    }
+                    else {
+                        log.warn("Unable to read subject " + listed.getId() + ". Status: " + status);
+                    }
+                }
+                finally {
+                    dispose(subject);
+                }
+            }
+        }
+        finally {
+            releaseLicense();
+            if (subjects != null) {
+                dispose(subjects);
+            }
+            clientPool.release(client, false);
+        }
+    }
+
+    /**
+     * Applies a change replicated from a leader directly to the database, saving the leader's template as it is.
+     * The leader has already accepted the change, so this bypasses admission control, request deadlines, and the
+     * enrollment quality checks of this node, any of which could otherwise reject the change and stall replication.
+     * Applying a change is idempotent:  enrolling an existing subject replaces it, and deleting a missing subject does nothing
+     */
+    public void applyReplicatedChange(SubjectChange change) {
+        nativeCallExecutor.run(() -> doApplyReplicatedChange(change));
+    }
+
+    private void doApplyReplicatedChange(SubjectChange change) {
+        NBiometricClient client = null;
+        NSubject subject = null;
+        NBiometricTask task = null;
+        boolean modified = false;
+
+        obtainLicense();
+        try {
+            client = createBiometricClient(null);
+            if (change.getType() == SubjectChange.Type.DELETE) {
+                NBiometricStatus status = client.delete(change.getSubjectId());
+                if (status == NBiometricStatus.ID_NOT_FOUND) {
+                    log.debug("Subject " + change.getSubjectId() + " already deleted");
+                }
+                else if (status != NBiometricStatus.OK) {
+                    throw new BiometricServiceException("An error occurred while deleting the template for subject " + change.getSubjectId() + ". Status: " + status);
+                }
+                else {
+                    modified = true;
+                    formatConverter.invalidate(change.getSubjectId());
+                    changeLog.append(new SubjectChange(SubjectChange.Type.DELETE, change.getSubjectId(), null));
+                }
+            }
+            else {
+                subject = resourceTracker.track(new NSubject());
+                subject.setTemplateBuffer(new NBuffer(change.getTemplate()));
+                subject.setId(change.getSubjectId()); // This needs to come last, or it gets reset
+                SubjectChange.Type type = SubjectChange.Type.ENROLL;
+                task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.ENROLL), subject));
+                client.performTask(task);
+                if (task.getStatus() == NBiometricStatus.DUPLICATE_ID) {
+                    dispose(task);
+                    task = null;
+                    type = SubjectChange.Type.UPDATE;
+                    task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.UPDATE), subject));
+                    client.performTask(task);
+                }
+                if (task.getStatus() != NBiometricStatus.OK) {
+                    throw new BiometricServiceException("Unable to save the replicated template for subject " + change.getSubjectId() + ". Status: " + task.getStatus(), task.getError());
+                }
+                modified = true;
+                recordChange(type, subject);
+            }
+        }
+        finally {
+            releaseLicense();
+            dispose(task, subject);
+            clientPool.release(client, modified);
+            if (modified) {
+                coalescer.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Saves a subject copied from a leader directly to the database, replacing any existing subject with the same subjectId,
+     * in the same way as a replicated enrollment.  This is used to re-synchronize with a full copy of the leader's subjects
+     */
+    public void applyReplicatedSubject(BiometricSubject biometricSubject) {
+        nativeCallExecutor.run(() -> doApplyReplicatedSubject(biometricSubject));
+    }
+
+    private void doApplyReplicatedSubject(BiometricSubject biometricSubject) {
+        NSubject subject = createSubject(biometricSubject);
+        try {
+            if (subject.getTemplateBuffer() == null) {
+                throw new BiometricServiceException("Unable to save the replicated subject " + biometricSubject.getSubjectId() + " since it has no template");
+            }
+            byte[] template = subject.getTemplateBuffer().toByteArray();
+            doApplyReplicatedChange(new SubjectChange(SubjectChange.Type.ENROLL, biometricSubject.getSubjectId(), template));
+        }
+        finally {
+            dispose(subject);
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the result of the given work, once the operation has been admitted.  If this node coordinates peers, the work
+     * only sends the operation to them, and stays on the calling thread.  Otherwise it runs against the local matcher, and is
+     * confined to the native call executor
+     */
+    private <T> T execute(AdmissionManager.Operation operation, Supplier<T> work) {
+        if (peerCoordinator.isEnabled()) {
+            return admissionManager.execute(operation, work);
+        }
+        return executeNative(operation, work);
+    }
+
+    /**
+     * Performs the given work, once the operation has been admitted, see execute
+     */
+    private void execute(AdmissionManager.Operation operation, Runnable work) {
+        execute(operation, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return the result of the given work, which always runs against the local matcher, once the operation has been admitted
+     */
+    private <T> T executeNative(AdmissionManager.Operation operation, Supplier<T> work) {
+        return admissionManager.execute(operation, () -> nativeCallExecutor.call(work));
+    }
+
+    /**
+     * Records the saved template of the given subject in the change log
+     */
+    private void recordChange(SubjectChange.Type type, NSubject subject) {
+        formatConverter.invalidate(subject.getId());
+        if (changeLog.isEnabled()) {
+            changeLog.append(new SubjectChange(type, subject.getId(), subject.getTemplateBuffer().toByteArray()));
+        }
+    }
+
+    /**
+     * Ensures that the given probe has at least one fingerprint with a template, before any license or client is used for it
+     * @throws InvalidRequestException if it does not
+     */
+    public void checkProbe(BiometricSubject biometricSubject) {
+        if (biometricSubject != null) {
+            for (Fingerprint fp : biometricSubject.getFingerprints()) {
+                if (fp != null && fp.getTemplate() != null) {
+                    return;
+                }
+            }
+        }
+        throw new InvalidRequestException("Unable to compare a subject that contains no fingerprint templates");
+    }
+
+    /**
+     * @return the lock that serializes patches to the given subject, shared with the subjects that hash to the same stripe
+     */
+    private Lock getPatchLock(String subjectId) {
+        return patchLocks[(subjectId.hashCode() & 0x7fffffff) % patchLocks.length];
+    }
+
+    private void obtainLicense() {
+        licenseManager.obtainMatchingLicense();
+    }
+
+    private void releaseLicense() {
+        licenseManager.releaseMatchingLicense();
+    }
+
+    private void initializeDatabase() {
+        if (!StringUtils.isEmpty(config.getSqliteDatabasePath())) {
+            File sqlDb = new File(config.getSqliteDatabasePath());
+            if (!sqlDb.exists()) {
+                try {
+                    sqlDb.getParentFile().mkdirs();
+                    sqlDb.createNewFile();
+                }
+                catch (Exception e) {
+                    throw new BiometricServiceException("Unable to create database file at " + config.getSqliteDatabasePath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Biometric client from the pool, configured with the properties of the given matching profile, or of the
+     * top-level configuration if no profile is given.  This must be returned to the pool once the operation is complete.
+     * If the current request has a deadline, native operations of the client time out once it passes
+     */
+    private NBiometricClient createBiometricClient(String profile) {
+        if (!config.isMatchingServiceEnabled()) {
+            throw new ServiceNotEnabledException("Biometric Enrollment, Identification, and Matching");
+        }
+        return applyDeadline(clientPool.borrow(profile));
+    }
+
+    /**
+     * @return the given client, with its timeout limited to the time remaining until the deadline of the current request
+     */
+    private NBiometricClient applyDeadline(NBiometricClient client) {
+        Long remaining = RequestDeadline.getRemainingMs();
+        if (remaining != null) {
+            client.setTimeout((int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE)));
+        }
+        return client;
+    }
+
+    /**
+     * @throws DeadlineExceededException if a native operation timed out as the deadline of the current request passed
+     */
+    private void checkTimeout(NBiometricStatus status, String operation) {
+        if (status == NBiometricStatus.TIMEOUT) {
+            throw new DeadlineExceededException(operation);
+        }
+    }
+
+    /**
+     * @throws PoorQualityException if any finger record of the given subject is below the minimum quality configured for enrollment
+     */
+    private void checkQuality(NSubject subject) {
+        if (config.getMinEnrollQuality() <= 0) {
+            return;
+        }
+        NTemplate template = null;
+        try {
+            template = resourceTracker.track(new NTemplate(subject.getTemplateBuffer()));
+            if (template.getFingers() != null) {
+                for (NFRecord record : template.getFingers().getRecords()) {
+                    checkQuality(record);
+                }
+            }
+        }
+        finally {
+            dispose(template);
+        }
+    }
+
+    /**
+     * @throws PoorQualityException if the given finger record is below the minimum quality configured for enrollment, or
+     * its quality could not be assessed, which is recorded as a value above 100
+     */
+    private void checkQuality(NFRecord record) {
+        if (config.getMinEnrollQuality() <= 0) {
+            return;
+        }
+        if (record.getQuality() > MAX_QUALITY) {
+            throw new PoorQualityException(config.getMinEnrollQuality());
+        }
+        if (record.getQuality() < config.getMinEnrollQuality()) {
+            throw new PoorQualityException(record.getQuality(), config.getMinEnrollQuality());
+        }
+    }
+
+    /**
+     * Matches the subject against the partitions of the gallery for the selected positions, adding any matches found that
+     * meet the threshold of the requested profile, as the partitions are shared by all profiles
+     */
+    private void identifyPartitions(NSubject subject, CandidateIndex.Selection selection, IdentificationOptions options,
+                                    PriorityQueue<BiometricMatch> best, int maxResults) {
+        int threshold = clientPool.getMatchingProfile(options.getProfile()).getMatchingThreshold();
+        Map<String, Integer> matches = candidateIndex.identifyInPartitions(subject, selection.getPositions());
+        for (Map.Entry<String, Integer> match : matches.entrySet()) {
+            if (match.getValue() >= threshold) {
+                addMatch(best, maxResults, options, match.getKey(), match.getValue());
+            }
+        }
+        log.debug("Found " + best.size() + " matches in partitions for " + selection.getPositions());
+    }
+
+    /**
+     * Matches the subject against the selected candidates from the gallery in a single identification, by enrolling them
+     * in a scratch client that holds only those candidates, adding any matches found.
+     * If the selection has positions, only the candidate records at those positions are enrolled
+     */
+    private void identifyCandidates(NSubject subject, CandidateIndex.Selection selection, IdentificationOptions options,
+                                    PriorityQueue<BiometricMatch> best, int maxResults) {
+        RequestDeadline.check("identification");
+        List<NSubject> candidates = new ArrayList<>();
+        NBiometricClient client = null;
+        NBiometricTask task = null;
+        try {
+            client = applyDeadline(clientPool.borrowScratch(options.getProfile()));
+            applyOptions(client, options);
+            task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.ENROLL), null));
+            for (String candidateId : selection.getSubjectIds()) {
+                byte[] template;
+                if (selection.getPositions() != null) {
+                    template = candidateIndex.getCandidateTemplate(candidateId, selection.getPositions());
+                }
+                else {
+                    GalleryEntry entry = gallery.get(candidateId);
+                    template = (entry == null ? null : entry.getTemplate());
+                }
+                if (template == null) {
+                    continue;
+                }
+                NSubject candidate = resourceTracker.track(new NSubject());
+                candidates.add(candidate);
+                candidate.setTemplateBuffer(new NBuffer(template));
+                candidate.setId(candidateId);
+                task.getSubjects().add(candidate);
+            }
+            if (candidates.isEmpty()) {
+                return;
+            }
+            client.performTask(task);
+            checkTimeout(task.getStatus(), "identification");
+            if (task.getStatus() != NBiometricStatus.OK) {
+                log.warn("Unable to enroll candidates for identification. Status: " + task.getStatus());
+                return;
+            }
+
+            NBiometricStatus status = client.identify(subject);
+            checkTimeout(status, "identification");
+            if (status == NBiometricStatus.OK) {
+                for (NMatchingResult result : subject.getMatchingResults()) {
+                    addMatch(best, maxResults, options, result.getId(), result.getScore());
+                }
+            }
+            else if (status != NBiometricStatus.MATCH_NOT_FOUND) {
+                log.warn("Identification among " + candidates.size() + " candidates failed. Status: " + status);
+            }
+        }
+        finally {
+            resourceTracker.dispose(task);
+            for (NSubject candidate : candidates) {
+                dispose(candidate);
+            }
+            clientPool.releaseScratch(client);
+        }
+    }
+
+    /**
+     * Adds the given match to the best matches found so far, if it meets the minimum score and is among the best maxResults
+     */
+    private void addMatch(PriorityQueue<BiometricMatch> best, int maxResults, IdentificationOptions options, String subjectId, int score) {
+        if (options.getMinScore() != null && score < options.getMinScore()) {
+            return;
+        }
+        if (best.size() < maxResults) {
+            best.add(new BiometricMatch(subjectId, score));
+        }
+        else if (score > best.peek().getMatchScore()) {
+            best.poll();
+            best.add(new BiometricMatch(subjectId, score));
+        }
+    }
+
+    /**
+     * Applies the given identification options to the client, so that the matcher itself limits the results it produces
+     * and, if only the first match is needed, stops searching as soon as it is found
+     */
+    private void applyOptions(NBiometricClient client, IdentificationOptions options) {
+        if (options.getMinScore() != null && options.getMinScore() > client.getMatchingThreshold()) {
+            client.setMatchingThreshold(options.getMinScore());
+        }
+        if (options.getMaxResults() != null) {
+            client.setMatchingMaximalResultCount(options.getMaxResults());
+        }
+        if (options.isFirstMatchOnly()) {
+            client.setMatchingFirstResultOnly(true);
+        }
+    }
+
+    /**
+     * @return converts a BiometricSubject to an NSubject
+     * Fingerprints in standard formats are converted to the proprietary format, and fingerprints whose records have no
+     * position are given the position named by their type, if any
+     */
+    private NSubject createSubject(BiometricSubject biometricSubject) {
+        NSubject subject = resourceTracker.track(new NSubject());
+        NFTemplate compositeTemplate = null;
+        if (!biometricSubject.getFingerprints().isEmpty()) {
+            try {
+                List<byte[]> templates = formatConverter.importAll(biometricSubject.getFingerprints());
+                compositeTemplate = resourceTracker.track(new NFTemplate());
+                for (int i = 0; i < templates.size(); i++) {
+                    Fingerprint fp = biometricSubject.getFingerprints().get(i);
+                    byte[] templateBytes = templates.get(i);
+                    if (templateBytes != null) {
+                        NTemplate template = null;
+                        try {
+                            template = resourceTracker.track(new NTemplate(new NBuffer(templateBytes)));
+                            if (template.getFingers() != null) {
+                                NFPosition position = getPosition(fp);
+                                for (NFRecord record : template.getFingers().getRecords()) {
+                                    if (position != null && (record.getPosition() == null || record.getPosition() == NFPosition.UNKNOWN)) {
+                                        record.setPosition(position);
+                                    }
+                                    compositeTemplate.getRecords().add(record);
+                                }
+                            }
+                        }
+                        finally {
+                            dispose(template);
+                        }
+                    }
+                }
+                subject.setTemplateBuffer(compositeTemplate.save());
+            }
+            catch (RuntimeException e) {
+                dispose(subject); // The caller never receives the subject, so cannot dispose of it
+                throw e;
+            }
+            finally {
+                dispose(compositeTemplate);
             }
         }
         // This needs to come last, or it gets reset
@@ -407,13 +1505,41 @@ public class BiometricMatchingEngine {
     }
 
     /**
-     * Ensures a list of possible disposable objects are disposed of
+     * @return the finger position with the given name
+     * @throws InvalidRequestException if the name is not a known finger position
      */
-    private void dispose(NObject... objects) {
-        for (NObject o : objects) {
-            if (o != null) {
-                o.dispose();
+    private NFPosition parsePosition(String name) {
+        try {
+            NFPosition position = NFPosition.valueOf(name.trim().toUpperCase());
+            if (position != NFPosition.UNKNOWN) {
+                return position;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            log.debug("Finger position " + name + " is not a known finger position");
+        }
+        throw new InvalidRequestException("Unknown finger position: " + name);
+    }
+
+    /**
+     * @return the finger position named by the type of the given fingerprint, or null if the type is not a known position
+     */
+    private NFPosition getPosition(Fingerprint fp) {
+        if (StringUtils.hasText(fp.getType())) {
+            try {
+                return NFPosition.valueOf(fp.getType().trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                log.debug("Fingerprint type " + fp.getType() + " is not a known finger position");
             }
         }
+        return null;
+    }
+
+    /**
+     * Ensures a list of possible disposable objects are disposed of
+     */
+    private void dispose(NObject... objects) {
+        resourceTracker.dispose(objects);
     }
 }
\ No newline at end of file
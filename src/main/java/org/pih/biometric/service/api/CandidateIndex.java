@@ -0,0 +1,769 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import com.neurotec.biometrics.NBiometricOperation;
+import com.neurotec.biometrics.NBiometricStatus;
+import com.neurotec.biometrics.NBiometricTask;
+import com.neurotec.biometrics.NFPatternClass;
+import com.neurotec.biometrics.NFPosition;
+import com.neurotec.biometrics.NFRecord;
+import com.neurotec.biometrics.NFTemplate;
+import com.neurotec.biometrics.NMatchingResult;
+import com.neurotec.biometrics.NSubject;
+import com.neurotec.biometrics.NTemplate;
+import com.neurotec.biometrics.client.NBiometricClient;
+import com.neurotec.io.NBuffer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.DeadlineExceededException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Component that maintains a coarse index of cheap features of each finger record in the gallery, namely the
+ * finger position, pattern class and the number of minutiae, so that identification can run the full matcher against
+ * only those subjects most likely to match, rather than against the entire gallery.  If the probe fingers have known
+ * positions, the search can also be restricted to the gallery records at those positions (and, optionally, those
+ * records whose position is not known).
+ * Each subject is filed in a bucket for the position, pattern class and minutiae band of each of its records, so that a
+ * search only considers the subjects in the buckets compatible with the probe, rather than scanning every subject.
+ * When the position filter is enabled, the template reduced to the records at each position of a subject is prepared as
+ * the subject is indexed.  These are enrolled in a persistent client for each position, so that a search narrowed by
+ * position alone identifies the probe against the clients for its positions, without enrolling any candidates.  The
+ * clients are built from the index on the first such search, and are then kept current as the gallery changes.
+ * The index is kept current by listening to changes to the gallery, so it is only available when the gallery is enabled,
+ * and it is only built if the prefilter or position filter is enabled when the gallery is loaded.
+ */
+@Component
+public class CandidateIndex implements BiometricGallery.Listener {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    NativeResourceTracker resourceTracker;
+
+    @Autowired
+    BiometricClientPool clientPool;
+
+    @Autowired
+    BiometricLicenseManager licenseManager;
+
+    private static final int MINUTIAE_BAND_WIDTH = 10;
+    private static final int MINUTIAE_BAND_TOLERANCE = 2;
+    private static final int MAX_MINUTIAE_BAND = 0xFF;
+    private static final int MAX_RESTRICTED_TEMPLATES = 8;
+
+    private final Map<String, SubjectFeatures> features = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<String>> buckets = new ConcurrentHashMap<>();
+    private volatile boolean indexed = false;
+    private final Map<NFPosition, Partition> partitions = new ConcurrentHashMap<>();
+    private final Object partitionLock = new Object();
+    private volatile boolean partitioned = false;
+
+    @PostConstruct
+    public void startup() {
+        gallery.addListener(this);
+        if (!isEnabled()) {
+            return;
+        }
+        indexed = true;
+        for (GalleryEntry entry : gallery.getEntries()) {
+            put(entry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        disposePartitions();
+    }
+
+    /**
+     * @return true if identification should be limited to the candidates selected by this index
+     */
+    public boolean isEnabled() {
+        return (config.isPrefilterEnabled() || config.isPositionFilterEnabled()) && gallery.isEnabled();
+    }
+
+    /**
+     * @return the candidates for a search with the given probe template: the subjectIds of the subjects whose features
+     * are most similar to those of the probe, best first, and the probe positions to which their records should be
+     * restricted, if any.  Returns null if the candidates cannot be narrowed down and all subjects should be searched.
+     * Only the subjects in buckets compatible with the probe are scanned to rank them.  If the search is narrowed by
+     * position alone, no candidates are selected, and the partitions for the probe positions should be searched instead
+     */
+    public Selection select(byte[] probeTemplate) {
+        if (!isEnabled() || !indexed || !gallery.isLoaded()) {
+            return null;
+        }
+        SubjectFeatures probe = extractFeatures(probeTemplate, false);
+        if (probe == null || probe.size() == 0) {
+            return null;
+        }
+        Set<NFPosition> positions = getSearchPositions(probe);
+        int numSubjects = features.size();
+        int numCandidates = numSubjects;
+        if (config.isPrefilterEnabled()) {
+            numCandidates = Math.max(config.getPrefilterMinCandidates(), (int) Math.ceil(numSubjects * config.getPrefilterCandidateFraction()));
+        }
+        boolean prefilter = (numCandidates < numSubjects);
+        if (!prefilter && positions == null) {
+            return null;
+        }
+        if (!prefilter) {
+            return new Selection(new ArrayList<>(), positions, 0, true);
+        }
+        boolean matchPositions = (positions != null);
+        boolean includeUnknown = config.isPositionFilterIncludeUnknown();
+
+        Set<String> scanned = new HashSet<>();
+        for (Map.Entry<Integer, Set<String>> bucket : buckets.entrySet()) {
+            if (probe.isCompatible(bucket.getKey(), matchPositions, includeUnknown, prefilter)) {
+                scanned.addAll(bucket.getValue());
+            }
+        }
+
+        // Keep only the best numCandidates, in a min-heap so the least similar retained candidate is evicted first
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Comparator.comparingDouble(Candidate::getSimilarity));
+        for (String subjectId : scanned) {
+            SubjectFeatures subjectFeatures = features.get(subjectId);
+            if (subjectFeatures == null) {
+                continue; // Removed since it was scanned
+            }
+            double similarity = probe.similarityTo(subjectFeatures, matchPositions, includeUnknown);
+            if (similarity < 0) {
+                continue; // No records at compatible positions
+            }
+            if (best.size() < numCandidates) {
+                best.add(new Candidate(subjectId, similarity));
+            }
+            else if (similarity > best.peek().getSimilarity()) {
+                best.poll();
+                best.add(new Candidate(subjectId, similarity));
+            }
+        }
+
+        List<Candidate> candidates = new ArrayList<>(best);
+        candidates.sort(Comparator.comparingDouble(Candidate::getSimilarity).reversed());
+        List<String> ret = new ArrayList<>(candidates.size());
+        for (Candidate candidate : candidates) {
+            ret.add(candidate.getSubjectId());
+        }
+        log.debug("Selected " + ret.size() + " candidates from " + scanned.size() + " scanned of " + numSubjects + " subjects");
+        return new Selection(ret, positions, scanned.size(), false);
+    }
+
+    /**
+     * Identifies the given probe against the partitions of the gallery at the given positions, and at no known position
+     * if configured, building the partitions from the index if this has not yet been done.  Concurrent searches share
+     * each partition, so per-request limits are not applied to it.  The matching license must be held
+     * @return the best score of each subject matched in any of the partitions
+     */
+    public Map<String, Integer> identifyInPartitions(NSubject probe, Set<NFPosition> positions) {
+        buildPartitions();
+        Set<NFPosition> searched = EnumSet.copyOf(positions);
+        if (config.isPositionFilterIncludeUnknown()) {
+            searched.add(NFPosition.UNKNOWN);
+        }
+        Map<String, Integer> ret = new HashMap<>();
+        for (NFPosition position : searched) {
+            Partition partition = partitions.get(position);
+            if (partition == null) {
+                continue;
+            }
+            RequestDeadline.check("identification");
+            partition.lock.readLock().lock();
+            try {
+                NBiometricStatus status = partition.client.identify(probe);
+                if (status == NBiometricStatus.TIMEOUT) {
+                    throw new DeadlineExceededException("identification");
+                }
+                if (status == NBiometricStatus.OK) {
+                    for (NMatchingResult result : probe.getMatchingResults()) {
+                        ret.merge(result.getId(), result.getScore(), Math::max);
+                    }
+                }
+                else if (status != NBiometricStatus.MATCH_NOT_FOUND) {
+                    log.warn("Identification in the " + position + " partition failed. Status: " + status);
+                }
+            }
+            finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the template of the given candidate, reduced to only those records at the given positions (and those of
+     * unknown position, if configured), or null if there are no such records.  The full template is returned if no
+     * records are excluded.  Templates reduced to a single position are prepared when the subject is indexed, and those
+     * reduced to several positions are kept once first needed
+     */
+    public byte[] getCandidateTemplate(String subjectId, Set<NFPosition> positions) {
+        SubjectFeatures subjectFeatures = features.get(subjectId);
+        if (subjectFeatures == null) {
+            return null;
+        }
+        Set<NFPosition> kept = subjectFeatures.getPositionsToKeep(positions, config.isPositionFilterIncludeUnknown());
+        if (kept.isEmpty()) {
+            return null;
+        }
+        if (kept.equals(subjectFeatures.getAllPositions())) {
+            return subjectFeatures.template;
+        }
+        if (kept.size() == 1) {
+            return getPositionTemplate(subjectFeatures, kept.iterator().next());
+        }
+        byte[] ret = subjectFeatures.restrictedTemplates.get(kept);
+        if (ret == null) {
+            ret = restrictToPositions(subjectFeatures.template, kept);
+            if (ret != null && subjectFeatures.restrictedTemplates.size() < MAX_RESTRICTED_TEMPLATES) {
+                subjectFeatures.restrictedTemplates.putIfAbsent(kept, ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of subjects in the index
+     */
+    public int size() {
+        return features.size();
+    }
+
+    //***** GALLERY LISTENER *****
+
+    @Override
+    public void put(GalleryEntry entry) {
+        if (!indexed) {
+            return;
+        }
+        SubjectFeatures subjectFeatures = extractFeatures(entry.getTemplate(), config.isPositionFilterEnabled());
+        features.compute(entry.getSubjectId(), (subjectId, existing) -> {
+            unbucket(subjectId, existing);
+            bucket(subjectId, subjectFeatures);
+            return subjectFeatures;
+        });
+        updatePartitions(entry.getSubjectId());
+    }
+
+    @Override
+    public void removed(String subjectId) {
+        features.computeIfPresent(subjectId, (id, existing) -> {
+            unbucket(id, existing);
+            return null;
+        });
+        updatePartitions(subjectId);
+    }
+
+    /**
+     * The gallery is cleared before it is loaded, so this determines whether the index is built as it loads
+     */
+    @Override
+    public void cleared() {
+        indexed = isEnabled();
+        disposePartitions();
+        features.clear();
+        buckets.clear();
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the known positions of the fingers of the given probe, or null if the search should not be restricted by position
+     */
+    private Set<NFPosition> getSearchPositions(SubjectFeatures probe) {
+        if (!config.isPositionFilterEnabled()) {
+            return null;
+        }
+        Set<NFPosition> ret = EnumSet.noneOf(NFPosition.class);
+        for (int i = 0; i < probe.size(); i++) {
+            if (probe.positions[i] == SubjectFeatures.UNKNOWN_POSITION) {
+                return null; // A probe finger of unknown position may be at any position
+            }
+            ret.add(NFPosition.values()[probe.positions[i]]);
+        }
+        return ret.isEmpty() ? null : ret;
+    }
+
+    /**
+     * Enrolls the indexed subjects in a partition client for each position, if this has not yet been done
+     */
+    private void buildPartitions() {
+        if (partitioned) {
+            return;
+        }
+        synchronized (partitionLock) {
+            if (partitioned) {
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            for (String subjectId : features.keySet()) {
+                syncPartitions(subjectId);
+            }
+            partitioned = true;
+            log.info("Partitioned " + features.size() + " subjects by position in " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    /**
+     * Brings the partitions up to date with the indexed features of the given subject, once they have been built.
+     * If this fails, the partitions are discarded, to be built again by the next search that needs them
+     */
+    private void updatePartitions(String subjectId) {
+        if (!partitioned) {
+            return;
+        }
+        synchronized (partitionLock) {
+            if (!partitioned) {
+                return;
+            }
+            licenseManager.obtainMatchingLicense();
+            try {
+                syncPartitions(subjectId);
+            }
+            catch (RuntimeException e) {
+                log.warn("Unable to update partitions for subject " + subjectId + ", discarding them", e);
+                disposePartitions();
+            }
+            finally {
+                licenseManager.releaseMatchingLicense();
+            }
+        }
+    }
+
+    /**
+     * Removes the given subject from every partition that holds it, and adds it to the partition for each position at
+     * which it is indexed.  Must be called holding the partition lock
+     */
+    private void syncPartitions(String subjectId) {
+        for (Partition partition : partitions.values()) {
+            if (partition.members.contains(subjectId)) {
+                partition.remove(subjectId);
+            }
+        }
+        SubjectFeatures subjectFeatures = features.get(subjectId);
+        if (subjectFeatures == null) {
+            return;
+        }
+        for (NFPosition position : subjectFeatures.getAllPositions()) {
+            Partition partition = partitions.computeIfAbsent(position, p -> new Partition(clientPool.createPartitionClient()));
+            partition.add(subjectId, getPositionTemplate(subjectFeatures, position));
+        }
+    }
+
+    private void disposePartitions() {
+        synchronized (partitionLock) {
+            partitioned = false;
+            for (Partition partition : partitions.values()) {
+                resourceTracker.dispose(partition.client);
+            }
+            partitions.clear();
+        }
+    }
+
+    /**
+     * @return the template of the given subject reduced to its records at the given position
+     */
+    private byte[] getPositionTemplate(SubjectFeatures subjectFeatures, NFPosition position) {
+        if (subjectFeatures.getAllPositions().size() == 1) {
+            return subjectFeatures.template;
+        }
+        byte[] ret = subjectFeatures.positionTemplates.get(position);
+        if (ret == null) {
+            ret = restrictToPositions(subjectFeatures.template, EnumSet.of(position));
+            subjectFeatures.positionTemplates.putIfAbsent(position, ret);
+        }
+        return ret;
+    }
+
+    private void bucket(String subjectId, SubjectFeatures subjectFeatures) {
+        if (subjectFeatures == null) {
+            return;
+        }
+        for (int i = 0; i < subjectFeatures.size(); i++) {
+            buckets.compute(subjectFeatures.getBucket(i), (key, subjectIds) -> {
+                Set<String> ret = (subjectIds == null ? ConcurrentHashMap.newKeySet() : subjectIds);
+                ret.add(subjectId);
+                return ret;
+            });
+        }
+    }
+
+    private void unbucket(String subjectId, SubjectFeatures subjectFeatures) {
+        if (subjectFeatures == null) {
+            return;
+        }
+        for (int i = 0; i < subjectFeatures.size(); i++) {
+            buckets.computeIfPresent(subjectFeatures.getBucket(i), (key, subjectIds) -> {
+                subjectIds.remove(subjectId);
+                return subjectIds.isEmpty() ? null : subjectIds;
+            });
+        }
+    }
+
+    /**
+     * @return the features of each finger record in the given composite template, or null if it cannot be read.
+     * If requested, the template reduced to the records at each of its positions is prepared from the same reading of it,
+     * for partitioning the gallery by position
+     */
+    protected SubjectFeatures extractFeatures(byte[] templateBytes, boolean prepareRestricted) {
+        if (templateBytes == null) {
+            return null;
+        }
+        NTemplate template = null;
+        try {
+            template = resourceTracker.track(new NTemplate(new NBuffer(templateBytes)));
+            if (template.getFingers() == null) {
+                return new SubjectFeatures(templateBytes, new byte[0], new byte[0], new int[0]);
+            }
+            List<NFRecord> records = template.getFingers().getRecords();
+            byte[] positions = new byte[records.size()];
+            byte[] patternClasses = new byte[records.size()];
+            int[] minutiaeCounts = new int[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                NFRecord record = records.get(i);
+                NFPosition position = record.getPosition();
+                positions[i] = (byte) (position == null ? NFPosition.UNKNOWN.ordinal() : position.ordinal());
+                NFPatternClass patternClass = record.getPatternClass();
+                patternClasses[i] = (byte) (patternClass == null ? NFPatternClass.UNKNOWN.ordinal() : patternClass.ordinal());
+                minutiaeCounts[i] = (record.getMinutiae() == null ? 0 : record.getMinutiae().size());
+            }
+            SubjectFeatures ret = new SubjectFeatures(templateBytes, positions, patternClasses, minutiaeCounts);
+            Set<NFPosition> allPositions = ret.getAllPositions();
+            if (prepareRestricted && allPositions.size() > 1) {
+                for (NFPosition position : allPositions) {
+                    ret.positionTemplates.put(position, restrictToPositions(template, EnumSet.of(position)));
+                }
+            }
+            return ret;
+        }
+        catch (Exception e) {
+            log.warn("Unable to extract features from template", e);
+            return null;
+        }
+        finally {
+            resourceTracker.dispose(template);
+        }
+    }
+
+    /**
+     * @return the given composite template, reduced to only those records at the given positions, or null if there are no such records
+     */
+    private byte[] restrictToPositions(byte[] templateBytes, Set<NFPosition> positions) {
+        NTemplate template = null;
+        try {
+            template = resourceTracker.track(new NTemplate(new NBuffer(templateBytes)));
+            return restrictToPositions(template, positions);
+        }
+        finally {
+            resourceTracker.dispose(template);
+        }
+    }
+
+    /**
+     * @return the given composite template, reduced to only those records at the given positions, or null if there are no such records
+     */
+    private byte[] restrictToPositions(NTemplate template, Set<NFPosition> positions) {
+        if (template.getFingers() == null) {
+            return null;
+        }
+        NFTemplate restricted = null;
+        try {
+            restricted = resourceTracker.track(new NFTemplate());
+            for (NFRecord record : template.getFingers().getRecords()) {
+                NFPosition position = (record.getPosition() == null ? NFPosition.UNKNOWN : record.getPosition());
+                if (positions.contains(position)) {
+                    restricted.getRecords().add(record);
+                }
+            }
+            return restricted.getRecords().isEmpty() ? null : restricted.save().toByteArray();
+        }
+        finally {
+            resourceTracker.dispose(restricted);
+        }
+    }
+
+    /**
+     * The cheap features of each finger record of a subject, held in compact arrays as one is kept for every enrolled subject
+     */
+    protected static class SubjectFeatures {
+
+        private static final int UNKNOWN_POSITION = NFPosition.UNKNOWN.ordinal();
+        private static final int UNKNOWN = NFPatternClass.UNKNOWN.ordinal();
+        private static final int UNABLE_TO_CLASSIFY = NFPatternClass.UNABLE_TO_CLASSIFY.ordinal();
+
+        private final byte[] template;
+        private final byte[] positions;
+        private final byte[] patternClasses;
+        private final int[] minutiaeCounts;
+        private final Map<NFPosition, byte[]> positionTemplates = new ConcurrentHashMap<>();
+        private final Map<Set<NFPosition>, byte[]> restrictedTemplates = new ConcurrentHashMap<>();
+
+        protected SubjectFeatures(byte[] template, byte[] positions, byte[] patternClasses, int[] minutiaeCounts) {
+            this.template = template;
+            this.positions = positions;
+            this.patternClasses = patternClasses;
+            this.minutiaeCounts = minutiaeCounts;
+        }
+
+        protected int size() {
+            return patternClasses.length;
+        }
+
+        /**
+         * @return the positions of all records of this subject, including UNKNOWN if any record has no known position
+         */
+        protected Set<NFPosition> getAllPositions() {
+            Set<NFPosition> ret = EnumSet.noneOf(NFPosition.class);
+            for (byte position : positions) {
+                ret.add(NFPosition.values()[position & 0xFF]);
+            }
+            return ret;
+        }
+
+        /**
+         * @return the positions of the records of this subject to keep when searching the given positions, including UNKNOWN
+         * if records of unknown position should be kept
+         */
+        protected Set<NFPosition> getPositionsToKeep(Set<NFPosition> searchPositions, boolean includeUnknown) {
+            Set<NFPosition> ret = getAllPositions();
+            ret.removeIf(position -> !searchPositions.contains(position) && !(includeUnknown && position == NFPosition.UNKNOWN));
+            return ret;
+        }
+
+        /**
+         * @return the key of the bucket for the given record, made up of its position, pattern class and minutiae band
+         */
+        protected int getBucket(int i) {
+            int band = Math.min(minutiaeCounts[i] / MINUTIAE_BAND_WIDTH, MAX_MINUTIAE_BAND);
+            return ((positions[i] & 0xFF) << 16) | ((patternClasses[i] & 0xFF) << 8) | band;
+        }
+
+        /**
+         * @return true if any record of this subject could match the records in the bucket with the given key.
+         * If matchPositions is true, the bucket must be at the position of a record, and if prefilter is true, it must
+         * also have a compatible pattern class and a minutiae band close to that of the record
+         */
+        protected boolean isCompatible(int bucket, boolean matchPositions, boolean includeUnknown, boolean prefilter) {
+            int position = bucket >>> 16;
+            int patternClass = (bucket >>> 8) & 0xFF;
+            int band = bucket & 0xFF;
+            for (int i = 0; i < size(); i++) {
+                if (matchPositions && position != (positions[i] & 0xFF) && !(includeUnknown && position == UNKNOWN_POSITION)) {
+                    continue;
+                }
+                if (prefilter) {
+                    if (!isUnclassified(patternClass) && !isUnclassified(patternClasses[i]) && patternClass != (patternClasses[i] & 0xFF)) {
+                        continue;
+                    }
+                    int recordBand = Math.min(minutiaeCounts[i] / MINUTIAE_BAND_WIDTH, MAX_MINUTIAE_BAND);
+                    if (Math.abs(band - recordBand) > MINUTIAE_BAND_TOLERANCE) {
+                        continue;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the sum, over each record of this subject, of its similarity to the most similar record of the other subject.
+         * If matchPositions is true, only records at the same position are compared, and -1 is returned if there are none
+         */
+        protected double similarityTo(SubjectFeatures other, boolean matchPositions, boolean includeUnknown) {
+            double total = 0;
+            boolean anyCompared = false;
+            for (int i = 0; i < size(); i++) {
+                double best = 0;
+                for (int j = 0; j < other.size(); j++) {
+                    if (matchPositions && positions[i] != other.positions[j] && !(includeUnknown && other.positions[j] == UNKNOWN_POSITION)) {
+                        continue;
+                    }
+                    anyCompared = true;
+                    best = Math.max(best, recordSimilarity(i, other, j));
+                }
+                total += best;
+            }
+            return (matchPositions && !anyCompared ? -1 : total);
+        }
+
+        /**
+         * @return the similarity of two records, between 0 and 2.  Records of differing known pattern classes
+         * rarely match, and records from the same finger tend to have a similar number of minutiae
+         */
+        protected double recordSimilarity(int i, SubjectFeatures other, int j) {
+            double similarity;
+            int a = patternClasses[i];
+            int b = other.patternClasses[j];
+            if (isUnclassified(a) || isUnclassified(b)) {
+                similarity = 0.5;
+            }
+            else {
+                similarity = (a == b ? 1 : 0);
+            }
+            int countA = minutiaeCounts[i];
+            int countB = other.minutiaeCounts[j];
+            int maxCount = Math.max(countA, countB);
+            similarity += (maxCount == 0 ? 1 : (double) Math.min(countA, countB) / maxCount);
+            return similarity;
+        }
+
+        private boolean isUnclassified(int patternClass) {
+            return patternClass == UNKNOWN || patternClass == UNABLE_TO_CLASSIFY;
+        }
+    }
+
+    /**
+     * The candidates selected for a search
+     */
+    public static class Selection {
+
+        private final List<String> subjectIds;
+        private final Set<NFPosition> positions;
+        private final int scanned;
+        private final boolean partitioned;
+
+        private Selection(List<String> subjectIds, Set<NFPosition> positions, int scanned, boolean partitioned) {
+            this.subjectIds = subjectIds;
+            this.positions = positions;
+            this.scanned = scanned;
+            this.partitioned = partitioned;
+        }
+
+        /**
+         * @return the subjectIds of the candidates, best first
+         */
+        public List<String> getSubjectIds() {
+            return subjectIds;
+        }
+
+        /**
+         * @return the positions to which the records of each candidate should be restricted, or null if they should not be
+         */
+        public Set<NFPosition> getPositions() {
+            return positions;
+        }
+
+        /**
+         * @return the number of subjects scanned to select the candidates
+         */
+        public int getScanned() {
+            return scanned;
+        }
+
+        /**
+         * @return true if the search was narrowed by position alone, so that the partitions for the positions should be
+         * searched rather than any candidates.  These hold exactly the subjects that could match, so there is no need to
+         * search all subjects if none of them match
+         */
+        public boolean isPartitioned() {
+            return partitioned;
+        }
+    }
+
+    /**
+     * A persistent client holding the records of every subject at one position.  Searches share the client, while changes
+     * to the gallery are applied to it one at a time, under the partition lock
+     */
+    private class Partition {
+
+        private final NBiometricClient client;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Set<String> members = new HashSet<>();
+
+        private Partition(NBiometricClient client) {
+            this.client = client;
+        }
+
+        private void add(String subjectId, byte[] template) {
+            NSubject subject = null;
+            NBiometricTask task = null;
+            try {
+                subject = resourceTracker.track(new NSubject());
+                subject.setTemplateBuffer(new NBuffer(template));
+                subject.setId(subjectId); // This needs to come last, or it gets reset
+                task = resourceTracker.track(client.createTask(EnumSet.of(NBiometricOperation.ENROLL), subject));
+                lock.writeLock().lock();
+                try {
+                    client.performTask(task);
+                }
+                finally {
+                    lock.writeLock().unlock();
+                }
+                if (task.getStatus() != NBiometricStatus.OK) {
+                    throw new BiometricServiceException("Unable to add subject " + subjectId + " to partition. Status: " + task.getStatus(), task.getError());
+                }
+                members.add(subjectId);
+            }
+            finally {
+                resourceTracker.dispose(task, subject);
+            }
+        }
+
+        private void remove(String subjectId) {
+            NBiometricStatus status;
+            lock.writeLock().lock();
+            try {
+                status = client.delete(subjectId);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+            if (status != NBiometricStatus.OK && status != NBiometricStatus.ID_NOT_FOUND) {
+                throw new BiometricServiceException("Unable to remove subject " + subjectId + " from partition. Status: " + status);
+            }
+            members.remove(subjectId);
+        }
+    }
+
+    private static class Candidate {
+
+        private final String subjectId;
+        private final double similarity;
+
+        private Candidate(String subjectId, double similarity) {
+            this.subjectId = subjectId;
+            this.similarity = similarity;
+        }
+
+        public String getSubjectId() {
+            return subjectId;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+}
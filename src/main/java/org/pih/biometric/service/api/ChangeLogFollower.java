@@ -0,0 +1,252 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.ChangesUnavailableException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.SubjectChange;
+import org.pih.biometric.service.model.SubjectPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Component that runs this node as a replica of another node, configured via the leaderUrl property.
+ * Changes are periodically pulled from the leader's /changes endpoint and applied incrementally to the local database,
+ * and the sequence of the last applied change is saved so that following resumes where it left off after a restart.
+ * Applying a change is idempotent, so re-applying changes after a failure part way through a batch is safe.
+ * Changes must follow on directly from the last applied change.  If the leader no longer has them, this node is
+ * re-synchronized with a full copy of the leader's subjects, and continues following changes from there.
+ * Changes are written directly to the database rather than through the enrollment API, so that the admission control,
+ * deadlines, and quality checks of this node never reject a change that the leader has already accepted.
+ */
+@Component
+public class ChangeLogFollower {
+
+    private static final int TIMEOUT_IN_MS = 30000;
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricMatchingEngine matchingEngine;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    private RestTemplate restTemplate;
+    private File stateFile;
+    private volatile long appliedSequence = 0;
+
+    @PostConstruct
+    public void startup() {
+        if (isEnabled()) {
+            SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+            requestFactory.setConnectTimeout(TIMEOUT_IN_MS);
+            requestFactory.setReadTimeout(TIMEOUT_IN_MS);
+            requestFactory.setBufferRequestBody(false);
+            restTemplate = new RestTemplate(requestFactory);
+            stateFile = getStateFile();
+            appliedSequence = readState();
+            log.info("Following changes from " + config.getLeaderUrl() + " after sequence " + appliedSequence);
+        }
+    }
+
+    /**
+     * @return true if this node is configured to follow a leader
+     */
+    public boolean isEnabled() {
+        return config.isMatchingServiceEnabled() && !StringUtils.isEmpty(config.getLeaderUrl());
+    }
+
+    /**
+     * @return the sequence, in the leader's change log, of the last change applied to this node
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Pulls and applies batches of changes from the leader until this node is caught up
+     */
+    @Scheduled(fixedDelayString = "${followerPollIntervalMs:5000}")
+    public synchronized void poll() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            try {
+                int numApplied;
+                do {
+                    numApplied = pullChanges();
+                }
+                while (numApplied >= config.getFollowerBatchSize());
+            }
+            catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.GONE) {
+                    throw e;
+                }
+                log.warn("Leader " + config.getLeaderUrl() + " no longer has changes since " + appliedSequence + ", re-synchronizing. "
+                        + e.getResponseBodyAsString());
+                resynchronize();
+            }
+            catch (ChangesUnavailableException e) {
+                log.warn("Leader " + config.getLeaderUrl() + " returned a gap in its changes, re-synchronizing. " + e.getMessage());
+                resynchronize();
+            }
+        }
+        catch (HttpClientErrorException e) {
+            log.error("Leader " + config.getLeaderUrl() + " rejected request for changes since " + appliedSequence
+                    + ". " + e.getResponseBodyAsString());
+        }
+        catch (Exception e) {
+            log.warn("Unable to pull changes from leader " + config.getLeaderUrl(), e);
+        }
+    }
+
+    /**
+     * Pulls the next batch of changes, applying each as it is read from the response
+     * @return the number of changes applied
+     */
+    protected int pullChanges() {
+        String url = UriComponentsBuilder.fromHttpUrl(config.getLeaderUrl()).path("/changes")
+                .queryParam("since", appliedSequence)
+                .queryParam("limit", config.getFollowerBatchSize())
+                .toUriString();
+        try {
+            return restTemplate.execute(url, HttpMethod.GET, null, response -> {
+                int numApplied = 0;
+                JsonParser parser = objectMapper.getFactory().createParser(response.getBody());
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new BiometricServiceException("Unexpected response from leader at " + url);
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    SubjectChange change = objectMapper.readValue(parser, SubjectChange.class);
+                    if (change.getSequence() != appliedSequence + 1) {
+                        throw new ChangesUnavailableException(appliedSequence, change.getSequence() - 1);
+                    }
+                    apply(change);
+                    appliedSequence = change.getSequence();
+                    numApplied++;
+                }
+                if (numApplied > 0) {
+                    log.debug("Applied " + numApplied + " changes from leader, now at sequence " + appliedSequence);
+                }
+                return numApplied;
+            });
+        }
+        finally {
+            saveState();
+        }
+    }
+
+    /**
+     * Re-synchronizes this node with a full copy of the leader's subjects, when the changes following the last change applied
+     * are no longer available.  The leader's last sequence is read before copying, so that changes made while copying are
+     * applied again afterwards, which is safe since applying a change is idempotent.  Subjects no longer on the leader are deleted.
+     */
+    protected void resynchronize() {
+        String leaderUrl = config.getLeaderUrl();
+        Long sequence = restTemplate.getForObject(UriComponentsBuilder.fromHttpUrl(leaderUrl).path("/changes/sequence").toUriString(), Long.class);
+        Set<String> leaderSubjectIds = new HashSet<>();
+        String cursor = null;
+        do {
+            UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(leaderUrl).path("/subjects")
+                    .queryParam("limit", config.getFollowerBatchSize());
+            if (cursor != null) {
+                builder.queryParam("cursor", cursor);
+            }
+            SubjectPage page = restTemplate.getForObject(builder.toUriString(), SubjectPage.class);
+            if (page.getSubjects() != null) {
+                for (BiometricSubject subject : page.getSubjects()) {
+                    matchingEngine.applyReplicatedSubject(subject);
+                }
+            }
+            leaderSubjectIds.addAll(page.getSubjectIds());
+            cursor = page.getNextCursor();
+        }
+        while (cursor != null);
+
+        int numDeleted = 0;
+        for (String subjectId : matchingEngine.getSubjectIds()) {
+            if (!leaderSubjectIds.contains(subjectId)) {
+                apply(new SubjectChange(SubjectChange.Type.DELETE, subjectId, null));
+                numDeleted++;
+            }
+        }
+        appliedSequence = sequence;
+        saveState();
+        log.info("Re-synchronized " + leaderSubjectIds.size() + " subjects from leader, deleted " + numDeleted
+                + " subjects no longer on the leader, now at sequence " + appliedSequence);
+    }
+
+    /**
+     * Applies the given change to the local database
+     */
+    protected void apply(SubjectChange change) {
+        matchingEngine.applyReplicatedChange(change);
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the configured follower state file, defaulting to a file alongside the sqlite database
+     */
+    private File getStateFile() {
+        if (!StringUtils.isEmpty(config.getFollowerStatePath())) {
+            return new File(config.getFollowerStatePath());
+        }
+        return new File(config.getSqliteDatabasePath() + ".follower");
+    }
+
+    private long readState() {
+        if (!stateFile.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(FileUtils.readFileToString(stateFile, "UTF-8").trim());
+        }
+        catch (Exception e) {
+            throw new BiometricServiceException("Unable to read follower state from " + stateFile, e);
+        }
+    }
+
+    private void saveState() {
+        try {
+            FileUtils.writeStringToFile(stateFile, Long.toString(appliedSequence), "UTF-8");
+        }
+        catch (IOException e) {
+            log.warn("Unable to save follower state to " + stateFile, e);
+        }
+    }
+}
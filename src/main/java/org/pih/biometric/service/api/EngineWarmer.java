@@ -0,0 +1,168 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.BiometricTemplateFormat;
+import org.pih.biometric.service.model.Fingerprint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Component that warms up the matching engine once the application has started, so that the first real request does
+ * not pay for loading the native libraries, obtaining licenses, creating clients, and initializing the matcher.
+ * The client pool is filled for each matching profile, the database is read, and a sample subject is enrolled,
+ * identified, and verified against a scratch database, leaving the enrolled subjects untouched.  The sample is read
+ * from warmupTemplatePath if configured (a proprietary template, Base64 encoded), or is otherwise the first enrolled
+ * subject.  The gallery, if enabled, has already been loaded by the time the application has started.
+ * The warm-up runs in the background, and the service reports that it is ready only once it has completed, see
+ * HealthMonitor.  A failed warm-up is logged and reported, but does not hold the service back, since requests may
+ * still succeed.
+ */
+@Component
+public class EngineWarmer {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricMatchingEngine matchingEngine;
+
+    @Autowired
+    BiometricClientPool clientPool;
+
+    @Autowired
+    NativeCallExecutor nativeCallExecutor;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    PeerCoordinator peerCoordinator;
+
+    private volatile boolean warmedUp = false;
+    private volatile Long warmupMs = null;
+    private volatile String statusMessage = "Warming up";
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!isEnabled()) {
+            warmedUp = true;
+            statusMessage = null;
+            return;
+        }
+        Thread thread = new Thread(this::warmUp, "engine-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true if this node is configured to warm up its matching engine.  A coordinator has no matcher of its own
+     */
+    public boolean isEnabled() {
+        return config.isWarmupEnabled() && config.isMatchingServiceEnabled() && !peerCoordinator.isEnabled();
+    }
+
+    /**
+     * Warms up the matching engine, recording how long it took and whether it succeeded
+     */
+    public synchronized void warmUp() {
+        log.info("Warming up matching engine");
+        long startTime = System.currentTimeMillis();
+        String message = null;
+        try {
+            nativeCallExecutor.run(() -> {
+                clientPool.fill(null);
+                for (String profile : config.getMatchingProfiles().keySet()) {
+                    clientPool.fill(profile);
+                }
+            });
+            matchingEngine.getNumberEnrolled();
+
+            BiometricSubject sample = getSample();
+            if (sample == null) {
+                message = "No template available to warm up matching";
+                log.info(message + ", configure warmupTemplatePath to warm up the matcher before the first enrollment");
+            }
+            else {
+                File scratchDatabase = File.createTempFile("biometrics-warmup", ".db");
+                try {
+                    matchingEngine.warmUp(sample, scratchDatabase);
+                }
+                finally {
+                    FileUtils.deleteQuietly(scratchDatabase);
+                }
+            }
+        }
+        catch (Exception e) {
+            message = "Warm-up failed: " + e.getMessage();
+            log.warn("Unable to warm up matching engine, the first requests may be slow", e);
+        }
+        finally {
+            warmupMs = System.currentTimeMillis() - startTime;
+            statusMessage = message;
+            warmedUp = true;
+        }
+        log.info("Matching engine warm-up completed in " + warmupMs + "ms");
+    }
+
+    /**
+     * @return true once the warm-up has completed, or if it is not enabled
+     */
+    public boolean isWarmedUp() {
+        return warmedUp;
+    }
+
+    /**
+     * @return the time the warm-up took, in milliseconds, or null if it has not completed
+     */
+    public Long getWarmupMs() {
+        return warmupMs;
+    }
+
+    /**
+     * @return the reason the warm-up is incomplete or failed, or null if it succeeded
+     */
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the configured warm-up subject, or the first enrolled subject, or null if there is neither
+     */
+    private BiometricSubject getSample() throws Exception {
+        if (!StringUtils.isEmpty(config.getWarmupTemplatePath())) {
+            Fingerprint fp = new Fingerprint();
+            fp.setFormat(BiometricTemplateFormat.PROPRIETARY);
+            fp.setTemplate(FileUtils.readFileToString(new File(config.getWarmupTemplatePath()), "UTF-8").trim());
+            BiometricSubject sample = new BiometricSubject();
+            sample.addFingerprint(fp);
+            return sample;
+        }
+        // Without the gallery, the database can only list all subjects at once, which the warm-up accepts as a one-off cost
+        boolean galleryLoaded = gallery.isEnabled() && gallery.isLoaded();
+        List<String> subjectIds = (galleryLoaded ? matchingEngine.getSubjectIds(null, 1, null) : matchingEngine.getSubjectIds());
+        return (subjectIds.isEmpty() ? null : matchingEngine.getSubject(subjectIds.get(0)));
+    }
+}
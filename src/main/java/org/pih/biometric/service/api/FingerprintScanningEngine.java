@@ -10,6 +10,7 @@
 package org.pih.biometric.service.api;
 
 import com.neurotec.biometrics.NBiometricStatus;
+import com.neurotec.biometrics.NFAttributes;
 import com.neurotec.biometrics.NFPosition;
 import com.neurotec.biometrics.NFinger;
 import com.neurotec.biometrics.NSubject;
@@ -27,6 +28,7 @@ import org.pih.biometric.service.exception.BadScanException;
 import org.pih.biometric.service.exception.BiometricServiceException;
 import org.pih.biometric.service.exception.DeviceNotFoundException;
 import org.pih.biometric.service.exception.DeviceTimeoutException;
+import org.pih.biometric.service.exception.PoorQualityException;
 import org.pih.biometric.service.exception.ServiceNotEnabledException;
 import org.pih.biometric.service.model.BiometricConfig;
 import org.pih.biometric.service.model.BiometricScanner;
@@ -48,6 +50,7 @@ import java.util.List;
 public class FingerprintScanningEngine {
 
     static private final Integer TIMEOUT_IN_MS = 5000;
+    static private final int MAX_QUALITY = 100;
 
 	protected final Log log = LogFactory.getLog(this.getClass());
 
@@ -57,9 +60,12 @@ public class FingerprintScanningEngine {
     @Autowired
     BiometricLicenseManager licenseManager;
 
+    @Autowired
+    NativeResourceTracker resourceTracker;
+
     NBiometricClient client = null;
 
-    NDeviceManager deviceManager = null;
+    volatile NDeviceManager deviceManager = null;
 
     @PostConstruct
     public void init() {
@@ -84,6 +90,14 @@ public class FingerprintScanningEngine {
     }
 
 
+    /**
+     * @return true if the device manager, which watches for scanners being connected and disconnected, was created.
+     * This does not wait for a scan in progress
+     */
+    public boolean isDeviceManagerAlive() {
+        return deviceManager != null;
+    }
+
     /**
      * Retrieves all connected Fingerprint Scanners
      */
@@ -117,7 +131,10 @@ public class FingerprintScanningEngine {
 
 
     /**
-     * Scans a fingerprint using the given device, associating with the finger(s) of the given type
+     * Scans a fingerprint using the given device, associating with the finger(s) of the given type.
+     * If the quality of the scan is below the configured minimum, the finger is captured again, up to the configured
+     * number of attempts, after which the scan is rejected.  A finger whose quality could not be assessed is also captured
+     * again, and is only returned after the last attempt if no minimum is configured
      */
     public synchronized Fingerprint scanFingerprint(String type) {
 
@@ -133,14 +150,44 @@ public class FingerprintScanningEngine {
             }
         }
 
+        int attempts = Math.max(1, config.getScanCaptureAttempts());
+        Integer bestQuality = null;
+        Fingerprint unassessed = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            Fingerprint fp = captureFingerprint(type);
+            if (fp.getQuality() == null) {
+                unassessed = fp;
+                log.info("Fingerprint quality could not be assessed on attempt " + attempt + " of " + attempts);
+                continue;
+            }
+            if (fp.getQuality() >= config.getMinScanQuality()) {
+                return fp;
+            }
+            bestQuality = (bestQuality == null ? fp.getQuality() : Math.max(bestQuality, fp.getQuality()));
+            log.info("Fingerprint quality of " + fp.getQuality() + " is below the minimum of " + config.getMinScanQuality() + " on attempt " + attempt + " of " + attempts);
+        }
+        if (bestQuality == null) {
+            if (config.getMinScanQuality() <= 0) {
+                return unassessed;
+            }
+            throw new PoorQualityException(config.getMinScanQuality());
+        }
+        throw new PoorQualityException(bestQuality, config.getMinScanQuality());
+    }
+
+    /**
+     * Captures a single fingerprint from the device, and extracts its template
+     */
+    private Fingerprint captureFingerprint(String type) {
+
         log.debug("Scanning fingerprint from device");
 
         NSubject subject = null;
         NFinger finger = null;
 
         try {
-            subject = new NSubject();
-            finger = new NFinger();
+            subject = resourceTracker.track(new NSubject());
+            finger = resourceTracker.track(new NFinger());
             NFPosition position = getFingerPosition(type);
             if (position != null) {
                 finger.setPosition(getFingerPosition(type));
@@ -165,6 +212,7 @@ public class FingerprintScanningEngine {
                 Fingerprint fp = new Fingerprint();
                 fp.setTemplate(encode(subject.getTemplateBuffer().toByteArray()));
                 fp.setImage(encode(finger.getImage().save().toByteArray()));
+                fp.setQuality(getQuality(finger));
 
                 return fp;
             }
@@ -213,7 +261,7 @@ public class FingerprintScanningEngine {
      * @return Biometric client, configured with appropriate properties from configuration
      */
     private void createBiometricClient() {
-        client = new NBiometricClient();
+        client = resourceTracker.trackRetained(new NBiometricClient());
         client.setUseDeviceManager(true);
         client.setDatabaseConnectionToSQLite(config.getSqliteDatabasePath());
         client.setFingersTemplateSize(NTemplateSize.valueOf(config.getTemplateSize().name()));
@@ -245,6 +293,23 @@ public class FingerprintScanningEngine {
         client.setFingerScanner(scanner);
     }
 
+    /**
+     * @return the quality, from 0 to 100, assessed for the given finger when its template was extracted, or null if it
+     * could not be assessed.  Values above 100 are not qualities, but mark an assessment that failed (254) or is unknown (255)
+     */
+    private Integer getQuality(NFinger finger) {
+        Integer quality = null;
+        if (finger.getObjects() != null) {
+            for (NFAttributes attributes : finger.getObjects()) {
+                int assessed = attributes.getQuality() & 0xFF;
+                if (assessed <= MAX_QUALITY) {
+                    quality = (quality == null ? assessed : Math.max(quality, assessed));
+                }
+            }
+        }
+        return quality;
+    }
+
     /**
      * @return the NFPosition that matches the given type (by enum lookup)
      */
@@ -261,9 +326,7 @@ public class FingerprintScanningEngine {
     private void dispose(NObject... objects) {
         for (NObject o : objects) {
             log.debug("Disposing of " + o);
-            if (o != null) {
-                o.dispose();
-            }
         }
+        resourceTracker.dispose(objects);
     }
 }
\ No newline at end of file
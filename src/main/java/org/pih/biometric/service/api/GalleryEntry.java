@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+/**
+ * An enrolled subject as held in the in-memory gallery
+ * version:  the change log sequence of the last change applied to this subject
+ * modified:  the time of the last change applied to this subject, or UNKNOWN_MODIFIED if it was loaded from the database
+ * template:  the composite proprietary template, as saved in the database
+ */
+public class GalleryEntry {
+
+    /**
+     * The database does not record when each subject was last changed, so subjects loaded from it are known only to have
+     * been changed before the gallery's modifiedKnownSince
+     */
+    public static final long UNKNOWN_MODIFIED = 0;
+
+    private final String subjectId;
+    private final long version;
+    private final long modified;
+    private final byte[] template;
+
+    public GalleryEntry(String subjectId, long version, long modified, byte[] template) {
+        this.subjectId = subjectId;
+        this.version = version;
+        this.modified = modified;
+        this.template = template;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public boolean isModifiedKnown() {
+        return modified != UNKNOWN_MODIFIED;
+    }
+
+    public byte[] getTemplate() {
+        return template;
+    }
+}
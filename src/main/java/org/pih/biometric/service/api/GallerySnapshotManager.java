@@ -0,0 +1,343 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.ChangesUnavailableException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Component that periodically writes the in-memory gallery to a compact binary snapshot, and restores the gallery
+ * from the latest valid snapshot on startup, replaying only those changes recorded since the snapshot was taken.
+ * If no valid snapshot exists, the gallery is loaded from the database and a snapshot is written immediately.
+ *
+ * Snapshot format:  [magic][format version][sequence][created][modified known since][count] followed by count entries of
+ * [subjectId length][subjectId][version][modified][template length][template], and a trailing crc32 of all prior bytes
+ */
+@Component
+public class GallerySnapshotManager {
+
+    private static final int MAGIC = 0x50494847; // PIHG
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8 + 4;
+    private static final String FILE_PREFIX = "gallery-";
+    private static final String FILE_SUFFIX = ".snapshot";
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    SubjectChangeLog changeLog;
+
+    @Autowired
+    BiometricMatchingEngine matchingEngine;
+
+    @PostConstruct
+    public void startup() {
+        if (gallery.isEnabled()) {
+            loadGallery();
+        }
+    }
+
+    /**
+     * Populates the gallery from the latest valid snapshot, or from the database if there is none,
+     * and then applies any changes recorded since
+     */
+    public synchronized void loadGallery() {
+        long startTime = System.currentTimeMillis();
+        gallery.clear();
+
+        boolean loadedFromDatabase = false;
+        Long sequence = null;
+        for (File snapshot : getSnapshotFiles()) {
+            try {
+                sequence = readSnapshot(snapshot);
+                changeLog.advanceTo(sequence);
+                log.info("Loaded gallery snapshot " + snapshot.getName() + " with " + gallery.size() + " subjects");
+                break;
+            }
+            catch (Exception e) {
+                log.warn("Unable to load gallery snapshot " + snapshot + ", trying an earlier snapshot", e);
+                gallery.clear();
+            }
+        }
+        if (sequence == null) {
+            log.info("No valid gallery snapshot found, loading gallery from database");
+            sequence = loadFromDatabase();
+            loadedFromDatabase = true;
+        }
+
+        int numReplayed;
+        try {
+            numReplayed = replaySince(sequence);
+        }
+        catch (ChangesUnavailableException e) {
+            if (loadedFromDatabase) {
+                throw e;
+            }
+            log.warn("Changes since the gallery snapshot are no longer in the change log, loading gallery from database. " + e.getMessage());
+            gallery.clear();
+            sequence = loadFromDatabase();
+            loadedFromDatabase = true;
+            numReplayed = replaySince(sequence);
+        }
+        gallery.setLoaded(true);
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        log.info("Gallery loaded with " + gallery.size() + " subjects, " + numReplayed + " changes replayed, in " + elapsed + "ms");
+
+        if (loadedFromDatabase) {
+            takeSnapshot();
+        }
+    }
+
+    /**
+     * Writes the current gallery to a new snapshot, removes snapshots that are no longer needed,
+     * and removes changes from the change log that are contained in all remaining snapshots
+     */
+    @Scheduled(initialDelayString = "${snapshotIntervalMs:900000}", fixedDelayString = "${snapshotIntervalMs:900000}")
+    public synchronized void takeSnapshot() {
+        if (!gallery.isEnabled() || !gallery.isLoaded()) {
+            return;
+        }
+        // The change log advances its sequence and applies the change to the gallery together while holding its lock,
+        // so every change up to this sequence is in the gallery.  Changes recorded after the sequence is read may also
+        // be captured, which is harmless as replaying them in order on startup leaves the same result.
+        long sequence = changeLog.getLastSequence();
+        List<File> existingSnapshots = getSnapshotFiles();
+        if (!existingSnapshots.isEmpty() && getSequence(existingSnapshots.get(0)) == sequence) {
+            log.debug("No changes since last gallery snapshot at sequence " + sequence);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        File directory = getSnapshotDirectory();
+        directory.mkdirs();
+        File snapshot = new File(directory, FILE_PREFIX + sequence + FILE_SUFFIX);
+        File tmpFile = new File(directory, snapshot.getName() + ".tmp");
+
+        List<GalleryEntry> entries = new ArrayList<>(gallery.getEntries());
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = new FileOutputStream(tmpFile);
+            CheckedOutputStream checkedOut = new CheckedOutputStream(fileOut, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checkedOut));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(sequence);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(gallery.getModifiedKnownSince());
+            out.writeInt(entries.size());
+            for (GalleryEntry entry : entries) {
+                byte[] subjectId = entry.getSubjectId().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(subjectId.length);
+                out.write(subjectId);
+                out.writeLong(entry.getVersion());
+                out.writeLong(entry.getModified());
+                if (entry.getTemplate() == null) {
+                    out.writeInt(-1);
+                }
+                else {
+                    out.writeInt(entry.getTemplate().length);
+                    out.write(entry.getTemplate());
+                }
+            }
+            out.flush();
+            out.writeLong(checkedOut.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+            fileOut.close();
+            Files.move(tmpFile.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            tmpFile.delete();
+            throw new BiometricServiceException("Unable to write gallery snapshot to " + snapshot, e);
+        }
+        finally {
+            IOUtils.closeQuietly(fileOut);
+        }
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        log.info("Wrote gallery snapshot " + snapshot.getName() + " with " + entries.size() + " subjects in " + elapsed + "ms");
+
+        removeOldSnapshots();
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * Applies the changes recorded after the given sequence to the gallery
+     * @return the number of changes applied
+     */
+    private int replaySince(long sequence) {
+        return changeLog.readSince(sequence, change -> {
+            gallery.apply(change);
+            return true;
+        });
+    }
+
+    /**
+     * The database does not record when each subject was changed, so the loaded entries have an unknown modification
+     * time, and the gallery only vouches for modification times from now on
+     * @return the sequence that the gallery reflects after loading all templates from the database
+     */
+    private long loadFromDatabase() {
+        final long sequence = changeLog.getLastSequence();
+        long modifiedKnownSince = System.currentTimeMillis();
+        matchingEngine.forEachSubjectTemplate((subjectId, template) -> {
+            gallery.put(new GalleryEntry(subjectId, sequence, GalleryEntry.UNKNOWN_MODIFIED, template));
+        });
+        gallery.setModifiedKnownSince(modifiedKnownSince);
+        log.warn("Modification times of subjects loaded from the database are unknown, so listing by modification time is only available from " + modifiedKnownSince);
+        return sequence;
+    }
+
+    /**
+     * Reads the given snapshot through a buffered stream, verifies its checksum, and only then loads its entries into
+     * the gallery, so that a corrupt snapshot leaves the gallery untouched
+     * @return the sequence of the last change contained in the snapshot
+     */
+    private long readSnapshot(File snapshot) throws IOException {
+        DataInputStream in = null;
+        try {
+            if (snapshot.length() < HEADER_LENGTH + 8) {
+                throw new IOException("Snapshot is truncated");
+            }
+            CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(new FileInputStream(snapshot)), new CRC32());
+            in = new DataInputStream(checkedIn);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("File is not a gallery snapshot");
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version: " + formatVersion);
+            }
+            long sequence = in.readLong();
+            in.readLong(); // created
+            long modifiedKnownSince = in.readLong();
+            int count = readLength(in, snapshot, false);
+            List<GalleryEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] subjectId = new byte[readLength(in, snapshot, false)];
+                in.readFully(subjectId);
+                long version = in.readLong();
+                long modified = in.readLong();
+                byte[] template = null;
+                int templateLength = readLength(in, snapshot, true);
+                if (templateLength >= 0) {
+                    template = new byte[templateLength];
+                    in.readFully(template);
+                }
+                entries.add(new GalleryEntry(new String(subjectId, StandardCharsets.UTF_8), version, modified, template));
+            }
+            long expectedCrc = checkedIn.getChecksum().getValue();
+            if (in.readLong() != expectedCrc) {
+                throw new IOException("Snapshot checksum does not match");
+            }
+            for (GalleryEntry entry : entries) {
+                gallery.put(entry);
+            }
+            gallery.setModifiedKnownSince(modifiedKnownSince);
+            return sequence;
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the next length read from the snapshot, which cannot exceed the size of the snapshot unless it is corrupt
+     */
+    private int readLength(DataInputStream in, File snapshot, boolean nullable) throws IOException {
+        int length = in.readInt();
+        if (length < (nullable ? -1 : 0) || length > snapshot.length()) {
+            throw new IOException("Snapshot contains an invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Removes all but the configured number of most recent snapshots, and truncates the change log
+     * to the sequence of the oldest snapshot kept, so that any kept snapshot can still be brought up to date
+     */
+    private void removeOldSnapshots() {
+        List<File> snapshots = getSnapshotFiles();
+        int numToKeep = Math.max(1, config.getSnapshotsToKeep());
+        for (int i = numToKeep; i < snapshots.size(); i++) {
+            log.debug("Removing old gallery snapshot " + snapshots.get(i).getName());
+            snapshots.get(i).delete();
+        }
+        List<File> kept = snapshots.subList(0, Math.min(numToKeep, snapshots.size()));
+        if (!kept.isEmpty()) {
+            changeLog.truncateThrough(getSequence(kept.get(kept.size() - 1)));
+        }
+    }
+
+    /**
+     * @return all snapshot files in the snapshot directory, most recent first
+     */
+    private List<File> getSnapshotFiles() {
+        File[] files = getSnapshotDirectory().listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> ret = new ArrayList<>(Arrays.asList(files));
+        ret.sort(Comparator.comparingLong(this::getSequence).reversed());
+        return ret;
+    }
+
+    private long getSequence(File snapshot) {
+        String name = snapshot.getName();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * @return the configured snapshot directory, defaulting to a directory alongside the sqlite database
+     */
+    private File getSnapshotDirectory() {
+        if (!StringUtils.isEmpty(config.getSnapshotDirectory())) {
+            return new File(config.getSnapshotDirectory());
+        }
+        return new File(config.getSqliteDatabasePath() + ".snapshots");
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.HealthCheck;
+import org.pih.biometric.service.model.ReadinessStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Component that reports whether the system is alive and whether it is ready to serve requests, from state already held
+ * in memory, so that probes never use the matching engine, a client, or a license.
+ * The system is alive unless one of its components can no longer work: the client pool failed to create a client and
+ * has not provided one since, or the device manager that watches for scanners was not created.  It is ready once alive, licensed, warmed up,
+ * with the gallery loaded, and with fewer than readinessQueueThreshold operations waiting for admission.
+ * Matching checks only apply to nodes with a matching engine of their own, and scanning checks to nodes with scanning enabled
+ */
+@Component
+public class HealthMonitor {
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    EngineWarmer warmer;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    BiometricLicenseManager licenseManager;
+
+    @Autowired
+    BiometricClientPool clientPool;
+
+    @Autowired
+    AdmissionManager admissionManager;
+
+    @Autowired
+    PeerCoordinator peerCoordinator;
+
+    @Autowired
+    FingerprintScanningEngine scanningEngine;
+
+    /**
+     * @return the checks that determine whether the system is alive
+     */
+    public List<HealthCheck> getLiveness() {
+        List<HealthCheck> ret = new ArrayList<>();
+        if (isMatchingLocal()) {
+            String error = clientPool.getLastError();
+            ret.add(new HealthCheck("clientPool", error == null, error));
+        }
+        if (config.isFingerprintScanningEnabled()) {
+            boolean alive = scanningEngine.isDeviceManagerAlive();
+            ret.add(new HealthCheck("deviceManager", alive, alive ? null : "Device manager was not created"));
+        }
+        return ret;
+    }
+
+    /**
+     * @return whether the system is ready to serve requests, along with each of the checks that determine this
+     */
+    public ReadinessStatus getReadiness() {
+        ReadinessStatus status = new ReadinessStatus();
+        List<HealthCheck> broken = getLiveness();
+        if (isMatchingLocal()) {
+            String error = licenseManager.getLastError(BiometricLicenseManager.FINGER_MATCHING_COMPONENT);
+            broken.add(new HealthCheck("matchingLicense", error == null, error));
+        }
+        if (config.isFingerprintScanningEnabled()) {
+            boolean held = licenseManager.getLeaseCount(BiometricLicenseManager.FINGER_SCANNING_COMPONENT) > 0;
+            broken.add(new HealthCheck("scanningLicense", held, held ? null : "Scanning license is not held"));
+        }
+
+        List<HealthCheck> starting = new ArrayList<>();
+        starting.add(new HealthCheck("warmup", warmer.isWarmedUp(), warmer.getStatusMessage()));
+        if (gallery.isEnabled()) {
+            starting.add(new HealthCheck("gallery", gallery.isLoaded(), gallery.isLoaded() ? null : "Gallery is loading"));
+        }
+
+        int waiting = admissionManager.getWaitingCount();
+        boolean belowThreshold = (config.getReadinessQueueThreshold() <= 0 || waiting < config.getReadinessQueueThreshold());
+        HealthCheck queue = new HealthCheck("admissionQueue", belowThreshold, waiting + " operations waiting");
+
+        if (!isHealthy(broken)) {
+            status.setState(ReadinessStatus.State.BROKEN);
+        }
+        else if (!isHealthy(starting)) {
+            status.setState(ReadinessStatus.State.WARMING_UP);
+        }
+        else if (!queue.isHealthy()) {
+            status.setState(ReadinessStatus.State.SATURATED);
+        }
+        else {
+            status.setState(ReadinessStatus.State.READY);
+        }
+        status.setReady(status.getState() == ReadinessStatus.State.READY);
+        status.setWarmedUp(warmer.isWarmedUp());
+        status.setWarmupMs(warmer.getWarmupMs());
+        status.setGalleryLoaded(gallery.isEnabled() && gallery.isLoaded());
+        status.setStatusMessage(warmer.getStatusMessage());
+        status.getChecks().addAll(broken);
+        status.getChecks().addAll(starting);
+        status.getChecks().add(queue);
+        return status;
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return true if this node runs a matching engine of its own, rather than coordinating peers
+     */
+    private boolean isMatchingLocal() {
+        return config.isMatchingServiceEnabled() && !peerCoordinator.isEnabled();
+    }
+
+    private boolean isHealthy(List<HealthCheck> checks) {
+        for (HealthCheck check : checks) {
+            if (!check.isHealthy()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
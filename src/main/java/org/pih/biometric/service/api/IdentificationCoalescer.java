@@ -0,0 +1,202 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.DeadlineExceededException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.IdentificationOptions;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Component that ensures that identical identification requests made at the same time share a single search.
+ * Requests are identical if they have the same fingerprints and options, and no subjects have changed in between.
+ * The result of each search can also be remembered for a short, configurable period, so that a request repeated
+ * immediately afterwards (eg. a retry) receives the same result without searching again.
+ * Each request receives its own copy of the shared result.  If a shared search exceeds the deadline of the request that
+ * started it, the requests waiting on it that still have time search again rather than failing with it.
+ */
+@Component
+public class IdentificationCoalescer {
+
+    private static final int MAX_MEMO_SIZE = 1000;
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private final Map<String, CompletableFuture<IdentificationResult>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, MemoizedResult> memo = new ConcurrentHashMap<>();
+    private volatile long generation = 0;
+
+    /**
+     * @return the result of the given search, shared with any identical search that is in progress or recently completed
+     */
+    public IdentificationResult execute(BiometricSubject subject, IdentificationOptions options, Supplier<IdentificationResult> search) {
+        String key = getKey(subject, options);
+        while (true) {
+            MemoizedResult memoized = (config.getMatchResultMemoMs() > 0 ? memo.get(key) : null);
+            if (memoized != null) {
+                if (memoized.expires > System.currentTimeMillis()) {
+                    log.debug("Returning remembered result of identical search");
+                    return new IdentificationResult(memoized.result);
+                }
+                memo.remove(key, memoized);
+            }
+
+            CompletableFuture<IdentificationResult> future = new CompletableFuture<>();
+            CompletableFuture<IdentificationResult> existing = inFlight.putIfAbsent(key, future);
+            if (existing != null) {
+                log.debug("Waiting for identical search in progress");
+                try {
+                    return new IdentificationResult(await(existing));
+                }
+                catch (DeadlineExceededException e) {
+                    if (!existing.isCompletedExceptionally() || !hasTimeRemaining()) {
+                        throw e;
+                    }
+                    log.debug("Identical search exceeded the deadline of its own request, searching again");
+                    inFlight.remove(key, existing);
+                    continue;
+                }
+            }
+            try {
+                IdentificationResult result = search.get();
+                remember(key, result);
+                future.complete(result);
+                return new IdentificationResult(result);
+            }
+            catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            }
+            finally {
+                inFlight.remove(key, future);
+            }
+        }
+    }
+
+    /**
+     * Indicates that the enrolled subjects have changed, so that no search started earlier is shared with later requests
+     */
+    public synchronized void invalidate() {
+        generation++;
+        memo.clear();
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * Waits for the given search to complete, but no longer than the deadline of the current request, if any
+     */
+    private IdentificationResult await(CompletableFuture<IdentificationResult> future) {
+        try {
+            Long remaining = RequestDeadline.getRemainingMs();
+            if (remaining == null) {
+                return future.get();
+            }
+            return future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            throw new DeadlineExceededException("identification");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BiometricServiceException("Interrupted while waiting for identical search", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BiometricServiceException("Identical search failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return true if the current request has no deadline, or its deadline has not yet passed
+     */
+    private boolean hasTimeRemaining() {
+        Long remaining = RequestDeadline.getRemainingMs();
+        return remaining == null || remaining > 0;
+    }
+
+    private void remember(String key, IdentificationResult result) {
+        if (config.getMatchResultMemoMs() <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (memo.size() >= MAX_MEMO_SIZE) {
+            memo.values().removeIf(m -> m.expires <= now);
+            if (memo.size() >= MAX_MEMO_SIZE) {
+                return;
+            }
+        }
+        memo.put(key, new MemoizedResult(result, now + config.getMatchResultMemoMs()));
+    }
+
+    /**
+     * @return a hash of the fingerprints and options of the search, and of the current generation of enrolled subjects
+     */
+    private String getKey(BiometricSubject subject, IdentificationOptions options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, Long.toString(generation));
+            for (Fingerprint fp : subject.getFingerprints()) {
+                update(digest, fp.getType());
+                update(digest, fp.getFormat() == null ? null : fp.getFormat().name());
+                update(digest, fp.getTemplate());
+            }
+            update(digest, options.getMaxResults() == null ? null : options.getMaxResults().toString());
+            update(digest, options.getMinScore() == null ? null : options.getMinScore().toString());
+            update(digest, options.getProfile());
+            return Hex.encodeHexString(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new BiometricServiceException("Unable to hash search", e);
+        }
+    }
+
+    private void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    private static class MemoizedResult {
+
+        private final IdentificationResult result;
+        private final long expires;
+
+        private MemoizedResult(IdentificationResult result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Component that runs work making native calls on a small pool of platform threads, when called from a virtual thread.
+ * A virtual thread that makes a long native call holds its carrier thread until the call returns, so a few native
+ * matching operations could otherwise occupy every carrier and stall all other virtual threads.  The calling virtual
+ * thread simply waits for the result, which costs almost nothing.  Work called from a platform thread is run directly,
+ * as it always has been.
+ * The pool has nativeCarrierThreads threads, defaulting to the number of processors.  It is only created if virtual
+ * threads are enabled, and needs no queue limit of its own, since operations are already limited by admission control
+ */
+@Component
+public class NativeCallExecutor {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void startup() {
+        if (config.isVirtualThreadsEnabled() && VirtualThreads.isAvailable()) {
+            int threads = config.getNativeCarrierThreads() > 0 ? config.getNativeCarrierThreads() : Runtime.getRuntime().availableProcessors();
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "native-carrier-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            log.info("Confining native calls from virtual threads to " + threads + " platform threads");
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the result of the given work, run on a platform thread if called from a virtual thread
+     */
+    public <T> T call(Supplier<T> work) {
+        if (executor == null || !VirtualThreads.isVirtual(Thread.currentThread())) {
+            return work.get();
+        }
+        Long deadline = RequestDeadline.get();
+        Future<T> future = executor.submit(() -> {
+            RequestDeadline.set(deadline);
+            try {
+                return work.get();
+            }
+            finally {
+                RequestDeadline.clear();
+            }
+        });
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new BiometricServiceException("Native call failed", e.getCause());
+        }
+        catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new BiometricServiceException("Interrupted while waiting for native call", e);
+        }
+    }
+
+    /**
+     * Performs the given work, on a platform thread if called from a virtual thread
+     */
+    public void run(Runnable work) {
+        call(() -> {
+            work.run();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import com.neurotec.lang.NObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.NativeResourceStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Component that keeps a registry of the native objects created by the engines, so that any that are never disposed of
+ * can be found.  Each object is recorded against its type and the place in the code at which it was created, and any
+ * object that is still live after the configured age is reported.  Objects that are intended to be long-lived, such as
+ * pooled clients, are counted but never reported.
+ * Native objects hold memory outside of the Java heap, so a leak does not show up in heap usage, and would otherwise
+ * only be noticed once the process runs out of memory.
+ */
+@Component
+public class NativeResourceTracker {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private final Map<NObject, TrackedResource> live = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<String, SiteCounters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Records the given newly created object, which is expected to be disposed of shortly
+     * @return the given object
+     */
+    public <T extends NObject> T track(T object) {
+        return track(object, false);
+    }
+
+    /**
+     * Records the given newly created object, which is expected to be held for as long as it is needed
+     * @return the given object
+     */
+    public <T extends NObject> T trackRetained(T object) {
+        return track(object, true);
+    }
+
+    /**
+     * Disposes of each of the given objects that is not null, and removes it from the registry
+     */
+    public void dispose(NObject... objects) {
+        for (NObject o : objects) {
+            if (o != null) {
+                TrackedResource resource = live.remove(o);
+                if (resource != null) {
+                    resource.counters.live.decrementAndGet();
+                    resource.counters.disposed.incrementAndGet();
+                }
+                o.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tracked objects that have not yet been disposed of
+     */
+    public int getLiveCount() {
+        return live.size();
+    }
+
+    /**
+     * @return the counts of objects of each type created at each place in the code, those with the most live objects first
+     */
+    public List<NativeResourceStats> getStats() {
+        Map<String, Long> oldest = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        synchronized (live) {
+            for (TrackedResource resource : live.values()) {
+                oldest.merge(resource.counters.key, now - resource.created, Math::max);
+            }
+        }
+        List<NativeResourceStats> ret = new ArrayList<>();
+        for (SiteCounters siteCounters : counters.values()) {
+            NativeResourceStats stats = new NativeResourceStats();
+            stats.setType(siteCounters.type);
+            stats.setSite(siteCounters.site);
+            stats.setLive(siteCounters.live.get());
+            stats.setCreated(siteCounters.created.get());
+            stats.setDisposed(siteCounters.disposed.get());
+            stats.setOldestAgeMs(oldest.getOrDefault(siteCounters.key, 0L));
+            ret.add(stats);
+        }
+        ret.sort(Comparator.comparingLong(NativeResourceStats::getLive).reversed().thenComparing(NativeResourceStats::getSite));
+        return ret;
+    }
+
+    /**
+     * Reports, once each, any objects that are not retained and have been live for longer than the configured age
+     */
+    @Scheduled(initialDelayString = "${nativeResourceCheckIntervalMs:60000}", fixedDelayString = "${nativeResourceCheckIntervalMs:60000}")
+    public void reportLongLivedResources() {
+        long maxAgeMs = config.getNativeResourceMaxAgeMs();
+        if (maxAgeMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Integer> reported = new LinkedHashMap<>();
+        synchronized (live) {
+            for (TrackedResource resource : live.values()) {
+                if (!resource.retained && !resource.reported && now - resource.created > maxAgeMs) {
+                    resource.reported = true;
+                    reported.merge(resource.counters.key, 1, Integer::sum);
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : reported.entrySet()) {
+            log.warn(entry.getValue() + " native objects of " + entry.getKey() + " have not been disposed of within " + maxAgeMs + "ms, and may have leaked");
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    private <T extends NObject> T track(T object, boolean retained) {
+        if (object == null || !config.isNativeResourceTrackingEnabled()) {
+            return object;
+        }
+        String type = object.getClass().getSimpleName();
+        String site = getCreationSite();
+        SiteCounters siteCounters = counters.computeIfAbsent(type + " created at " + site, key -> new SiteCounters(key, type, site));
+        siteCounters.created.incrementAndGet();
+        siteCounters.live.incrementAndGet();
+        live.put(object, new TrackedResource(siteCounters, retained));
+        return object;
+    }
+
+    /**
+     * @return the class, method and line of the code that asked for an object to be tracked
+     */
+    private String getCreationSite() {
+        for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            String className = frame.getClassName();
+            if (!className.equals(Thread.class.getName()) && !className.equals(NativeResourceTracker.class.getName())) {
+                String simpleName = className.substring(className.lastIndexOf('.') + 1);
+                return simpleName + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+            }
+        }
+        return "unknown";
+    }
+
+    private static class SiteCounters {
+
+        private final String key;
+        private final String type;
+        private final String site;
+        private final AtomicLong live = new AtomicLong();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong disposed = new AtomicLong();
+
+        private SiteCounters(String key, String type, String site) {
+            this.key = key;
+            this.type = type;
+            this.site = site;
+        }
+    }
+
+    private static class TrackedResource {
+
+        private final SiteCounters counters;
+        private final boolean retained;
+        private final long created = System.currentTimeMillis();
+        private boolean reported = false;
+
+        private TrackedResource(SiteCounters counters, boolean retained) {
+            this.counters = counters;
+            this.retained = retained;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.DuplicateSubjectException;
+import org.pih.biometric.service.exception.FingerNotFoundException;
+import org.pih.biometric.service.exception.InvalidRequestException;
+import org.pih.biometric.service.exception.SubjectNotFoundException;
+import org.pih.biometric.service.exception.TooManyRequestsException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.BiometricMatch;
+import org.pih.biometric.service.model.BiometricStatus;
+import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.BiometricTemplateFormat;
+import org.pih.biometric.service.model.DeletionResult;
+import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.IdentificationOptions;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.pih.biometric.service.model.SubjectLookup;
+import org.pih.biometric.service.model.SubjectLookupResult;
+import org.pih.biometric.service.model.SubjectPage;
+import org.pih.biometric.service.model.VerificationResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Component that runs this node as a coordinator over the peer nodes configured via the peerUrls property.
+ * Subjects are hash-partitioned across the peers by subjectId, so each subject is stored on exactly one peer.
+ * Identification is scattered to all peers in parallel, and the matches from each are gathered and merged.
+ * Any peer that does not respond within the peer timeout is reported as unavailable, and the result marked as partial.
+ * Calls to peers wait for one of four threads per peer, queueing up to asyncQueueSize calls per peer, beyond which
+ * identification is rejected as too many requests rather than queued without limit.
+ * Note that changing the list of peers changes the partitioning, and so requires subjects to be redistributed.
+ */
+@Component
+public class PeerCoordinator {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private RestTemplate restTemplate;
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void startup() {
+        if (isEnabled()) {
+            SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+            requestFactory.setConnectTimeout(config.getPeerTimeoutMs());
+            requestFactory.setReadTimeout(config.getPeerTimeoutMs());
+            restTemplate = new RestTemplate(requestFactory);
+            if (config.isVirtualThreadsEnabled() && VirtualThreads.isAvailable()) {
+                executor = VirtualThreads.newThreadPerTaskExecutor("peer-coordinator-"); // Calls to peers only wait on the network
+            }
+            else {
+                final AtomicInteger threadNumber = new AtomicInteger();
+                int threads = config.getPeerUrls().size() * 4;
+                int queueSize = config.getPeerUrls().size() * Math.max(1, config.getAsyncQueueSize());
+                executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "peer-coordinator-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            log.info("Coordinating " + config.getPeerUrls().size() + " peers: " + config.getPeerUrls());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if this node is configured to coordinate peer nodes
+     */
+    public boolean isEnabled() {
+        return config.isMatchingServiceEnabled() && !config.getPeerUrls().isEmpty();
+    }
+
+    /**
+     * @return the url of the peer that stores the subject with the given subjectId
+     */
+    public String getPeerFor(String subjectId) {
+        CRC32 hash = new CRC32();
+        hash.update(subjectId.getBytes(StandardCharsets.UTF_8));
+        List<String> peers = config.getPeerUrls();
+        return peers.get((int) (hash.getValue() % peers.size()));
+    }
+
+    /**
+     * Sends the subject to all peers in parallel, and merges the matches returned, keeping the best maxResults across all peers
+     */
+    public IdentificationResult identify(final BiometricSubject subject, IdentificationOptions options) {
+        long timeout = config.getPeerTimeoutMs();
+        Long requestRemaining = RequestDeadline.getRemainingMs();
+        if (requestRemaining != null && requestRemaining < timeout) {
+            timeout = Math.max(0, requestRemaining);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        final HttpEntity<BiometricSubject> request = withDeadline(subject);
+
+        Map<String, Future<BiometricMatch[]>> responses = new LinkedHashMap<>();
+        for (final String peer : config.getPeerUrls()) {
+            UriComponentsBuilder url = UriComponentsBuilder.fromHttpUrl(url(peer, "/match"));
+            if (options.getMaxResults() != null) {
+                url.queryParam("maxResults", options.getMaxResults());
+            }
+            if (options.getMinScore() != null) {
+                url.queryParam("minScore", options.getMinScore());
+            }
+            if (options.getProfile() != null) {
+                url.queryParam("profile", options.getProfile());
+            }
+            final String matchUrl = url.toUriString();
+            try {
+                responses.put(peer, executor.submit(() -> restTemplate.postForObject(matchUrl, request, BiometricMatch[].class)));
+            }
+            catch (RejectedExecutionException e) {
+                for (Future<BiometricMatch[]> submitted : responses.values()) {
+                    submitted.cancel(true);
+                }
+                log.debug("Rejecting identification, too many calls to peers are waiting");
+                throw new TooManyRequestsException("identification", config.getAdmissionRetryAfterSeconds());
+            }
+        }
+
+        IdentificationResult result = new IdentificationResult();
+        for (Map.Entry<String, Future<BiometricMatch[]>> response : responses.entrySet()) {
+            String peer = response.getKey();
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                BiometricMatch[] matches = response.getValue().get(remaining, TimeUnit.MILLISECONDS);
+                if (matches != null) {
+                    result.getMatches().addAll(Arrays.asList(matches));
+                }
+            }
+            catch (TimeoutException e) {
+                response.getValue().cancel(true);
+                log.warn("Peer " + peer + " did not respond within " + timeout + "ms");
+                result.addUnavailablePeer(peer);
+            }
+            catch (ExecutionException e) {
+                log.warn("Peer " + peer + " failed to identify subject", e.getCause());
+                result.addUnavailablePeer(peer);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.addUnavailablePeer(peer);
+            }
+        }
+        result.getMatches().sort(Comparator.comparing(BiometricMatch::getMatchScore).reversed());
+        if (options.getMaxResults() != null && result.getMatches().size() > options.getMaxResults()) {
+            result.setMatches(new ArrayList<>(result.getMatches().subList(0, options.getMaxResults())));
+        }
+        log.debug("Found " + result.getMatches().size() + " possible matches across peers, unavailable peers: " + result.getUnavailablePeers());
+        return result;
+    }
+
+    /**
+     * @return up to limit subjectIds, in order, of the subjects after the given subjectId across all peers.
+     * Each peer returns its own first limit subjectIds after the given subjectId, so the first limit of these combined are
+     * the first limit overall
+     */
+    public List<String> getSubjectIds(String after, int limit, Long modifiedSince) {
+        List<String> ret = new ArrayList<>();
+        for (String peer : config.getPeerUrls()) {
+            UriComponentsBuilder url = UriComponentsBuilder.fromHttpUrl(url(peer, "/subjects"))
+                    .queryParam("idsOnly", true)
+                    .queryParam("limit", limit);
+            if (after != null) {
+                url.queryParam("cursor", SubjectPage.toCursor(after));
+            }
+            if (modifiedSince != null) {
+                url.queryParam("modifiedSince", modifiedSince);
+            }
+            SubjectPage page = restTemplate.exchange(url.toUriString(), HttpMethod.GET, withDeadline(null), SubjectPage.class).getBody();
+            if (page == null) {
+                throw new BiometricServiceException("Peer " + peer + " did not return subjects");
+            }
+            ret.addAll(page.getSubjectIds());
+        }
+        Collections.sort(ret);
+        return (ret.size() > limit ? new ArrayList<>(ret.subList(0, limit)) : ret);
+    }
+
+    /**
+     * Enrolls the subject on the peer that owns it
+     */
+    public BiometricSubject enroll(BiometricSubject subject) {
+        String peer = getPeerFor(subject.getSubjectId());
+        try {
+            return restTemplate.postForObject(url(peer, "/subject"), withDeadline(subject), BiometricSubject.class);
+        }
+        catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.CONFLICT) {
+                throw new DuplicateSubjectException(subject.getSubjectId());
+            }
+            throw new BiometricServiceException("Unable to enroll subject on peer " + peer, e);
+        }
+    }
+
+    /**
+     * Updates the subject on the peer that owns it
+     */
+    public BiometricSubject update(BiometricSubject subject) {
+        String peer = getPeerFor(subject.getSubjectId());
+        try {
+            restTemplate.exchange(url(peer, "/subject"), HttpMethod.PUT, withDeadline(subject), Void.class);
+        }
+        catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                throw new SubjectNotFoundException(subject.getSubjectId());
+            }
+            throw new BiometricServiceException("Unable to update subject on peer " + peer, e);
+        }
+        return subject;
+    }
+
+    /**
+     * @return the subject from the peer that owns it, or null if it is not found
+     */
+    public BiometricSubject getSubject(String subjectId, BiometricTemplateFormat format) {
+        String peer = getPeerFor(subjectId);
+        String url = UriComponentsBuilder.fromHttpUrl(url(peer, "/subject/{subjectId}"))
+                .queryParam("format", format == null ? BiometricTemplateFormat.PROPRIETARY : format)
+                .buildAndExpand(subjectId).toUriString();
+        try {
+            return restTemplate.exchange(url, HttpMethod.GET, withDeadline(null), BiometricSubject.class).getBody();
+        }
+        catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                return null;
+            }
+            throw new BiometricServiceException("Unable to retrieve subject from peer " + peer, e);
+        }
+    }
+
+    /**
+     * @return the result of each of the given lookups, in the same order, sending each peer a single request for the subjects it owns
+     */
+    public List<SubjectLookupResult> getSubjects(List<SubjectLookup> lookups) {
+        Map<String, List<SubjectLookup>> lookupsByPeer = new LinkedHashMap<>();
+        for (SubjectLookup lookup : lookups) {
+            lookupsByPeer.computeIfAbsent(getPeerFor(lookup.getSubjectId()), peer -> new ArrayList<>()).add(lookup);
+        }
+        Map<SubjectLookup, SubjectLookupResult> results = new IdentityHashMap<>();
+        for (Map.Entry<String, List<SubjectLookup>> entry : lookupsByPeer.entrySet()) {
+            String peer = entry.getKey();
+            SubjectLookupResult[] peerResults = restTemplate.postForObject(url(peer, "/subjects/lookup"), withDeadline(entry.getValue()), SubjectLookupResult[].class);
+            if (peerResults == null || peerResults.length != entry.getValue().size()) {
+                throw new BiometricServiceException("Unable to retrieve subjects from peer " + peer);
+            }
+            for (int i = 0; i < peerResults.length; i++) {
+                results.put(entry.getValue().get(i), peerResults[i]);
+            }
+        }
+        List<SubjectLookupResult> ret = new ArrayList<>(lookups.size());
+        for (SubjectLookup lookup : lookups) {
+            ret.add(results.get(lookup));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the result of verifying the subject on the peer that owns it
+     */
+    public VerificationResult verify(String subjectId, BiometricSubject subject, String profile) {
+        String peer = getPeerFor(subjectId);
+        UriComponentsBuilder url = UriComponentsBuilder.fromHttpUrl(url(peer, "/subject/{subjectId}/verify"));
+        if (profile != null) {
+            url.queryParam("profile", profile);
+        }
+        try {
+            return restTemplate.postForObject(url.buildAndExpand(subjectId).toUriString(), withDeadline(subject), VerificationResult.class);
+        }
+        catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                throw new SubjectNotFoundException(subjectId);
+            }
+            throw new BiometricServiceException("Unable to verify subject on peer " + peer, e);
+        }
+    }
+
+    /**
+     * Adds or replaces the finger at the given position of the subject, on the peer that owns it
+     */
+    public void putFinger(String subjectId, String position, Fingerprint fingerprint) {
+        String peer = getPeerFor(subjectId);
+        try {
+            restTemplate.exchange(url(peer, "/subject/{subjectId}/finger/{position}"), HttpMethod.PUT, withDeadline(fingerprint), Void.class, subjectId, position);
+        }
+        catch (HttpClientErrorException e) {
+            throw fingerError(e, subjectId, position, peer);
+        }
+    }
+
+    /**
+     * Removes the finger at the given position of the subject, on the peer that owns it
+     */
+    public void removeFinger(String subjectId, String position) {
+        String peer = getPeerFor(subjectId);
+        try {
+            restTemplate.exchange(url(peer, "/subject/{subjectId}/finger/{position}"), HttpMethod.DELETE, withDeadline(null), Void.class, subjectId, position);
+        }
+        catch (HttpClientErrorException e) {
+            throw fingerError(e, subjectId, position, peer);
+        }
+    }
+
+    /**
+     * Deletes the subject from the peer that owns it
+     */
+    public void deleteSubject(String subjectId) {
+        String peer = getPeerFor(subjectId);
+        try {
+            restTemplate.exchange(url(peer, "/subject/{subjectId}"), HttpMethod.DELETE, withDeadline(null), Void.class, subjectId);
+        }
+        catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                throw new SubjectNotFoundException(subjectId);
+            }
+            throw new BiometricServiceException("Unable to delete subject from peer " + peer, e);
+        }
+    }
+
+    /**
+     * Deletes the subjects, sending each peer a single request for the subjects it owns
+     * @return the subjectIds that were deleted, and those that were not found, across all peers
+     */
+    public DeletionResult deleteSubjects(List<String> subjectIds) {
+        Map<String, List<String>> subjectIdsByPeer = new LinkedHashMap<>();
+        for (String subjectId : subjectIds) {
+            subjectIdsByPeer.computeIfAbsent(getPeerFor(subjectId), peer -> new ArrayList<>()).add(subjectId);
+        }
+        DeletionResult ret = new DeletionResult();
+        for (Map.Entry<String, List<String>> entry : subjectIdsByPeer.entrySet()) {
+            String peer = entry.getKey();
+            DeletionResult peerResult = restTemplate.postForObject(url(peer, "/subjects/delete"), withDeadline(entry.getValue()), DeletionResult.class);
+            if (peerResult == null) {
+                throw new BiometricServiceException("Unable to delete subjects from peer " + peer);
+            }
+            ret.getDeleted().addAll(peerResult.getDeleted());
+            ret.getNotFound().addAll(peerResult.getNotFound());
+        }
+        return ret;
+    }
+
+    /**
+     * @return the total number of subjects enrolled across all peers
+     */
+    public Integer getNumberEnrolled() {
+        int total = 0;
+        for (String peer : config.getPeerUrls()) {
+            BiometricStatus status = restTemplate.exchange(url(peer, "/status"), HttpMethod.GET, withDeadline(null), BiometricStatus.class).getBody();
+            if (status == null || !status.isEnabled()) {
+                throw new BiometricServiceException("Peer " + peer + " is not available: " + (status == null ? "" : status.getStatusMessage()));
+            }
+            total += status.getNumberEnrolled();
+        }
+        return total;
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return a request with the given body, or none if null, that passes the time remaining before the deadline of the current
+     * request, if any, on to the peer.  Every call to a peer is made with a request built here
+     */
+    private <T> HttpEntity<T> withDeadline(T body) {
+        HttpHeaders headers = new HttpHeaders();
+        Long remaining = RequestDeadline.getRemainingMs();
+        if (remaining != null) {
+            headers.set(RequestDeadline.TIMEOUT_HEADER, Long.toString(Math.max(0, remaining)));
+        }
+        return new HttpEntity<>(body, headers);
+    }
+
+    /**
+     * @return the exception corresponding to the given error from a peer when changing a finger of a subject
+     */
+    private BiometricServiceException fingerError(HttpClientErrorException e, String subjectId, String position, String peer) {
+        if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+            BiometricSubject existing = getSubject(subjectId, null);
+            return (existing == null ? new SubjectNotFoundException(subjectId) : new FingerNotFoundException(subjectId, position));
+        }
+        if (e.getStatusCode() == HttpStatus.BAD_REQUEST) {
+            return new InvalidRequestException(e.getResponseBodyAsString());
+        }
+        return new BiometricServiceException("Unable to change finger of subject on peer " + peer, e);
+    }
+
+    private String url(String peer, String path) {
+        return (peer.endsWith("/") ? peer.substring(0, peer.length() - 1) : peer) + path;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.pih.biometric.service.exception.DeadlineExceededException;
+
+/**
+ * Holds the time by which the request being processed by the current thread must complete, if any.
+ * This is set for each web request, and is checked by the engine so that work for requests whose clients
+ * have given up is skipped, and so that native matching operations are given no longer than the time remaining
+ */
+public class RequestDeadline {
+
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+    public static final String DEADLINE_HEADER = "X-Request-Deadline";
+
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    private RequestDeadline() { }
+
+    /**
+     * Sets the deadline, as milliseconds since the epoch, for the current thread.  A null deadline is removed
+     */
+    public static void set(Long deadlineMillis) {
+        if (deadlineMillis == null) {
+            deadline.remove();
+        }
+        else {
+            deadline.set(deadlineMillis);
+        }
+    }
+
+    /**
+     * @return the deadline, as milliseconds since the epoch, for the current thread, or null if there is none
+     */
+    public static Long get() {
+        return deadline.get();
+    }
+
+    public static void clear() {
+        deadline.remove();
+    }
+
+    /**
+     * @return the milliseconds remaining before the deadline, which may be zero or negative if it has passed, or null if there is none
+     */
+    public static Long getRemainingMs() {
+        Long d = deadline.get();
+        return (d == null ? null : d - System.currentTimeMillis());
+    }
+
+    /**
+     * @throws DeadlineExceededException if the deadline for the current thread has passed
+     */
+    public static void check(String operation) {
+        Long remaining = getRemainingMs();
+        if (remaining != null && remaining <= 0) {
+            throw new DeadlineExceededException(operation);
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.ChangesUnavailableException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.SubjectChange;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Component that records every change to the enrolled subjects in a sequenced, append-only log file.
+ * Each record is written as [length][payload][crc32], so that a record that was only partially written
+ * when the process stopped is detected and discarded on the next startup.
+ * Changes are applied to the in-memory gallery while the log is locked, so that the last sequence
+ * always reflects exactly the changes that the gallery contains.
+ * The log is also the source of changes for replicas, which read it via the /changes endpoint,
+ * so changes are retained for the configured retention period even once they are contained in a gallery snapshot.
+ * The file offset of every thousandth record is held in memory, so that reading the changes since a sequence seeks close
+ * to it rather than reading through the whole log on every poll by a replica
+ */
+@Component
+public class SubjectChangeLog {
+
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final int OFFSET_INDEX_INTERVAL = 1000;
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    private File logFile;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long firstSequence = 0;
+    private long lastSequence = 0;
+    private long logLength = 0;
+    private final NavigableMap<Long, Long> offsets = new TreeMap<>();
+
+    @PostConstruct
+    public void startup() {
+        if (isEnabled()) {
+            logFile = getLogFile();
+            recover();
+            out = openForAppend();
+            log.info("Subject change log opened at " + logFile + ", last sequence: " + lastSequence);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        IOUtils.closeQuietly(out);
+        out = null;
+    }
+
+    /**
+     * @return true if changes are being recorded
+     */
+    public boolean isEnabled() {
+        return config.isMatchingServiceEnabled() && (config.isChangeLogEnabled() || config.isGalleryEnabled());
+    }
+
+    /**
+     * Assigns the next sequence to the given change, writes it to the log, syncing it to disk, and applies it to the gallery
+     */
+    public synchronized SubjectChange append(SubjectChange change) {
+        if (!isEnabled()) {
+            return change;
+        }
+        change.setSequence(lastSequence + 1);
+        change.setTimestamp(System.currentTimeMillis());
+        long offset = logLength;
+        try {
+            logLength += writeRecord(out, change);
+            out.flush();
+            fileOut.getFD().sync(); // The change is only acknowledged once it would survive a crash
+        }
+        catch (IOException e) {
+            throw new BiometricServiceException("Unable to record change to subject " + change.getSubjectId(), e);
+        }
+        lastSequence = change.getSequence();
+        if (firstSequence == 0) {
+            firstSequence = lastSequence;
+        }
+        indexOffset(offsets, lastSequence, offset);
+        if (gallery.isEnabled()) {
+            gallery.apply(change);
+        }
+        log.debug("Recorded " + change);
+        return change;
+    }
+
+    /**
+     * @return the sequence of the last recorded change
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the earliest sequence from which all subsequent changes can still be read from the log
+     */
+    public synchronized long getEarliestAvailableSequence() {
+        return firstSequence == 0 ? lastSequence : firstSequence - 1;
+    }
+
+    /**
+     * Ensures that subsequent changes are assigned sequences after the given sequence.
+     * This is needed on startup when earlier changes are no longer in the log, but are contained in a gallery snapshot
+     */
+    public synchronized void advanceTo(long sequence) {
+        if (sequence > lastSequence) {
+            lastSequence = sequence;
+        }
+    }
+
+    /**
+     * Passes each recorded change with a sequence greater than the given sequence to the handler, in order
+     * @return the number of changes read
+     * @throws ChangesUnavailableException if the change following the given sequence is no longer in the log
+     */
+    public int readSince(long sequence, ChangeHandler handler) {
+        ChangeReader reader = openSince(sequence);
+        try {
+            return reader.readAll(handler);
+        }
+        finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Opens the log for reading the changes recorded after the given sequence.  The log is opened, and the change following
+     * the given sequence is read, while the log is locked, so that the reader continues from that change even if the log is
+     * truncated before it is read.  The caller is responsible for closing the reader.
+     * @throws ChangesUnavailableException if the change following the given sequence is no longer in the log
+     */
+    public synchronized ChangeReader openSince(long sequence) {
+        long earliestAvailable = getEarliestAvailableSequence();
+        if (sequence < earliestAvailable) {
+            throw new ChangesUnavailableException(sequence, earliestAvailable);
+        }
+        ChangeReader reader = open(sequence);
+        if (sequence < lastSequence) {
+            SubjectChange next = reader.peek();
+            if (next == null || next.getSequence() != sequence + 1) {
+                IOUtils.closeQuietly(reader);
+                throw new ChangesUnavailableException(sequence, next == null ? lastSequence : next.getSequence() - 1);
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * When the gallery is not enabled, there are no snapshots to govern truncation, so changes are
+     * removed from the log purely based on the configured retention period
+     */
+    @Scheduled(fixedDelay = 60 * 60 * 1000)
+    public void removeExpiredChanges() {
+        if (isEnabled() && !gallery.isEnabled()) {
+            truncateThrough(getLastSequence());
+        }
+    }
+
+    /**
+     * Removes changes up to and including the given sequence from the log, retaining any changes
+     * recorded within the configured retention period so that replicas can continue to read them.
+     * This is done once those changes are safely contained in a gallery snapshot.
+     */
+    public synchronized void truncateThrough(long sequence) {
+        if (!isEnabled()) {
+            return;
+        }
+        final long retainedSince = System.currentTimeMillis() - config.getChangeLogRetentionHours() * 60L * 60L * 1000L;
+        final long[] newFirstSequence = {0};
+        final long[] newLength = {0};
+        final NavigableMap<Long, Long> newOffsets = new TreeMap<>();
+        File tmpFile = new File(logFile.getPath() + ".tmp");
+        DataOutputStream tmpOut = null;
+        try {
+            FileOutputStream tmpFileOut = new FileOutputStream(tmpFile);
+            tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFileOut));
+            final DataOutputStream target = tmpOut;
+            ChangeReader reader = open(0);
+            try {
+                reader.readAll(change -> {
+                    if (change.getSequence() > sequence || change.getTimestamp() >= retainedSince) {
+                        try {
+                            indexOffset(newOffsets, change.getSequence(), newLength[0]);
+                            newLength[0] += writeRecord(target, change);
+                        }
+                        catch (IOException e) {
+                            throw new BiometricServiceException("Unable to rewrite subject change log", e);
+                        }
+                        if (newFirstSequence[0] == 0) {
+                            newFirstSequence[0] = change.getSequence();
+                        }
+                    }
+                    return true;
+                });
+            }
+            finally {
+                IOUtils.closeQuietly(reader);
+            }
+            tmpOut.flush();
+            tmpFileOut.getFD().sync();
+            tmpOut.close();
+            if (newFirstSequence[0] == firstSequence) {
+                tmpFile.delete();
+                return;
+            }
+            out.close();
+            try {
+                Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                firstSequence = newFirstSequence[0];
+                logLength = newLength[0];
+                offsets.clear();
+                offsets.putAll(newOffsets);
+            }
+            finally {
+                out = openForAppend();
+            }
+            log.debug("Truncated subject change log, earliest retained sequence: " + firstSequence);
+        }
+        catch (IOException e) {
+            throw new BiometricServiceException("Unable to truncate subject change log at " + logFile, e);
+        }
+        finally {
+            IOUtils.closeQuietly(tmpOut);
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the configured change log file, defaulting to a file alongside the sqlite database
+     */
+    private File getLogFile() {
+        if (!StringUtils.isEmpty(config.getChangeLogPath())) {
+            return new File(config.getChangeLogPath());
+        }
+        if (StringUtils.isEmpty(config.getSqliteDatabasePath())) {
+            throw new BiometricServiceException("A changeLogPath or sqliteDatabasePath must be configured to enable the change log");
+        }
+        return new File(config.getSqliteDatabasePath() + ".changes");
+    }
+
+    /**
+     * Reads through the existing log to find the first and last valid sequences, discarding any partially written record at the end
+     */
+    private void recover() {
+        if (!logFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            SubjectChange change;
+            while ((change = readRecord(in)) != null) {
+                if (firstSequence == 0) {
+                    firstSequence = change.getSequence();
+                }
+                lastSequence = change.getSequence();
+                indexOffset(offsets, lastSequence, validLength);
+                validLength += recordLength(change);
+            }
+        }
+        catch (IOException e) {
+            throw new BiometricServiceException("Unable to read subject change log at " + logFile, e);
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (validLength < logFile.length()) {
+            log.warn("Discarding " + (logFile.length() - validLength) + " bytes of incomplete changes from " + logFile);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(logFile, "rw");
+                raf.setLength(validLength);
+            }
+            catch (IOException e) {
+                throw new BiometricServiceException("Unable to repair subject change log at " + logFile, e);
+            }
+            finally {
+                IOUtils.closeQuietly(raf);
+            }
+        }
+        logLength = validLength;
+    }
+
+    /**
+     * Opens the log while it is locked, so that the offset used is that of the file opened, even if it is then truncated
+     * @return a reader of the changes following the given sequence, which has none if there is no log
+     */
+    private synchronized ChangeReader open(long sequence) {
+        if (logFile == null || !logFile.exists()) {
+            return new ChangeReader(null, sequence);
+        }
+        FileInputStream fileIn = null;
+        try {
+            fileIn = new FileInputStream(logFile);
+            Map.Entry<Long, Long> indexed = offsets.floorEntry(sequence + 1);
+            if (indexed != null) {
+                fileIn.getChannel().position(indexed.getValue());
+            }
+            return new ChangeReader(new DataInputStream(new BufferedInputStream(fileIn)), sequence);
+        }
+        catch (IOException e) {
+            IOUtils.closeQuietly(fileIn);
+            throw new BiometricServiceException("Unable to read subject change log at " + logFile, e);
+        }
+    }
+
+    /**
+     * Records the offset of the change with the given sequence if it is far enough past the last offset recorded
+     */
+    private void indexOffset(NavigableMap<Long, Long> index, long sequence, long offset) {
+        if (index.isEmpty() || sequence - index.lastKey() >= OFFSET_INDEX_INTERVAL) {
+            index.put(sequence, offset);
+        }
+    }
+
+    /**
+     * Opens the log for appending, keeping the underlying file stream so that appended changes can be synced to disk
+     */
+    private DataOutputStream openForAppend() {
+        try {
+            if (logFile.getParentFile() != null) {
+                logFile.getParentFile().mkdirs();
+            }
+            fileOut = new FileOutputStream(logFile, true);
+            return new DataOutputStream(new BufferedOutputStream(fileOut));
+        }
+        catch (IOException e) {
+            throw new BiometricServiceException("Unable to open subject change log at " + logFile, e);
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private int writeRecord(DataOutputStream target, SubjectChange change) throws IOException {
+        byte[] payload = toPayload(change);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        target.writeInt(payload.length);
+        target.write(payload);
+        target.writeInt((int) crc.getValue());
+        return 4 + payload.length + 4;
+    }
+
+    /**
+     * @return the next valid change from the stream, or null if the end of the valid records has been reached
+     */
+    private SubjectChange readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int expectedCrc = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) {
+                return null;
+            }
+            return fromPayload(payload);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private long recordLength(SubjectChange change) throws IOException {
+        return 4 + toPayload(change).length + 4;
+    }
+
+    private byte[] toPayload(SubjectChange change) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeLong(change.getSequence());
+        data.writeLong(change.getTimestamp());
+        data.writeByte(change.getType().ordinal());
+        data.writeUTF(change.getSubjectId());
+        if (change.getTemplate() == null) {
+            data.writeInt(-1);
+        }
+        else {
+            data.writeInt(change.getTemplate().length);
+            data.write(change.getTemplate());
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private SubjectChange fromPayload(byte[] payload) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        SubjectChange change = new SubjectChange();
+        change.setSequence(data.readLong());
+        change.setTimestamp(data.readLong());
+        change.setType(SubjectChange.Type.values()[data.readByte()]);
+        change.setSubjectId(data.readUTF());
+        int templateLength = data.readInt();
+        if (templateLength >= 0) {
+            byte[] template = new byte[templateLength];
+            data.readFully(template);
+            change.setTemplate(template);
+        }
+        return change;
+    }
+
+    /**
+     * Reads the changes following a given sequence, in order, from the log file as it was when opened
+     */
+    public class ChangeReader implements Closeable {
+
+        private final DataInputStream in;
+        private final long sequence;
+        private SubjectChange next;
+
+        private ChangeReader(DataInputStream in, long sequence) {
+            this.in = in;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the next change, without consuming it, or null if there are no more changes
+         */
+        public SubjectChange peek() {
+            if (next == null && in != null) {
+                try {
+                    SubjectChange change;
+                    while ((change = readRecord(in)) != null) {
+                        if (change.getSequence() > sequence) {
+                            next = change;
+                            break;
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    throw new BiometricServiceException("Unable to read subject change log at " + logFile, e);
+                }
+            }
+            return next;
+        }
+
+        /**
+         * @return the next change, or null if there are no more changes
+         */
+        public SubjectChange next() {
+            SubjectChange change = peek();
+            next = null;
+            return change;
+        }
+
+        /**
+         * Passes each remaining change to the handler, in order
+         * @return the number of changes read
+         */
+        public int readAll(ChangeHandler handler) {
+            int numRead = 0;
+            SubjectChange change;
+            while ((change = peek()) != null) {
+                if (!handler.handle(change)) {
+                    break;
+                }
+                next = null;
+                numRead++;
+            }
+            return numRead;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Callback for reading through recorded changes
+     */
+    public interface ChangeHandler {
+
+        /**
+         * @return true to continue reading, false to stop
+         */
+        boolean handle(SubjectChange change);
+    }
+}
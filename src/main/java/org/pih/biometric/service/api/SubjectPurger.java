@@ -0,0 +1,291 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.OperationRejectedException;
+import org.pih.biometric.service.exception.ServiceNotEnabledException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.DeletionResult;
+import org.pih.biometric.service.model.PurgeStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Component that runs as a background job, deleting the subjects queued for purging a batch at a time, so that
+ * purging thousands of subjects does not starve live traffic.  Each batch is deleted using a single client and license
+ * as a maintenance operation, and the job pauses between batches and defers to later when the service is busy.
+ * Subjects are queued either explicitly, or, if retentionDays is configured and the gallery is enabled, automatically
+ * once they have not been enrolled or updated for that many days.  A subject loaded from the database, whose last change
+ * is only known to precede the gallery's modifiedKnownSince, is not queued until that time is past the retention period.
+ * The queue is saved to a file, so that the job resumes where it left off after a restart.  Deleting a subject that
+ * has already been deleted is harmless, and is simply counted as not found.
+ */
+@Component
+public class SubjectPurger {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricMatchingEngine matchingEngine;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    private final LinkedHashSet<String> queue = new LinkedHashSet<>();
+    private File queueFile;
+    private long deleted = 0;
+    private long notFound = 0;
+    private String lastError = null;
+
+    @PostConstruct
+    public void startup() {
+        if (isEnabled()) {
+            queueFile = getQueueFile();
+            readQueue();
+            if (!queue.isEmpty()) {
+                log.info("Resuming purge of " + queue.size() + " subjects");
+            }
+            if (config.getRetentionDays() > 0 && !gallery.isEnabled()) {
+                log.warn("Subjects are only purged after " + config.getRetentionDays() + " days if the gallery is enabled");
+            }
+        }
+    }
+
+    /**
+     * @return true if this node is configured to purge subjects.  Replicas receive the deletions made by their leader
+     */
+    public boolean isEnabled() {
+        return config.isMatchingServiceEnabled() && StringUtils.isEmpty(config.getLeaderUrl());
+    }
+
+    /**
+     * Queues the given subjects to be purged in the background
+     * @return the progress of the purge, including the subjects queued
+     */
+    public PurgeStatus enqueue(Collection<String> subjectIds) {
+        if (!isEnabled()) {
+            throw new ServiceNotEnabledException("Subject Purging");
+        }
+        synchronized (queue) {
+            queue.addAll(subjectIds);
+            saveQueue();
+        }
+        log.info("Queued " + subjectIds.size() + " subjects for purging");
+        return getStatus();
+    }
+
+    /**
+     * @return the progress of the purge
+     */
+    public PurgeStatus getStatus() {
+        PurgeStatus status = new PurgeStatus();
+        synchronized (queue) {
+            status.setQueued(queue.size());
+            status.setDeleted(deleted);
+            status.setNotFound(notFound);
+            status.setLastError(lastError);
+        }
+        return status;
+    }
+
+    /**
+     * Queues any subjects past the configured retention period, and then deletes the queued subjects a batch at a time
+     */
+    @Scheduled(initialDelayString = "${purgeIntervalMs:10000}", fixedDelayString = "${purgeIntervalMs:10000}")
+    public synchronized void purgeBatches() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            enqueueExpiredSubjects();
+            List<String> batch = nextBatch();
+            while (!batch.isEmpty()) {
+                DeletionResult result = new DeletionResult();
+                try {
+                    matchingEngine.purgeSubjects(batch, result);
+                }
+                finally {
+                    dequeue(result);
+                }
+                synchronized (queue) {
+                    lastError = null;
+                }
+                log.debug("Purged " + result.getDeleted().size() + " subjects, " + getStatus().getQueued() + " remain queued");
+                batch = nextBatch();
+                if (!batch.isEmpty() && config.getPurgeDelayMs() > 0) {
+                    Thread.sleep(config.getPurgeDelayMs());
+                }
+            }
+        }
+        catch (OperationRejectedException e) {
+            log.debug("Deferring purge, the service is busy");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            synchronized (queue) {
+                lastError = e.getMessage();
+            }
+            log.warn("Unable to purge subjects", e);
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * Queues each subject in the gallery that has not been enrolled or updated within the configured retention period.
+     * This is only checked once the queue is empty, so the gallery is not scanned repeatedly while a purge is in progress
+     */
+    private void enqueueExpiredSubjects() {
+        if (config.getRetentionDays() <= 0 || !gallery.isEnabled() || !gallery.isLoaded()) {
+            return;
+        }
+        synchronized (queue) {
+            if (!queue.isEmpty()) {
+                return;
+            }
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(config.getRetentionDays());
+        List<String> expired = new ArrayList<>();
+        int undetermined = 0;
+        for (GalleryEntry entry : gallery.getEntries()) {
+            long modified = (entry.isModifiedKnown() ? entry.getModified() : gallery.getModifiedKnownSince());
+            if (modified < cutoff) {
+                expired.add(entry.getSubjectId());
+            }
+            else if (!entry.isModifiedKnown()) {
+                undetermined++;
+            }
+        }
+        if (undetermined > 0) {
+            log.debug(undetermined + " subjects loaded from the database have an unknown modification time, and cannot be checked against the retention period until " + (gallery.getModifiedKnownSince() + TimeUnit.DAYS.toMillis(config.getRetentionDays())));
+        }
+        if (!expired.isEmpty()) {
+            log.info(expired.size() + " subjects have passed the retention period of " + config.getRetentionDays() + " days");
+            enqueue(expired);
+        }
+    }
+
+    /**
+     * Removes the subjects that were deleted or not found from the queue, even if the rest of their batch failed,
+     * so that each is counted once
+     */
+    private void dequeue(DeletionResult result) {
+        synchronized (queue) {
+            queue.removeAll(result.getDeleted());
+            queue.removeAll(result.getNotFound());
+            deleted += result.getDeleted().size();
+            notFound += result.getNotFound().size();
+            saveQueue();
+        }
+    }
+
+    /**
+     * @return the first of the queued subjects, up to the configured batch size, which remain queued until deleted
+     */
+    private List<String> nextBatch() {
+        List<String> ret = new ArrayList<>();
+        synchronized (queue) {
+            Iterator<String> i = queue.iterator();
+            while (i.hasNext() && ret.size() < Math.max(1, config.getPurgeBatchSize())) {
+                ret.add(i.next());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the configured purge queue file, defaulting to a file alongside the sqlite database
+     */
+    private File getQueueFile() {
+        if (!StringUtils.isEmpty(config.getPurgeQueuePath())) {
+            return new File(config.getPurgeQueuePath());
+        }
+        return new File(config.getSqliteDatabasePath() + ".purge");
+    }
+
+    /**
+     * Reads the subjects queued for purging, one subjectId per line
+     */
+    private void readQueue() {
+        if (!queueFile.exists()) {
+            return;
+        }
+        try {
+            for (String line : FileUtils.readLines(queueFile, "UTF-8")) {
+                if (!line.isEmpty()) {
+                    queue.add(line);
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new BiometricServiceException("Unable to read purge queue from " + queueFile, e);
+        }
+    }
+
+    /**
+     * Writes the queue to a temporary file, syncs it to disk, and then moves it over the queue file, so that a crash
+     * part way through leaves either the previous queue or the new one, never a partial queue
+     */
+    private void saveQueue() {
+        File tmpFile = new File(queueFile.getPath() + ".tmp");
+        FileOutputStream fileOut = null;
+        try {
+            if (queueFile.getParentFile() != null) {
+                queueFile.getParentFile().mkdirs();
+            }
+            fileOut = new FileOutputStream(tmpFile);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8));
+            for (String subjectId : queue) {
+                writer.write(subjectId);
+                writer.write('\n');
+            }
+            writer.flush();
+            fileOut.getFD().sync();
+            fileOut.close();
+            Files.move(tmpFile.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            tmpFile.delete();
+            log.warn("Unable to save purge queue to " + queueFile, e);
+        }
+        finally {
+            IOUtils.closeQuietly(fileOut);
+        }
+    }
+}
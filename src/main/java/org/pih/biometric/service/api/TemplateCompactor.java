@@ -0,0 +1,212 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import com.neurotec.biometrics.NFRecord;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.GalleryUnavailableException;
+import org.pih.biometric.service.exception.OperationRejectedException;
+import org.pih.biometric.service.exception.SubjectNotFoundException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Component that runs as a background job, re-encoding the enrolled template of each subject in turn without the
+ * optional data configured via the compactionSkippedData property, so that existing subjects take less space and
+ * are faster to match without being re-enrolled.
+ * Subjects are compacted in order of subjectId, a batch at a time with a pause between each subject, each batch listing
+ * only the subjects after the last subject compacted, which are read from the gallery, so the gallery must be enabled.
+ * That subject is saved so that the job resumes where it left off
+ * after a restart.  Once every subject has been compacted the job stops, unless the data to skip is changed.
+ * Compacting a subject again is harmless, as its template is only replaced if this makes it smaller.
+ */
+@Component
+public class TemplateCompactor {
+
+    private static final String COMPLETE = "*";
+    private static final List<String> DEFAULT_SKIPPED_DATA = Arrays.asList("RIDGE_COUNTS", "BLOCKED_ORIENTS", "CURVATURES", "GS");
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricMatchingEngine matchingEngine;
+
+    @Autowired
+    PeerCoordinator peerCoordinator;
+
+    private File stateFile;
+    private String lastSubjectId = null;
+    private boolean complete = false;
+    private long bytesSaved = 0;
+
+    @PostConstruct
+    public synchronized void startup() {
+        if (config.isCompactionEnabled() && !config.isGalleryEnabled()) {
+            log.warn("Compaction requires the gallery to be enabled, templates will not be compacted");
+        }
+        if (isEnabled()) {
+            stateFile = getStateFile();
+            lastSubjectId = null;
+            complete = false;
+            readState();
+            if (!complete) {
+                log.info("Compacting templates without " + getSkippedData() + (lastSubjectId == null ? "" : ", resuming after " + lastSubjectId));
+            }
+        }
+    }
+
+    /**
+     * @return true if this node is configured to compact templates, with the gallery from which to list them.  Peers each
+     * compact their own templates, and replicas receive the templates compacted by their leader
+     */
+    public boolean isEnabled() {
+        return config.isCompactionEnabled() && config.isGalleryEnabled() && config.isMatchingServiceEnabled()
+                && !peerCoordinator.isEnabled() && StringUtils.isEmpty(config.getLeaderUrl());
+    }
+
+    /**
+     * Compacts the next batch of subjects, if any remain
+     */
+    @Scheduled(initialDelayString = "${compactionIntervalMs:60000}", fixedDelayString = "${compactionIntervalMs:60000}")
+    public synchronized void compactBatch() {
+        if (!isEnabled() || complete) {
+            return;
+        }
+        try {
+            int batchSize = Math.max(1, config.getCompactionBatchSize());
+            List<String> subjectIds = matchingEngine.getSubjectIds(lastSubjectId, batchSize, null);
+            int flags = getRecordFlags();
+            for (int i = 0; i < subjectIds.size(); i++) {
+                String subjectId = subjectIds.get(i);
+                try {
+                    bytesSaved += matchingEngine.compactSubject(subjectId, flags);
+                }
+                catch (SubjectNotFoundException e) {
+                    log.debug("Subject " + subjectId + " deleted before it could be compacted");
+                }
+                lastSubjectId = subjectId;
+                saveState();
+                if (config.getCompactionDelayMs() > 0 && i + 1 < subjectIds.size()) {
+                    Thread.sleep(config.getCompactionDelayMs());
+                }
+            }
+            if (subjectIds.size() < batchSize) {
+                complete = true;
+                saveState();
+                log.info("Completed compaction of all subjects, saving " + bytesSaved + " bytes since startup");
+            }
+        }
+        catch (OperationRejectedException e) {
+            log.debug("Deferring compaction, the service is busy");
+        }
+        catch (GalleryUnavailableException e) {
+            log.debug("Deferring compaction until the gallery is loaded");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            log.warn("Unable to compact templates after " + lastSubjectId, e);
+        }
+    }
+
+    /**
+     * @return the number of bytes saved by compaction since startup
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the configured data to skip, or by default all optional data other than singular points and qualities
+     */
+    private List<String> getSkippedData() {
+        List<String> skipped = config.getCompactionSkippedData();
+        return (skipped.isEmpty() ? DEFAULT_SKIPPED_DATA : skipped);
+    }
+
+    /**
+     * @return the NFRecord save flags that skip the configured data
+     */
+    private int getRecordFlags() {
+        int flags = 0;
+        for (String data : getSkippedData()) {
+            switch (data.trim().toUpperCase()) {
+                case "RIDGE_COUNTS": flags |= NFRecord.FLAG_SKIP_RIDGE_COUNTS; break;
+                case "SINGULAR_POINTS": flags |= NFRecord.FLAG_SKIP_SINGULAR_POINTS; break;
+                case "BLOCKED_ORIENTS": flags |= NFRecord.FLAG_SKIP_BLOCKED_ORIENTS; break;
+                case "CURVATURES": flags |= NFRecord.FLAG_SKIP_CURVATURES; break;
+                case "GS": flags |= NFRecord.FLAG_SKIP_GS; break;
+                case "QUALITIES": flags |= NFRecord.FLAG_SKIP_QUALITIES; break;
+                default: throw new BiometricServiceException("Unknown template data to skip during compaction: " + data);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * @return the configured compaction state file, defaulting to a file alongside the sqlite database
+     */
+    private File getStateFile() {
+        if (!StringUtils.isEmpty(config.getCompactionStatePath())) {
+            return new File(config.getCompactionStatePath());
+        }
+        return new File(config.getSqliteDatabasePath() + ".compaction");
+    }
+
+    /**
+     * Reads the progress of compaction, which is restarted from the beginning if the data to skip has changed
+     * State format:  the record save flags on the first line, and the last subjectId compacted, or * once complete, on the second
+     */
+    private void readState() {
+        if (!stateFile.exists()) {
+            return;
+        }
+        try {
+            List<String> lines = FileUtils.readLines(stateFile, "UTF-8");
+            if (lines.size() < 2 || Integer.parseInt(lines.get(0).trim()) != getRecordFlags()) {
+                log.info("Data to skip during compaction has changed, restarting compaction");
+                return;
+            }
+            complete = COMPLETE.equals(lines.get(1));
+            lastSubjectId = (complete || lines.get(1).isEmpty() ? null : lines.get(1));
+        }
+        catch (Exception e) {
+            throw new BiometricServiceException("Unable to read compaction state from " + stateFile, e);
+        }
+    }
+
+    private void saveState() {
+        try {
+            String position = (complete ? COMPLETE : lastSubjectId == null ? "" : lastSubjectId);
+            FileUtils.writeStringToFile(stateFile, getRecordFlags() + "\n" + position, "UTF-8");
+        }
+        catch (IOException e) {
+            log.warn("Unable to save compaction state to " + stateFile, e);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import com.neurotec.biometrics.NFRecord;
+import com.neurotec.biometrics.NFTemplate;
+import com.neurotec.biometrics.NTemplate;
+import com.neurotec.biometrics.standards.BDIFStandard;
+import com.neurotec.biometrics.standards.FMRecord;
+import com.neurotec.io.NBuffer;
+import com.neurotec.lang.NVersion;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.DeadlineExceededException;
+import org.pih.biometric.service.exception.InvalidRequestException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.pih.biometric.service.model.BiometricTemplateFormat;
+import org.pih.biometric.service.model.Fingerprint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Component that converts enrolled templates from the proprietary format into standard formats, such as ISO, for export,
+ * and converts fingerprints submitted in standard formats into the proprietary format on import.
+ * Each finger record is converted separately, so that each fingerprint of the subject is returned in the standard format.
+ * Batches of templates are converted in parallel on a pool of formatConversionThreads workers, which share a single lease
+ * of the extraction license for the whole batch rather than obtaining it for each template.
+ * Converted fingerprints are cached for up to formatCacheSize templates each way, least recently used first out.  Each
+ * exported conversion is stored with a checksum of the template it was converted from, so it is only ever returned for
+ * that exact template, even if the subject is changed by a replica or peer without the cache being invalidated here.
+ * Imported conversions are cached by a hash of the submitted template, so that a template submitted repeatedly, such as
+ * a probe that is searched and then enrolled, is only converted once.
+ */
+@Component
+public class TemplateFormatConverter {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Autowired
+    BiometricLicenseManager licenseManager;
+
+    @Autowired
+    NativeResourceTracker resourceTracker;
+
+    @Autowired
+    NativeCallExecutor nativeCallExecutor;
+
+    private ExecutorService executor;
+    private final Map<String, CachedConversion> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, byte[]> importCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    @PostConstruct
+    public void startup() {
+        if (config.isMatchingServiceEnabled()) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, config.getFormatConversionThreads()), runnable -> {
+                Thread thread = new Thread(runnable, "format-converter-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the fingerprints of the given proprietary template, converted to the given format
+     */
+    public List<Fingerprint> convert(String subjectId, byte[] template, BiometricTemplateFormat format) {
+        Map<String, byte[]> templates = new LinkedHashMap<>();
+        templates.put(subjectId, template);
+        return convertAll(templates, format).get(subjectId);
+    }
+
+    /**
+     * @return the fingerprints of each of the given proprietary templates, by subjectId, converted to the given format.
+     * Templates that are not cached are converted in parallel, under a single lease of the extraction license.  The lease
+     * is confined to the native call executor, and the conversions run on the platform threads of this converter
+     */
+    public Map<String, List<Fingerprint>> convertAll(Map<String, byte[]> templates, BiometricTemplateFormat format) {
+        return nativeCallExecutor.call(() -> doConvertAll(templates, format));
+    }
+
+    /**
+     * @return the fingerprints of each of the given proprietary templates, by subjectId, converted to the given format
+     */
+    private Map<String, List<Fingerprint>> doConvertAll(Map<String, byte[]> templates, BiometricTemplateFormat format) {
+        Map<String, List<Fingerprint>> ret = new LinkedHashMap<>();
+        Map<String, Long> toConvert = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : templates.entrySet()) {
+            long checksum = checksum(entry.getValue());
+            List<Fingerprint> cached = getCached(entry.getKey(), format, checksum);
+            if (cached != null) {
+                ret.put(entry.getKey(), cached);
+            }
+            else {
+                toConvert.put(entry.getKey(), checksum);
+            }
+        }
+        if (toConvert.isEmpty()) {
+            return ret;
+        }
+
+        log.debug("Converting " + toConvert.size() + " templates to " + format + ", " + ret.size() + " found in cache");
+
+        licenseManager.obtainExtractionLicense();
+        try {
+            Map<String, Future<List<Fingerprint>>> futures = new LinkedHashMap<>();
+            for (String subjectId : toConvert.keySet()) {
+                byte[] template = templates.get(subjectId);
+                futures.put(subjectId, executor.submit(() -> doConvert(template, format)));
+            }
+            for (Map.Entry<String, Future<List<Fingerprint>>> entry : futures.entrySet()) {
+                List<Fingerprint> fingerprints = await(entry.getValue());
+                putCached(entry.getKey(), format, toConvert.get(entry.getKey()), fingerprints);
+                ret.put(entry.getKey(), fingerprints);
+            }
+        }
+        finally {
+            licenseManager.releaseExtractionLicense();
+        }
+        return ret;
+    }
+
+    /**
+     * @return the template of the given fingerprint in the proprietary format, or null if it has no template
+     */
+    public byte[] importTemplate(Fingerprint fingerprint) {
+        return importAll(Collections.singletonList(fingerprint)).get(0);
+    }
+
+    /**
+     * @return the template of each of the given fingerprints in the proprietary format, in the same order, or null for any
+     * fingerprint without a template.  Templates in other formats that are not cached are converted in parallel, under a
+     * single lease of the extraction license, confined in the same way as for convertAll
+     */
+    public List<byte[]> importAll(List<Fingerprint> fingerprints) {
+        return nativeCallExecutor.call(() -> doImportAll(fingerprints));
+    }
+
+    /**
+     * @return the template of each of the given fingerprints in the proprietary format, in the same order
+     */
+    private List<byte[]> doImportAll(List<Fingerprint> fingerprints) {
+        List<byte[]> ret = new ArrayList<>(fingerprints.size());
+        Map<Integer, String> toImport = new LinkedHashMap<>();
+        for (Fingerprint fp : fingerprints) {
+            byte[] template = (fp.getTemplate() == null ? null : Base64.decodeBase64(fp.getTemplate()));
+            if (template == null || fp.getFormat() == null || fp.getFormat() == BiometricTemplateFormat.PROPRIETARY) {
+                ret.add(template);
+                continue;
+            }
+            String key = getImportKey(template, fp.getFormat());
+            byte[] cached = getCachedImport(key);
+            if (cached == null) {
+                toImport.put(ret.size(), key);
+            }
+            ret.add(cached != null ? cached : template);
+        }
+        if (toImport.isEmpty()) {
+            return ret;
+        }
+
+        log.debug("Importing " + toImport.size() + " templates in other formats");
+
+        licenseManager.obtainExtractionLicense();
+        try {
+            Map<Integer, Future<byte[]>> futures = new LinkedHashMap<>();
+            for (Integer index : toImport.keySet()) {
+                byte[] template = ret.get(index);
+                BiometricTemplateFormat format = fingerprints.get(index).getFormat();
+                futures.put(index, executor.submit(() -> doImport(template, format)));
+            }
+            for (Map.Entry<Integer, Future<byte[]>> entry : futures.entrySet()) {
+                byte[] imported = await(entry.getValue());
+                putCachedImport(toImport.get(entry.getKey()), imported);
+                ret.set(entry.getKey(), imported);
+            }
+        }
+        finally {
+            licenseManager.releaseExtractionLicense();
+        }
+        return ret;
+    }
+
+    /**
+     * Removes any cached conversions of the template of the subject with the given subjectId, once it has changed
+     */
+    public void invalidate(String subjectId) {
+        synchronized (cache) {
+            for (BiometricTemplateFormat format : BiometricTemplateFormat.values()) {
+                cache.remove(getKey(subjectId, format));
+            }
+        }
+    }
+
+    /**
+     * @return the number of conversions cached
+     */
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the number of imported templates cached
+     */
+    public int getImportCacheSize() {
+        synchronized (importCache) {
+            return importCache.size();
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the finger records of the given proprietary template, each converted to the given format
+     */
+    private List<Fingerprint> doConvert(byte[] template, BiometricTemplateFormat format) {
+        BDIFStandard standard = getStandard(format);
+        List<Fingerprint> ret = new ArrayList<>();
+        NTemplate nTemplate = null;
+        try {
+            nTemplate = resourceTracker.track(new NTemplate(new NBuffer(template)));
+            if (nTemplate.getFingers() == null) {
+                return ret;
+            }
+            for (NFRecord record : nTemplate.getFingers().getRecords()) {
+                NFTemplate single = null;
+                FMRecord fmRecord = null;
+                try {
+                    single = resourceTracker.track(new NFTemplate());
+                    single.getRecords().add(record);
+                    fmRecord = resourceTracker.track(new FMRecord(single, standard, getVersion(format)));
+                    Fingerprint fp = new Fingerprint();
+                    fp.setFormat(format);
+                    if (record.getPosition() != null) {
+                        fp.setType(record.getPosition().name());
+                    }
+                    fp.setTemplate(Base64.encodeBase64String(fmRecord.save().toByteArray()));
+                    ret.add(fp);
+                }
+                finally {
+                    resourceTracker.dispose(fmRecord, single);
+                }
+            }
+            return ret;
+        }
+        finally {
+            resourceTracker.dispose(nTemplate);
+        }
+    }
+
+    /**
+     * @return the given template in the given standard format, converted to a proprietary template
+     * @throws InvalidRequestException if the template cannot be read in the given format
+     */
+    private byte[] doImport(byte[] template, BiometricTemplateFormat format) {
+        BDIFStandard standard = getStandard(format);
+        FMRecord fmRecord = null;
+        NFTemplate fingers = null;
+        NTemplate nTemplate = null;
+        try {
+            try {
+                fmRecord = resourceTracker.track(new FMRecord(new NBuffer(template), standard));
+                fingers = resourceTracker.track(fmRecord.toNFTemplate());
+            }
+            catch (RuntimeException e) {
+                throw new InvalidRequestException("Unable to read fingerprint template in " + format + " format", e);
+            }
+            nTemplate = resourceTracker.track(new NTemplate());
+            nTemplate.setFingers(fingers);
+            return nTemplate.save().toByteArray();
+        }
+        finally {
+            resourceTracker.dispose(nTemplate, fingers, fmRecord);
+        }
+    }
+
+    /**
+     * @return the standard that defines the given format
+     */
+    private BDIFStandard getStandard(BiometricTemplateFormat format) {
+        if (format == BiometricTemplateFormat.ISO) {
+            return BDIFStandard.ISO;
+        }
+        if (format == BiometricTemplateFormat.ANSI) {
+            return BDIFStandard.ANSI;
+        }
+        throw new BiometricServiceException("Unable to convert template to format: " + format);
+    }
+
+    /**
+     * @return the current version of the standard that defines the given format
+     */
+    private NVersion getVersion(BiometricTemplateFormat format) {
+        return (format == BiometricTemplateFormat.ANSI ? FMRecord.VERSION_ANSI_CURRENT : FMRecord.VERSION_ISO_CURRENT);
+    }
+
+    /**
+     * Waits for the given conversion to complete, but no longer than the deadline of the current request, if any
+     */
+    private <T> T await(Future<T> future) {
+        try {
+            Long remaining = RequestDeadline.getRemainingMs();
+            if (remaining == null) {
+                return future.get();
+            }
+            return future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            future.cancel(true);
+            throw new DeadlineExceededException("conversion");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BiometricServiceException("Interrupted while converting templates", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BiometricServiceException("Unable to convert template", e.getCause());
+        }
+    }
+
+    private List<Fingerprint> getCached(String subjectId, BiometricTemplateFormat format, long checksum) {
+        if (config.getFormatCacheSize() <= 0) {
+            return null;
+        }
+        synchronized (cache) {
+            CachedConversion cached = cache.get(getKey(subjectId, format));
+            return (cached != null && cached.checksum == checksum ? cached.fingerprints : null);
+        }
+    }
+
+    private void putCached(String subjectId, BiometricTemplateFormat format, long checksum, List<Fingerprint> fingerprints) {
+        if (config.getFormatCacheSize() <= 0) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(getKey(subjectId, format), new CachedConversion(checksum, Collections.unmodifiableList(fingerprints)));
+            while (cache.size() > config.getFormatCacheSize()) {
+                cache.remove(cache.keySet().iterator().next());
+            }
+        }
+    }
+
+    private byte[] getCachedImport(String key) {
+        if (config.getFormatCacheSize() <= 0) {
+            return null;
+        }
+        synchronized (importCache) {
+            return importCache.get(key);
+        }
+    }
+
+    private void putCachedImport(String key, byte[] template) {
+        if (config.getFormatCacheSize() <= 0) {
+            return;
+        }
+        synchronized (importCache) {
+            importCache.put(key, template);
+            while (importCache.size() > config.getFormatCacheSize()) {
+                importCache.remove(importCache.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @return a hash of the given template in the given format
+     */
+    private String getImportKey(byte[] template, BiometricTemplateFormat format) {
+        return format.name() + ":" + DigestUtils.sha256Hex(template);
+    }
+
+    private String getKey(String subjectId, BiometricTemplateFormat format) {
+        return format.name() + ":" + subjectId;
+    }
+
+    private long checksum(byte[] template) {
+        CRC32 crc = new CRC32();
+        crc.update(template);
+        return crc.getValue();
+    }
+
+    private static class CachedConversion {
+
+        private final long checksum;
+        private final List<Fingerprint> fingerprints;
+
+        private CachedConversion(long checksum, List<Fingerprint> fingerprints) {
+            this.checksum = checksum;
+            this.fingerprints = fingerprints;
+        }
+    }
+}
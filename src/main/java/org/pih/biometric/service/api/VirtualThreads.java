@@ -0,0 +1,97 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.api;
+
+import org.pih.biometric.service.exception.BiometricServiceException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads, when running on a JDK that provides them (21 or later).  The service is built for Java 8,
+ * so virtual threads are only reached through reflection, and are never required.
+ * Virtual threads are cheap to block, which suits work that mostly waits: requests waiting to be admitted, and calls to
+ * peer nodes.  Native calls into the Neurotechnology libraries hold the carrier thread of a virtual thread for as
+ * long as they run, so they are confined to pools of platform threads instead
+ */
+public class VirtualThreads {
+
+    private static final Method ofVirtual = findMethod(Thread.class, "ofVirtual");
+    private static final Method isVirtual = findMethod(Thread.class, "isVirtual");
+
+    private VirtualThreads() { }
+
+    /**
+     * @return true if the JDK in use provides virtual threads
+     */
+    public static boolean isAvailable() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * @return true if the given thread is a virtual thread
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (isVirtual == null) {
+            return false;
+        }
+        try {
+            return (Boolean) isVirtual.invoke(thread);
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads, named with the given prefix followed by a sequence number
+     * @throws BiometricServiceException if virtual threads are not available
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (!isAvailable()) {
+            throw new BiometricServiceException("Virtual threads require Java 21 or later, running " + System.getProperty("java.version"));
+        }
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e) {
+            throw new BiometricServiceException("Unable to create virtual threads", e);
+        }
+    }
+
+    /**
+     * @return an executor that runs each task on a new virtual thread, named with the given prefix
+     * @throws BiometricServiceException if virtual threads are not available
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory threadFactory = newThreadFactory(prefix);
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, threadFactory);
+        }
+        catch (Exception e) {
+            throw new BiometricServiceException("Unable to create virtual thread executor", e);
+        }
+    }
+
+    private static Method findMethod(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
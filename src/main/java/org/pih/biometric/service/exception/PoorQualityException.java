@@ -0,0 +1,28 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Represents an exception that occurs if a fingerprint is of too low a quality to be scanned or enrolled
+ */
+@ResponseStatus(HttpStatus.UNPROCESSABLE_ENTITY)
+public class PoorQualityException extends BiometricServiceException {
+
+    public PoorQualityException(int quality, int minimumQuality) {
+        super("Fingerprint quality of " + quality + " is below the minimum of " + minimumQuality);
+    }
+
+    public PoorQualityException(int minimumQuality) {
+        super("Fingerprint quality could not be assessed, so it cannot be shown to meet the minimum of " + minimumQuality);
+    }
+}
@@ -12,7 +12,9 @@ package org.pih.biometric.service.model;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Encapsulates configuration of the Neurotechnology client
@@ -27,6 +29,40 @@ public class BiometricConfig implements Serializable {
         COMPACT, SMALL, MEDIUM, LARGE
     }
 
+    /**
+     * A named set of matching settings that requests can select.  Any setting not specified is taken from the top-level configuration
+     */
+    public static class MatchingProfile implements Serializable {
+
+        private MatchingSpeed matchingSpeed;
+        private Integer matchingThreshold;
+        private TemplateSize templateSize;
+
+        public MatchingSpeed getMatchingSpeed() {
+            return matchingSpeed;
+        }
+
+        public void setMatchingSpeed(MatchingSpeed matchingSpeed) {
+            this.matchingSpeed = matchingSpeed;
+        }
+
+        public Integer getMatchingThreshold() {
+            return matchingThreshold;
+        }
+
+        public void setMatchingThreshold(Integer matchingThreshold) {
+            this.matchingThreshold = matchingThreshold;
+        }
+
+        public TemplateSize getTemplateSize() {
+            return templateSize;
+        }
+
+        public void setTemplateSize(TemplateSize templateSize) {
+            this.templateSize = templateSize;
+        }
+    }
+
     //****** PROPERTIES *****
 
     private boolean matchingServiceEnabled = false;
@@ -37,6 +73,65 @@ public class BiometricConfig implements Serializable {
     private MatchingSpeed matchingSpeed;
     private TemplateSize templateSize;
     private Integer ajpPort;
+    private boolean galleryEnabled = false;
+    private String changeLogPath;
+    private String snapshotDirectory;
+    private Long snapshotIntervalMs;
+    private int snapshotsToKeep = 2;
+    private boolean changeLogEnabled = false;
+    private int changeLogRetentionHours = 168;
+    private String leaderUrl;
+    private Long followerPollIntervalMs;
+    private int followerBatchSize = 500;
+    private String followerStatePath;
+    private List<String> peerUrls;
+    private int peerTimeoutMs = 5000;
+    private Map<String, MatchingProfile> matchingProfiles;
+    private int clientPoolSize = 4;
+    private boolean prefilterEnabled = false;
+    private double prefilterCandidateFraction = 0.1;
+    private int prefilterMinCandidates = 100;
+    private boolean prefilterFallbackEnabled = true;
+    private boolean positionFilterEnabled = false;
+    private boolean positionFilterIncludeUnknown = true;
+    private long matchResultMemoMs = 0;
+    private boolean admissionControlEnabled = true;
+    private int maxConcurrentOperations = 0;
+    private Map<String, Integer> operationLimits;
+    private int admissionQueueSize = 100;
+    private long admissionQueueTimeoutMs = 10000;
+    private int admissionRetryAfterSeconds = 2;
+    private long defaultRequestTimeoutMs = 0;
+    private boolean nativeResourceTrackingEnabled = true;
+    private long nativeResourceMaxAgeMs = 300000;
+    private Long nativeResourceCheckIntervalMs;
+    private int minScanQuality = 0;
+    private int scanCaptureAttempts = 3;
+    private int minEnrollQuality = 0;
+    private boolean compactionEnabled = false;
+    private List<String> compactionSkippedData;
+    private int compactionBatchSize = 100;
+    private Long compactionIntervalMs;
+    private long compactionDelayMs = 100;
+    private String compactionStatePath;
+    private int subjectPageSize = 100;
+    private int subjectPageMaxSize = 1000;
+    private int purgeBatchSize = 100;
+    private Long purgeIntervalMs;
+    private long purgeDelayMs = 100;
+    private String purgeQueuePath;
+    private int retentionDays = 0;
+    private int formatConversionThreads = 2;
+    private int formatCacheSize = 1000;
+    private int asyncMatchingThreads = 32;
+    private int asyncScanningThreads = 2;
+    private int asyncQueueSize = 200;
+    private int scheduledJobThreads = 4;
+    private boolean virtualThreadsEnabled = false;
+    private int nativeCarrierThreads = 0;
+    private boolean warmupEnabled = true;
+    private String warmupTemplatePath;
+    private int readinessQueueThreshold = 80;
 
     // ***** PROPERTY ACCESS *****
 
@@ -110,4 +205,488 @@ public class BiometricConfig implements Serializable {
     public void setAjpPort(Integer ajpPort) {
         this.ajpPort = ajpPort;
     }
+
+    public boolean isGalleryEnabled() {
+        return galleryEnabled;
+    }
+
+    public void setGalleryEnabled(boolean galleryEnabled) {
+        this.galleryEnabled = galleryEnabled;
+    }
+
+    public String getChangeLogPath() {
+        return changeLogPath;
+    }
+
+    public void setChangeLogPath(String changeLogPath) {
+        this.changeLogPath = changeLogPath;
+    }
+
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public Long getSnapshotIntervalMs() {
+        return snapshotIntervalMs;
+    }
+
+    public void setSnapshotIntervalMs(Long snapshotIntervalMs) {
+        this.snapshotIntervalMs = snapshotIntervalMs;
+    }
+
+    public int getSnapshotsToKeep() {
+        return snapshotsToKeep;
+    }
+
+    public void setSnapshotsToKeep(int snapshotsToKeep) {
+        this.snapshotsToKeep = snapshotsToKeep;
+    }
+
+    public boolean isChangeLogEnabled() {
+        return changeLogEnabled;
+    }
+
+    public void setChangeLogEnabled(boolean changeLogEnabled) {
+        this.changeLogEnabled = changeLogEnabled;
+    }
+
+    public int getChangeLogRetentionHours() {
+        return changeLogRetentionHours;
+    }
+
+    public void setChangeLogRetentionHours(int changeLogRetentionHours) {
+        this.changeLogRetentionHours = changeLogRetentionHours;
+    }
+
+    public String getLeaderUrl() {
+        return leaderUrl;
+    }
+
+    public void setLeaderUrl(String leaderUrl) {
+        this.leaderUrl = leaderUrl;
+    }
+
+    public Long getFollowerPollIntervalMs() {
+        return followerPollIntervalMs;
+    }
+
+    public void setFollowerPollIntervalMs(Long followerPollIntervalMs) {
+        this.followerPollIntervalMs = followerPollIntervalMs;
+    }
+
+    public int getFollowerBatchSize() {
+        return followerBatchSize;
+    }
+
+    public void setFollowerBatchSize(int followerBatchSize) {
+        this.followerBatchSize = followerBatchSize;
+    }
+
+    public String getFollowerStatePath() {
+        return followerStatePath;
+    }
+
+    public void setFollowerStatePath(String followerStatePath) {
+        this.followerStatePath = followerStatePath;
+    }
+
+    public List<String> getPeerUrls() {
+        if (peerUrls == null) {
+            peerUrls = new ArrayList<>();
+        }
+        return peerUrls;
+    }
+
+    public void setPeerUrls(List<String> peerUrls) {
+        this.peerUrls = peerUrls;
+    }
+
+    public int getPeerTimeoutMs() {
+        return peerTimeoutMs;
+    }
+
+    public void setPeerTimeoutMs(int peerTimeoutMs) {
+        this.peerTimeoutMs = peerTimeoutMs;
+    }
+
+    public Map<String, MatchingProfile> getMatchingProfiles() {
+        if (matchingProfiles == null) {
+            matchingProfiles = new LinkedHashMap<>();
+        }
+        return matchingProfiles;
+    }
+
+    public void setMatchingProfiles(Map<String, MatchingProfile> matchingProfiles) {
+        this.matchingProfiles = matchingProfiles;
+    }
+
+    public int getClientPoolSize() {
+        return clientPoolSize;
+    }
+
+    public void setClientPoolSize(int clientPoolSize) {
+        this.clientPoolSize = clientPoolSize;
+    }
+
+    public boolean isPrefilterEnabled() {
+        return prefilterEnabled;
+    }
+
+    public void setPrefilterEnabled(boolean prefilterEnabled) {
+        this.prefilterEnabled = prefilterEnabled;
+    }
+
+    public double getPrefilterCandidateFraction() {
+        return prefilterCandidateFraction;
+    }
+
+    public void setPrefilterCandidateFraction(double prefilterCandidateFraction) {
+        this.prefilterCandidateFraction = prefilterCandidateFraction;
+    }
+
+    public int getPrefilterMinCandidates() {
+        return prefilterMinCandidates;
+    }
+
+    public void setPrefilterMinCandidates(int prefilterMinCandidates) {
+        this.prefilterMinCandidates = prefilterMinCandidates;
+    }
+
+    public boolean isPrefilterFallbackEnabled() {
+        return prefilterFallbackEnabled;
+    }
+
+    public void setPrefilterFallbackEnabled(boolean prefilterFallbackEnabled) {
+        this.prefilterFallbackEnabled = prefilterFallbackEnabled;
+    }
+
+    public boolean isPositionFilterEnabled() {
+        return positionFilterEnabled;
+    }
+
+    public void setPositionFilterEnabled(boolean positionFilterEnabled) {
+        this.positionFilterEnabled = positionFilterEnabled;
+    }
+
+    public boolean isPositionFilterIncludeUnknown() {
+        return positionFilterIncludeUnknown;
+    }
+
+    public void setPositionFilterIncludeUnknown(boolean positionFilterIncludeUnknown) {
+        this.positionFilterIncludeUnknown = positionFilterIncludeUnknown;
+    }
+
+    public long getMatchResultMemoMs() {
+        return matchResultMemoMs;
+    }
+
+    public void setMatchResultMemoMs(long matchResultMemoMs) {
+        this.matchResultMemoMs = matchResultMemoMs;
+    }
+
+    public boolean isAdmissionControlEnabled() {
+        return admissionControlEnabled;
+    }
+
+    public void setAdmissionControlEnabled(boolean admissionControlEnabled) {
+        this.admissionControlEnabled = admissionControlEnabled;
+    }
+
+    public int getMaxConcurrentOperations() {
+        return maxConcurrentOperations;
+    }
+
+    public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+        this.maxConcurrentOperations = maxConcurrentOperations;
+    }
+
+    public Map<String, Integer> getOperationLimits() {
+        if (operationLimits == null) {
+            operationLimits = new LinkedHashMap<>();
+        }
+        return operationLimits;
+    }
+
+    public void setOperationLimits(Map<String, Integer> operationLimits) {
+        this.operationLimits = operationLimits;
+    }
+
+    public int getAdmissionQueueSize() {
+        return admissionQueueSize;
+    }
+
+    public void setAdmissionQueueSize(int admissionQueueSize) {
+        this.admissionQueueSize = admissionQueueSize;
+    }
+
+    public long getAdmissionQueueTimeoutMs() {
+        return admissionQueueTimeoutMs;
+    }
+
+    public void setAdmissionQueueTimeoutMs(long admissionQueueTimeoutMs) {
+        this.admissionQueueTimeoutMs = admissionQueueTimeoutMs;
+    }
+
+    public int getAdmissionRetryAfterSeconds() {
+        return admissionRetryAfterSeconds;
+    }
+
+    public void setAdmissionRetryAfterSeconds(int admissionRetryAfterSeconds) {
+        this.admissionRetryAfterSeconds = admissionRetryAfterSeconds;
+    }
+
+    public long getDefaultRequestTimeoutMs() {
+        return defaultRequestTimeoutMs;
+    }
+
+    public void setDefaultRequestTimeoutMs(long defaultRequestTimeoutMs) {
+        this.defaultRequestTimeoutMs = defaultRequestTimeoutMs;
+    }
+
+    public boolean isNativeResourceTrackingEnabled() {
+        return nativeResourceTrackingEnabled;
+    }
+
+    public void setNativeResourceTrackingEnabled(boolean nativeResourceTrackingEnabled) {
+        this.nativeResourceTrackingEnabled = nativeResourceTrackingEnabled;
+    }
+
+    public long getNativeResourceMaxAgeMs() {
+        return nativeResourceMaxAgeMs;
+    }
+
+    public void setNativeResourceMaxAgeMs(long nativeResourceMaxAgeMs) {
+        this.nativeResourceMaxAgeMs = nativeResourceMaxAgeMs;
+    }
+
+    public Long getNativeResourceCheckIntervalMs() {
+        return nativeResourceCheckIntervalMs;
+    }
+
+    public void setNativeResourceCheckIntervalMs(Long nativeResourceCheckIntervalMs) {
+        this.nativeResourceCheckIntervalMs = nativeResourceCheckIntervalMs;
+    }
+
+    public int getMinScanQuality() {
+        return minScanQuality;
+    }
+
+    public void setMinScanQuality(int minScanQuality) {
+        this.minScanQuality = minScanQuality;
+    }
+
+    public int getScanCaptureAttempts() {
+        return scanCaptureAttempts;
+    }
+
+    public void setScanCaptureAttempts(int scanCaptureAttempts) {
+        this.scanCaptureAttempts = scanCaptureAttempts;
+    }
+
+    public int getMinEnrollQuality() {
+        return minEnrollQuality;
+    }
+
+    public void setMinEnrollQuality(int minEnrollQuality) {
+        this.minEnrollQuality = minEnrollQuality;
+    }
+
+    public boolean isCompactionEnabled() {
+        return compactionEnabled;
+    }
+
+    public void setCompactionEnabled(boolean compactionEnabled) {
+        this.compactionEnabled = compactionEnabled;
+    }
+
+    public List<String> getCompactionSkippedData() {
+        if (compactionSkippedData == null) {
+            compactionSkippedData = new ArrayList<>();
+        }
+        return compactionSkippedData;
+    }
+
+    public void setCompactionSkippedData(List<String> compactionSkippedData) {
+        this.compactionSkippedData = compactionSkippedData;
+    }
+
+    public int getCompactionBatchSize() {
+        return compactionBatchSize;
+    }
+
+    public void setCompactionBatchSize(int compactionBatchSize) {
+        this.compactionBatchSize = compactionBatchSize;
+    }
+
+    public Long getCompactionIntervalMs() {
+        return compactionIntervalMs;
+    }
+
+    public void setCompactionIntervalMs(Long compactionIntervalMs) {
+        this.compactionIntervalMs = compactionIntervalMs;
+    }
+
+    public long getCompactionDelayMs() {
+        return compactionDelayMs;
+    }
+
+    public void setCompactionDelayMs(long compactionDelayMs) {
+        this.compactionDelayMs = compactionDelayMs;
+    }
+
+    public String getCompactionStatePath() {
+        return compactionStatePath;
+    }
+
+    public void setCompactionStatePath(String compactionStatePath) {
+        this.compactionStatePath = compactionStatePath;
+    }
+
+    public int getSubjectPageSize() {
+        return subjectPageSize;
+    }
+
+    public void setSubjectPageSize(int subjectPageSize) {
+        this.subjectPageSize = subjectPageSize;
+    }
+
+    public int getSubjectPageMaxSize() {
+        return subjectPageMaxSize;
+    }
+
+    public void setSubjectPageMaxSize(int subjectPageMaxSize) {
+        this.subjectPageMaxSize = subjectPageMaxSize;
+    }
+
+    public int getPurgeBatchSize() {
+        return purgeBatchSize;
+    }
+
+    public void setPurgeBatchSize(int purgeBatchSize) {
+        this.purgeBatchSize = purgeBatchSize;
+    }
+
+    public Long getPurgeIntervalMs() {
+        return purgeIntervalMs;
+    }
+
+    public void setPurgeIntervalMs(Long purgeIntervalMs) {
+        this.purgeIntervalMs = purgeIntervalMs;
+    }
+
+    public long getPurgeDelayMs() {
+        return purgeDelayMs;
+    }
+
+    public void setPurgeDelayMs(long purgeDelayMs) {
+        this.purgeDelayMs = purgeDelayMs;
+    }
+
+    public String getPurgeQueuePath() {
+        return purgeQueuePath;
+    }
+
+    public void setPurgeQueuePath(String purgeQueuePath) {
+        this.purgeQueuePath = purgeQueuePath;
+    }
+
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public int getFormatConversionThreads() {
+        return formatConversionThreads;
+    }
+
+    public void setFormatConversionThreads(int formatConversionThreads) {
+        this.formatConversionThreads = formatConversionThreads;
+    }
+
+    public int getFormatCacheSize() {
+        return formatCacheSize;
+    }
+
+    public void setFormatCacheSize(int formatCacheSize) {
+        this.formatCacheSize = formatCacheSize;
+    }
+
+    public int getAsyncMatchingThreads() {
+        return asyncMatchingThreads;
+    }
+
+    public void setAsyncMatchingThreads(int asyncMatchingThreads) {
+        this.asyncMatchingThreads = asyncMatchingThreads;
+    }
+
+    public int getAsyncScanningThreads() {
+        return asyncScanningThreads;
+    }
+
+    public void setAsyncScanningThreads(int asyncScanningThreads) {
+        this.asyncScanningThreads = asyncScanningThreads;
+    }
+
+    public int getScheduledJobThreads() {
+        return scheduledJobThreads;
+    }
+
+    public void setScheduledJobThreads(int scheduledJobThreads) {
+        this.scheduledJobThreads = scheduledJobThreads;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    public boolean isVirtualThreadsEnabled() {
+        return virtualThreadsEnabled;
+    }
+
+    public void setVirtualThreadsEnabled(boolean virtualThreadsEnabled) {
+        this.virtualThreadsEnabled = virtualThreadsEnabled;
+    }
+
+    public int getNativeCarrierThreads() {
+        return nativeCarrierThreads;
+    }
+
+    public void setNativeCarrierThreads(int nativeCarrierThreads) {
+        this.nativeCarrierThreads = nativeCarrierThreads;
+    }
+
+    public boolean isWarmupEnabled() {
+        return warmupEnabled;
+    }
+
+    public void setWarmupEnabled(boolean warmupEnabled) {
+        this.warmupEnabled = warmupEnabled;
+    }
+
+    public String getWarmupTemplatePath() {
+        return warmupTemplatePath;
+    }
+
+    public void setWarmupTemplatePath(String warmupTemplatePath) {
+        this.warmupTemplatePath = warmupTemplatePath;
+    }
+
+    public int getReadinessQueueThreshold() {
+        return readinessQueueThreshold;
+    }
+
+    public void setReadinessQueueThreshold(int readinessQueueThreshold) {
+        this.readinessQueueThreshold = readinessQueueThreshold;
+    }
 }
@@ -11,7 +11,10 @@ package org.pih.biometric.service.model;
 
 /**
  * Represents a particular Format that a sample can be stored in
+ * ISO:  an ISO/IEC 19794-2 finger minutiae record
+ * ANSI:  an ANSI INCITS 378 finger minutiae record
+ * PROPRIETARY:  a Neurotechnology template, in which subjects are enrolled
  */
 public enum BiometricTemplateFormat {
-    ISO, PROPRIETARY
+    ISO, ANSI, PROPRIETARY
 }
@@ -0,0 +1,49 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents the result of deleting many subjects at once
+ * deleted:  the subjectIds of the subjects that were deleted
+ * notFound:  the subjectIds of the subjects that were not enrolled, and so did not need to be deleted
+ */
+public class DeletionResult implements Serializable {
+
+    private List<String> deleted;
+    private List<String> notFound;
+
+    public DeletionResult() { }
+
+    public List<String> getDeleted() {
+        if (deleted == null) {
+            deleted = new ArrayList<>();
+        }
+        return deleted;
+    }
+
+    public void setDeleted(List<String> deleted) {
+        this.deleted = deleted;
+    }
+
+    public List<String> getNotFound() {
+        if (notFound == null) {
+            notFound = new ArrayList<>();
+        }
+        return notFound;
+    }
+
+    public void setNotFound(List<String> notFound) {
+        this.notFound = notFound;
+    }
+}
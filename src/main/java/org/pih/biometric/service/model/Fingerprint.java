@@ -13,10 +13,13 @@ import java.io.Serializable;
 
 /**
  * Represents a single fingerprint scan for a person
+ * image:  the Base64 encoded image of the scan
+ * quality:  the quality of the scan, from 0 (worst) to 100 (best), as assessed when the template was extracted
  */
 public class Fingerprint extends BiometricSample implements Serializable {
 
     private String image;
+    private Integer quality;
 
     public Fingerprint() { }
 
@@ -27,4 +30,12 @@ public class Fingerprint extends BiometricSample implements Serializable {
     public void setImage(String image) {
         this.image = image;
     }
+
+    public Integer getQuality() {
+        return quality;
+    }
+
+    public void setQuality(Integer quality) {
+        this.quality = quality;
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Per-request options that control an identification search
+ * maxResults:  the maximum number of matches to return, best first.  If 1 and a minScore is given, the search stops
+ * at the first match found with at least that score, rather than searching for the best match
+ * minScore:  the minimum score of matches to return.  This is only applied if above the configured matching threshold
+ * profile:  the name of the configured matching profile to search with, or null to use the top-level configuration
+ */
+public class IdentificationOptions implements Serializable {
+
+    private Integer maxResults;
+    private Integer minScore;
+    private String profile;
+
+    public IdentificationOptions() { }
+
+    public IdentificationOptions(Integer maxResults, Integer minScore) {
+        this.maxResults = maxResults;
+        this.minScore = minScore;
+    }
+
+    public IdentificationOptions(Integer maxResults, Integer minScore, String profile) {
+        this(maxResults, minScore);
+        this.profile = profile;
+    }
+
+    /**
+     * @return true if the search can stop at the first match found
+     */
+    public boolean isFirstMatchOnly() {
+        return maxResults != null && maxResults == 1 && minScore != null;
+    }
+
+    public Integer getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(Integer maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    public Integer getMinScore() {
+        return minScore;
+    }
+
+    public void setMinScore(Integer minScore) {
+        this.minScore = minScore;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+}
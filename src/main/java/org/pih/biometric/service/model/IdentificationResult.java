@@ -0,0 +1,71 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents the result of searching for matches of a subject, ordered by descending match score
+ * unavailablePeers:  when searching across multiple nodes, those nodes that did not respond in time,
+ * in which case the matches are only partial
+ */
+public class IdentificationResult implements Serializable {
+
+    private List<BiometricMatch> matches;
+    private List<String> unavailablePeers;
+
+    public IdentificationResult() { }
+
+    public IdentificationResult(List<BiometricMatch> matches) {
+        this.matches = matches;
+    }
+
+    /**
+     * Copies the given result, along with each of its matches, so that changes to one are not seen in the other
+     */
+    public IdentificationResult(IdentificationResult result) {
+        for (BiometricMatch match : result.getMatches()) {
+            getMatches().add(new BiometricMatch(match.getSubjectId(), match.getMatchScore()));
+        }
+        getUnavailablePeers().addAll(result.getUnavailablePeers());
+    }
+
+    public boolean isPartial() {
+        return !getUnavailablePeers().isEmpty();
+    }
+
+    public List<BiometricMatch> getMatches() {
+        if (matches == null) {
+            matches = new ArrayList<BiometricMatch>();
+        }
+        return matches;
+    }
+
+    public void setMatches(List<BiometricMatch> matches) {
+        this.matches = matches;
+    }
+
+    public List<String> getUnavailablePeers() {
+        if (unavailablePeers == null) {
+            unavailablePeers = new ArrayList<String>();
+        }
+        return unavailablePeers;
+    }
+
+    public void setUnavailablePeers(List<String> unavailablePeers) {
+        this.unavailablePeers = unavailablePeers;
+    }
+
+    public void addUnavailablePeer(String peer) {
+        getUnavailablePeers().add(peer);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents the native objects of a given type created at a given place in the code
+ * type:  the type of native object
+ * site:  the class, method and line at which the objects were created
+ * live:  the number of these objects created and not yet disposed of
+ * created:  the total number of these objects created
+ * disposed:  the total number of these objects disposed of
+ * oldestAgeMs:  the age of the oldest of these objects not yet disposed of
+ */
+public class NativeResourceStats implements Serializable {
+
+    private String type;
+    private String site;
+    private long live;
+    private long created;
+    private long disposed;
+    private long oldestAgeMs;
+
+    public NativeResourceStats() { }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public void setSite(String site) {
+        this.site = site;
+    }
+
+    public long getLive() {
+        return live;
+    }
+
+    public void setLive(long live) {
+        this.live = live;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public long getDisposed() {
+        return disposed;
+    }
+
+    public void setDisposed(long disposed) {
+        this.disposed = disposed;
+    }
+
+    public long getOldestAgeMs() {
+        return oldestAgeMs;
+    }
+
+    public void setOldestAgeMs(long oldestAgeMs) {
+        this.oldestAgeMs = oldestAgeMs;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents the progress of purging subjects in the background
+ * queued:  the number of subjects waiting to be purged
+ * deleted:  the total number of subjects deleted by the purge since startup
+ * notFound:  the total number of subjects queued for purging that were no longer enrolled
+ * lastError:  the error that last interrupted the purge, if any, after which the purge is retried
+ */
+public class PurgeStatus implements Serializable {
+
+    private int queued;
+    private long deleted;
+    private long notFound;
+    private String lastError;
+
+    public PurgeStatus() { }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(long deleted) {
+        this.deleted = deleted;
+    }
+
+    public long getNotFound() {
+        return notFound;
+    }
+
+    public void setNotFound(long notFound) {
+        this.notFound = notFound;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+}
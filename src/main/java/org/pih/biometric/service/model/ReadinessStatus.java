@@ -0,0 +1,97 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simple bean to encapsulate whether the system is ready to serve requests
+ */
+public class ReadinessStatus implements Serializable {
+
+    /**
+     * The overall state of the system.  A system that is warming up or saturated is expected to become ready without
+     * intervention, whereas a broken system is not
+     */
+    public enum State {
+        READY, WARMING_UP, SATURATED, BROKEN
+    }
+
+    private boolean ready;
+    private State state;
+    private boolean warmedUp;
+    private boolean galleryLoaded;
+    private Long warmupMs;
+    private String statusMessage;
+    private List<HealthCheck> checks;
+
+    public ReadinessStatus() { }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public boolean isWarmedUp() {
+        return warmedUp;
+    }
+
+    public void setWarmedUp(boolean warmedUp) {
+        this.warmedUp = warmedUp;
+    }
+
+    public boolean isGalleryLoaded() {
+        return galleryLoaded;
+    }
+
+    public void setGalleryLoaded(boolean galleryLoaded) {
+        this.galleryLoaded = galleryLoaded;
+    }
+
+    public Long getWarmupMs() {
+        return warmupMs;
+    }
+
+    public void setWarmupMs(Long warmupMs) {
+        this.warmupMs = warmupMs;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public void setStatusMessage(String statusMessage) {
+        this.statusMessage = statusMessage;
+    }
+
+    public List<HealthCheck> getChecks() {
+        if (checks == null) {
+            checks = new ArrayList<>();
+        }
+        return checks;
+    }
+
+    public void setChecks(List<HealthCheck> checks) {
+        this.checks = checks;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents a single mutation of the enrolled subjects, as recorded in the change log
+ * sequence:  monotonically increasing number assigned when the change is recorded
+ * template:  the composite proprietary template saved for the subject, null for deletions
+ */
+public class SubjectChange implements Serializable {
+
+    public enum Type {
+        ENROLL, UPDATE, DELETE
+    }
+
+    private long sequence;
+    private long timestamp;
+    private Type type;
+    private String subjectId;
+    private byte[] template;
+
+    public SubjectChange() { }
+
+    public SubjectChange(Type type, String subjectId, byte[] template) {
+        this.type = type;
+        this.subjectId = subjectId;
+        this.template = template;
+    }
+
+    @Override
+    public String toString() {
+        return "Change " + sequence + ": " + type + " " + subjectId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public void setSubjectId(String subjectId) {
+        this.subjectId = subjectId;
+    }
+
+    public byte[] getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(byte[] template) {
+        this.template = template;
+    }
+}
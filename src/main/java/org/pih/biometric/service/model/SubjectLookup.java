@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents a request for a single subject within a bulk retrieval
+ * subjectId:  the subjectId of the subject to retrieve
+ * format:  the format in which to return the templates of the subject, defaulting to proprietary
+ * existenceOnly:  if true, only whether the subject exists is returned, rather than its templates
+ */
+public class SubjectLookup implements Serializable {
+
+    private String subjectId;
+    private BiometricTemplateFormat format;
+    private boolean existenceOnly = false;
+
+    public SubjectLookup() { }
+
+    public SubjectLookup(String subjectId, BiometricTemplateFormat format, boolean existenceOnly) {
+        this.subjectId = subjectId;
+        this.format = format;
+        this.existenceOnly = existenceOnly;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public void setSubjectId(String subjectId) {
+        this.subjectId = subjectId;
+    }
+
+    public BiometricTemplateFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(BiometricTemplateFormat format) {
+        this.format = format;
+    }
+
+    public boolean isExistenceOnly() {
+        return existenceOnly;
+    }
+
+    public void setExistenceOnly(boolean existenceOnly) {
+        this.existenceOnly = existenceOnly;
+    }
+}
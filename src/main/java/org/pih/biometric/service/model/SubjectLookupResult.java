@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents the result of retrieving a single subject within a bulk retrieval
+ * subjectId:  the subjectId that was requested
+ * exists:  true if a subject with this subjectId is enrolled
+ * subject:  the subject with its templates, if it exists and more than its existence was requested
+ */
+public class SubjectLookupResult implements Serializable {
+
+    private String subjectId;
+    private boolean exists;
+    private BiometricSubject subject;
+
+    public SubjectLookupResult() { }
+
+    public SubjectLookupResult(String subjectId, boolean exists, BiometricSubject subject) {
+        this.subjectId = subjectId;
+        this.exists = exists;
+        this.subject = subject;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public void setSubjectId(String subjectId) {
+        this.subjectId = subjectId;
+    }
+
+    public boolean isExists() {
+        return exists;
+    }
+
+    public void setExists(boolean exists) {
+        this.exists = exists;
+    }
+
+    public BiometricSubject getSubject() {
+        return subject;
+    }
+
+    public void setSubject(BiometricSubject subject) {
+        this.subject = subject;
+    }
+}
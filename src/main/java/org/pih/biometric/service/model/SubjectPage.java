@@ -0,0 +1,80 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import org.apache.commons.codec.binary.Base64;
+import org.pih.biometric.service.exception.InvalidRequestException;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents a page of enrolled subjects, ordered by subjectId
+ * subjectIds:  the subjectIds of the subjects on this page
+ * subjects:  the subjects on this page, with their templates, unless only subjectIds were requested
+ * nextCursor:  the cursor to pass to retrieve the following page, or null if this is the last page
+ */
+public class SubjectPage implements Serializable {
+
+    private List<String> subjectIds;
+    private List<BiometricSubject> subjects;
+    private String nextCursor;
+
+    public SubjectPage() { }
+
+    /**
+     * @return an opaque cursor for the page that follows the given subjectId
+     */
+    public static String toCursor(String subjectId) {
+        return (subjectId == null ? null : Base64.encodeBase64URLSafeString(subjectId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the subjectId that the page for the given cursor follows, or null if no cursor is given
+     */
+    public static String fromCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        if (!Base64.isBase64(cursor)) {
+            throw new InvalidRequestException("Invalid cursor: " + cursor);
+        }
+        return new String(Base64.decodeBase64(cursor), StandardCharsets.UTF_8);
+    }
+
+    public List<String> getSubjectIds() {
+        if (subjectIds == null) {
+            subjectIds = new ArrayList<>();
+        }
+        return subjectIds;
+    }
+
+    public void setSubjectIds(List<String> subjectIds) {
+        this.subjectIds = subjectIds;
+    }
+
+    public List<BiometricSubject> getSubjects() {
+        return subjects;
+    }
+
+    public void setSubjects(List<BiometricSubject> subjects) {
+        this.subjects = subjects;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
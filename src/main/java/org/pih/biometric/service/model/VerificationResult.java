@@ -0,0 +1,61 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents the result of comparing an input template with the enrolled templates of a single subject
+ * The matchScore is a numeric that indicates the strength of the match, and verified indicates whether
+ * this meets the matching threshold
+ */
+public class VerificationResult implements Serializable {
+
+    private String subjectId;
+    private Integer matchScore;
+    private boolean verified;
+
+    public VerificationResult() { }
+
+    public VerificationResult(String subjectId, Integer matchScore, boolean verified) {
+        this.subjectId = subjectId;
+        this.matchScore = matchScore;
+        this.verified = verified;
+    }
+
+    @Override
+    public String toString() {
+        return "Verification of " + subjectId + " with score " + matchScore + (verified ? " succeeded" : " failed");
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public void setSubjectId(String subjectId) {
+        this.subjectId = subjectId;
+    }
+
+    public Integer getMatchScore() {
+        return matchScore;
+    }
+
+    public void setMatchScore(Integer matchScore) {
+        this.matchScore = matchScore;
+    }
+
+    public boolean isVerified() {
+        return verified;
+    }
+
+    public void setVerified(boolean verified) {
+        this.verified = verified;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.api.RequestDeadline;
+import org.pih.biometric.service.api.VirtualThreads;
+import org.pih.biometric.service.exception.TooManyRequestsException;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the work of web requests that make native calls on dedicated, bounded pools of threads, so that a request waiting
+ * for matching or for a fingerprint to be captured does not hold a servlet container thread.  The controllers return
+ * the future result, and the container thread is released to serve other requests until it completes.
+ * Matching work runs on up to asyncMatchingThreads threads, which should be more than the number of operations admitted
+ * at once, so that requests wait for admission in order of priority rather than in the order they arrived.  Device
+ * capture runs on its own asyncScanningThreads threads, so that a slow scan never holds up matching.
+ * Each pool queues up to asyncQueueSize requests, beyond which requests are rejected as too many.
+ * The deadline of each request is carried over to the thread that runs its work.
+ * If virtualThreadsEnabled is set and the JDK provides them, matching work instead runs on a virtual thread per request,
+ * up to the same total of asyncMatchingThreads plus asyncQueueSize requests.  Waiting for admission then costs almost
+ * nothing, and the native calls themselves are confined to platform threads by the native call executor.  Device capture
+ * always runs on platform threads, since the scanning engine holds a monitor for the whole capture.
+ */
+@Component
+public class AsyncRequestExecutor {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    private ExecutorService matchingExecutor;
+    private ExecutorService scanningExecutor;
+    private Semaphore virtualPermits;
+
+    @PostConstruct
+    public void startup() {
+        if (config.isVirtualThreadsEnabled() && VirtualThreads.isAvailable()) {
+            matchingExecutor = VirtualThreads.newThreadPerTaskExecutor("async-matching-");
+            virtualPermits = new Semaphore(Math.max(1, config.getAsyncMatchingThreads()) + Math.max(1, config.getAsyncQueueSize()));
+            log.info("Running matching requests on virtual threads");
+        }
+        else {
+            if (config.isVirtualThreadsEnabled()) {
+                log.warn("Virtual threads require Java 21 or later, running matching requests on platform threads");
+            }
+            matchingExecutor = createExecutor("async-matching", config.getAsyncMatchingThreads());
+        }
+        scanningExecutor = createExecutor("async-scanning", config.getAsyncScanningThreads());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        matchingExecutor.shutdownNow();
+        scanningExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the future result of the given matching work, which is run on the matching pool
+     */
+    public <T> CompletableFuture<T> matching(Supplier<T> work) {
+        return submit(matchingExecutor, "matching", work);
+    }
+
+    /**
+     * @return the future result of the given device capture work, which is run on the scanning pool
+     */
+    public <T> CompletableFuture<T> scanning(Supplier<T> work) {
+        return submit(scanningExecutor, "scanning", work);
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * The future is completed with any exception thrown by the work as it is, rather than wrapped, so that it is
+     * handled in the same way as if it had been thrown by the controller
+     */
+    private <T> CompletableFuture<T> submit(ExecutorService executor, String operation, Supplier<T> work) {
+        Semaphore permits = (executor == matchingExecutor ? virtualPermits : null);
+        if (permits != null && !permits.tryAcquire()) {
+            throw rejected(operation);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Long deadline = RequestDeadline.get();
+        try {
+            executor.execute(() -> {
+                RequestDeadline.set(deadline);
+                try {
+                    future.complete(work.get());
+                }
+                catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+                finally {
+                    RequestDeadline.clear();
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw rejected(operation);
+        }
+        return future;
+    }
+
+    private TooManyRequestsException rejected(String operation) {
+        log.debug("Rejecting " + operation + " request, too many requests are waiting");
+        return new TooManyRequestsException(operation, config.getAdmissionRetryAfterSeconds());
+    }
+
+    private ThreadPoolExecutor createExecutor(String name, int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        int size = Math.max(1, threads);
+        return new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, config.getAsyncQueueSize())), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.pih.biometric.service.api.SubjectChangeLog;
+import org.pih.biometric.service.exception.BiometricServiceException;
+import org.pih.biometric.service.exception.ServiceNotEnabledException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+
+/**
+ * Provides web services for reading the log of changes to enrolled subjects, used to keep replicas in sync
+ */
+@RestController
+@CrossOrigin
+public class ChangeController {
+
+    public static final String LAST_SEQUENCE_HEADER = "X-Last-Sequence";
+
+    @Autowired
+    SubjectChangeLog changeLog;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    /**
+     * @return the changes recorded after the given sequence, in order, streamed as a JSON array directly from the change log
+     * A 410 Gone status is returned if changes since the given sequence are no longer retained
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/changes")
+    public ResponseEntity<StreamingResponseBody> getChanges(@RequestParam(value = "since", defaultValue = "0") final long since,
+                                                            @RequestParam(value = "limit", required = false) Integer limit) {
+        if (!changeLog.isEnabled()) {
+            throw new ServiceNotEnabledException("Subject Change Log");
+        }
+        // The reader is opened before responding, so that changes no longer available are reported with a 410 status,
+        // rather than a response that silently skips them if the log is truncated before the changes are streamed
+        final SubjectChangeLog.ChangeReader reader = changeLog.openSince(since);
+        final int maxChanges = (limit == null ? Integer.MAX_VALUE : limit);
+        StreamingResponseBody body = outputStream -> {
+            try {
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                generator.writeStartArray();
+                final int[] numWritten = {0};
+                reader.readAll(change -> {
+                    if (numWritten[0] >= maxChanges) {
+                        return false;
+                    }
+                    try {
+                        objectMapper.writeValue(generator, change);
+                    }
+                    catch (IOException e) {
+                        throw new BiometricServiceException("Unable to write change " + change.getSequence(), e);
+                    }
+                    numWritten[0]++;
+                    return true;
+                });
+                generator.writeEndArray();
+                generator.flush();
+            }
+            finally {
+                reader.close();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(LAST_SEQUENCE_HEADER, Long.toString(changeLog.getLastSequence()))
+                .body(body);
+    }
+
+    /**
+     * @return the sequence of the last recorded change, from which a replica copying all subjects can continue following changes
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/changes/sequence")
+    public long getLastSequence() {
+        if (!changeLog.isEnabled()) {
+            throw new ServiceNotEnabledException("Subject Change Log");
+        }
+        return changeLog.getLastSequence();
+    }
+}
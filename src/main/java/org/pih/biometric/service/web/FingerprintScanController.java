@@ -21,6 +21,7 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Provides web services for biometrics scanning
@@ -33,6 +34,9 @@ public class FingerprintScanController {
     @Autowired
     FingerprintScanningEngine engine;
 
+    @Autowired
+    AsyncRequestExecutor executor;
+
     /**
      * @return Fingerprint that is the result of a scan
      */
@@ -47,7 +51,7 @@ public class FingerprintScanController {
      */
     @RequestMapping(method = RequestMethod.GET, value = "/scan")
     @ResponseBody
-    public Fingerprint scan(@RequestParam(value="type", required=false) String type) {
-        return engine.scanFingerprint(type);
+    public CompletableFuture<Fingerprint> scan(@RequestParam(value="type", required=false) String type) {
+        return executor.scanning(() -> engine.scanFingerprint(type));
     }
 }
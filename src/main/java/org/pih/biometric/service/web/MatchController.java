@@ -12,17 +12,24 @@ package org.pih.biometric.service.web;
 import org.pih.biometric.service.api.BiometricMatchingEngine;
 import org.pih.biometric.service.model.BiometricMatch;
 import org.pih.biometric.service.model.BiometricSample;
+import org.pih.biometric.service.exception.InvalidRequestException;
 import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.IdentificationOptions;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.springframework.util.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Provides web services for biometrics matching
@@ -31,19 +38,43 @@ import java.util.List;
 @CrossOrigin
 public class MatchController {
 
+    public static final String PARTIAL_RESULT_HEADER = "X-Partial-Result";
+    public static final String UNAVAILABLE_PEERS_HEADER = "X-Unavailable-Peers";
+
     @Autowired
     BiometricMatchingEngine engine;
 
+    @Autowired
+    AsyncRequestExecutor executor;
+
     /**
      * @return matches for the given subject.  This is essentially a search for a template, with resulting possible matches
+     * The number of matches can be limited to the best maxResults, and to those with a score of at least minScore.
+     * If maxResults is 1 and minScore is given, the first match found with that score is returned without searching further.
+     * A configured matching profile may be named to search with its speed and threshold rather than the defaults.
+     * If the search was across peer nodes and some did not respond, the partial result header is set, along with the peers that were unavailable
      */
     @RequestMapping(method = RequestMethod.POST, value = "/match")
     @ResponseBody
-    public List<BiometricMatch> match(@RequestBody BiometricSubject subject) {
-        List<BiometricMatch> matches = new ArrayList<>();
-        if (subject != null) {
-            matches = engine.identify(subject);
+    public CompletableFuture<ResponseEntity<List<BiometricMatch>>> match(@RequestBody BiometricSubject subject,
+                                                                         @RequestParam(value = "maxResults", required = false) Integer maxResults,
+                                                                         @RequestParam(value = "minScore", required = false) Integer minScore,
+                                                                         @RequestParam(value = "profile", required = false) String profile) {
+        if (maxResults != null && maxResults < 1) {
+            throw new InvalidRequestException("maxResults must be at least 1");
         }
-        return matches;
+        return executor.matching(() -> {
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            List<BiometricMatch> matches = new ArrayList<>();
+            if (subject != null) {
+                IdentificationResult result = engine.search(subject, new IdentificationOptions(maxResults, minScore, profile));
+                if (result.isPartial()) {
+                    response.header(PARTIAL_RESULT_HEADER, "true");
+                    response.header(UNAVAILABLE_PEERS_HEADER, StringUtils.collectionToCommaDelimitedString(result.getUnavailablePeers()));
+                }
+                matches = result.getMatches();
+            }
+            return response.body(matches);
+        });
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pih.biometric.service.api.RequestDeadline;
+import org.pih.biometric.service.model.BiometricConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Sets the deadline of each request, from the time remaining given by the client in the X-Request-Timeout header (in
+ * milliseconds), or the absolute time given in the X-Request-Deadline header (in milliseconds since the epoch).
+ * If neither is given, the configured default request timeout is applied, if any
+ */
+@Component
+public class RequestDeadlineFilter extends OncePerRequestFilter {
+
+    protected final Log log = LogFactory.getLog(this.getClass());
+
+    @Autowired
+    BiometricConfig config;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+        RequestDeadline.set(getDeadline(request));
+        try {
+            chain.doFilter(request, response);
+        }
+        finally {
+            RequestDeadline.clear();
+        }
+    }
+
+    private Long getDeadline(HttpServletRequest request) {
+        long now = System.currentTimeMillis();
+        Long timeout = parseHeader(request, RequestDeadline.TIMEOUT_HEADER);
+        if (timeout != null) {
+            return now + timeout;
+        }
+        Long deadline = parseHeader(request, RequestDeadline.DEADLINE_HEADER);
+        if (deadline != null) {
+            return deadline;
+        }
+        if (config.getDefaultRequestTimeoutMs() > 0) {
+            return now + config.getDefaultRequestTimeoutMs();
+        }
+        return null;
+    }
+
+    private Long parseHeader(HttpServletRequest request, String header) {
+        String value = request.getHeader(header);
+        if (StringUtils.hasText(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                log.debug("Ignoring invalid " + header + " header: " + value);
+            }
+        }
+        return null;
+    }
+}
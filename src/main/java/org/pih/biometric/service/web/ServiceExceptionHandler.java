@@ -0,0 +1,39 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.web;
+
+import org.pih.biometric.service.exception.OperationRejectedException;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Handles exceptions that need more than a response status, such as those that tell the client when to retry
+ */
+@ControllerAdvice
+public class ServiceExceptionHandler {
+
+    /**
+     * Responds with the status of the exception, and a Retry-After header, so that clients back off when the system is too busy
+     */
+    @ExceptionHandler(OperationRejectedException.class)
+    public void handleOperationRejected(OperationRejectedException e, HttpServletResponse response) throws IOException {
+        ResponseStatus responseStatus = AnnotationUtils.findAnnotation(e.getClass(), ResponseStatus.class);
+        HttpStatus status = (responseStatus == null ? HttpStatus.SERVICE_UNAVAILABLE : responseStatus.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Integer.toString(e.getRetryAfterSeconds()));
+        response.sendError(status.value(), e.getMessage());
+    }
+}
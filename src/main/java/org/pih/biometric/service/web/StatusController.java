@@ -9,15 +9,26 @@
  */
 package org.pih.biometric.service.web;
 
+import org.pih.biometric.service.api.AdmissionManager;
 import org.pih.biometric.service.api.BiometricMatchingEngine;
+import org.pih.biometric.service.api.HealthMonitor;
+import org.pih.biometric.service.api.NativeResourceTracker;
 import org.pih.biometric.service.model.BiometricConfig;
 import org.pih.biometric.service.model.BiometricStatus;
+import org.pih.biometric.service.model.HealthCheck;
+import org.pih.biometric.service.model.NativeResourceStats;
+import org.pih.biometric.service.model.OperationStats;
+import org.pih.biometric.service.model.ReadinessStatus;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+
 /**
  * Provides web services for system status
  */
@@ -31,6 +42,15 @@ public class StatusController {
     @Autowired
     BiometricMatchingEngine engine;
 
+    @Autowired
+    AdmissionManager admissionManager;
+
+    @Autowired
+    NativeResourceTracker resourceTracker;
+
+    @Autowired
+    HealthMonitor healthMonitor;
+
     /**
      * @return the status of the system.
      */
@@ -49,4 +69,45 @@ public class StatusController {
         }
         return status;
     }
+
+    /**
+     * @return the checks that determine whether the system is alive, with a 503 status if any fail, in which case it
+     * should be restarted.  Unlike the status, this does not use the matching engine
+     */
+    @RequestMapping("/health/live")
+    @ResponseBody
+    public ResponseEntity<List<HealthCheck>> live() {
+        List<HealthCheck> checks = healthMonitor.getLiveness();
+        boolean alive = checks.stream().allMatch(HealthCheck::isHealthy);
+        return ResponseEntity.status(alive ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE).body(checks);
+    }
+
+    /**
+     * @return whether the system is ready to serve requests, and if not, whether it is warming up, saturated, or broken,
+     * with a 503 status unless it is ready.  Unlike the status, this does not use the matching engine
+     */
+    @RequestMapping("/health/ready")
+    @ResponseBody
+    public ResponseEntity<ReadinessStatus> ready() {
+        ReadinessStatus status = healthMonitor.getReadiness();
+        return ResponseEntity.status(status.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE).body(status);
+    }
+
+    /**
+     * @return the number of operations of each type running and waiting, and the totals admitted and rejected
+     */
+    @RequestMapping("/status/admission")
+    @ResponseBody
+    public List<OperationStats> admission() {
+        return admissionManager.getStats();
+    }
+
+    /**
+     * @return the number of native objects of each type created at each place in the code, and how many are still live
+     */
+    @RequestMapping("/status/resources")
+    @ResponseBody
+    public List<NativeResourceStats> resources() {
+        return resourceTracker.getStats();
+    }
 }
@@ -10,21 +10,39 @@
 package org.pih.biometric.service.web;
 
 import org.pih.biometric.service.api.BiometricMatchingEngine;
+import org.pih.biometric.service.api.SubjectPurger;
+import org.pih.biometric.service.exception.InvalidRequestException;
 import org.pih.biometric.service.exception.SubjectNotFoundException;
+import org.pih.biometric.service.model.BiometricConfig;
 import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.BiometricTemplateFormat;
+import org.pih.biometric.service.model.DeletionResult;
+import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.PurgeStatus;
+import org.pih.biometric.service.model.SubjectLookup;
+import org.pih.biometric.service.model.SubjectLookupResult;
+import org.pih.biometric.service.model.SubjectPage;
+import org.pih.biometric.service.model.VerificationResult;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServletResponse;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Provides web services for biometric subjects
@@ -33,20 +51,26 @@ import javax.servlet.http.HttpServletResponse;
 @CrossOrigin
 public class SubjectController {
 
+    @Autowired
+    BiometricConfig config;
+
     @Autowired
     BiometricMatchingEngine engine;
 
+    @Autowired
+    SubjectPurger purger;
+
+    @Autowired
+    AsyncRequestExecutor executor;
+
     /**
      * A POST operation is only meant to create, not update.  Duplicate subjects result in a conflict status
      * @return saved subject with subjectId populated
      */
     @RequestMapping(method = RequestMethod.POST, value = "/subject")
     @ResponseBody
-    public BiometricSubject create(@RequestBody BiometricSubject subject, HttpServletResponse response, UriComponentsBuilder ucBuilder) {
-        subject = engine.enroll(subject);
-        response.addHeader(HttpHeaders.LOCATION, ucBuilder.path("/subject/{subjectId}").buildAndExpand(subject.getSubjectId()).toUriString());
-        response.setStatus(HttpStatus.CREATED.value());
-        return subject;
+    public CompletableFuture<ResponseEntity<BiometricSubject>> create(@RequestBody BiometricSubject subject, UriComponentsBuilder ucBuilder) {
+        return executor.matching(() -> doCreate(subject, ucBuilder));
     }
 
     /**
@@ -55,28 +79,139 @@ public class SubjectController {
      */
     @RequestMapping(method = RequestMethod.PUT, value = "/subject")
     @ResponseBody
-    public BiometricSubject createOrUpdate(@RequestBody BiometricSubject subject, HttpServletResponse response, UriComponentsBuilder ucBuilder) {
-        if (subject.getSubjectId() != null) {
-            BiometricSubject existingTemplate = engine.getSubject(subject.getSubjectId());
-            if (existingTemplate != null) {
-                return engine.update(subject);
+    public CompletableFuture<ResponseEntity<BiometricSubject>> createOrUpdate(@RequestBody BiometricSubject subject, UriComponentsBuilder ucBuilder) {
+        return executor.matching(() -> {
+            if (subject.getSubjectId() != null) {
+                BiometricSubject existingTemplate = engine.getSubject(subject.getSubjectId());
+                if (existingTemplate != null) {
+                    return ResponseEntity.ok(engine.update(subject));
+                }
             }
-        }
-        return create(subject, response, ucBuilder);
+            return doCreate(subject, ucBuilder);
+        });
     }
 
     /**
      * A GET operation is meant to return an existing resource
-     * @return saved subject for the given subjectId
+     * If the gallery is loaded, the response carries an ETag made from the version of the subject and the format requested,
+     * so a client that already has the subject can send it back in an If-None-Match header, and receives 304 Not Modified
+     * if it is unchanged.  The version is checked before the subject is loaded, so an unchanged subject is neither read
+     * from the database nor converted
+     * @return saved subject for the given subjectId, with templates in the given format (defaulting to proprietary)
      */
     @RequestMapping(method = RequestMethod.GET, value = "/subject/{subjectId}")
     @ResponseBody
-    public BiometricSubject createOrUpdate(@PathVariable String subjectId) {
-        BiometricSubject subject = engine.getSubject(subjectId);
-        if (subject == null) {
-            throw new SubjectNotFoundException(subjectId);
+    public CompletableFuture<ResponseEntity<BiometricSubject>> createOrUpdate(@PathVariable String subjectId,
+                                                                              @RequestParam(value = "format", required = false) BiometricTemplateFormat format,
+                                                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        // The version is read before the subject is loaded, so that a subject changed in between is sent with the older
+        // ETag, and is sent again on the next request, rather than an older subject being sent with the newer ETag
+        Long version = engine.getSubjectVersion(subjectId);
+        String eTag = (version == null ? null : getETag(version, format));
+        if (eTag != null && isMatch(ifNoneMatch, eTag)) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).<BiometricSubject>body(null));
+        }
+        return executor.matching(() -> {
+            BiometricSubject subject = engine.getSubject(subjectId, format);
+            if (subject == null) {
+                throw new SubjectNotFoundException(subjectId);
+            }
+            return (eTag == null ? ResponseEntity.ok().body(subject) : ResponseEntity.ok().eTag(eTag).body(subject));
+        });
+    }
+
+    /**
+     * Lists enrolled subjects in order of subjectId, a page at a time.  Pass the nextCursor of each page to retrieve the next
+     * @param limit the maximum number of subjects on the page, up to the configured maximum
+     * @param modifiedSince if given, only subjects enrolled or changed at or after this time, in milliseconds since the epoch
+     * @param idsOnly if true, only the subjectIds are returned, rather than the subjects with their templates
+     * @return the page of subjects following the given cursor, or the first page if no cursor is given
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/subjects")
+    @ResponseBody
+    public CompletableFuture<SubjectPage> list(@RequestParam(value = "cursor", required = false) String cursor,
+                                               @RequestParam(value = "limit", required = false) Integer limit,
+                                               @RequestParam(value = "modifiedSince", required = false) Long modifiedSince,
+                                               @RequestParam(value = "idsOnly", defaultValue = "false") boolean idsOnly,
+                                               @RequestParam(value = "format", required = false) BiometricTemplateFormat format) {
+        int pageSize = (limit == null ? config.getSubjectPageSize() : Math.min(limit, config.getSubjectPageMaxSize()));
+        if (pageSize <= 0) {
+            throw new InvalidRequestException("The limit must be greater than 0");
+        }
+        return executor.matching(() -> getPage(cursor, pageSize, modifiedSince, idsOnly, format));
+    }
+
+    /**
+     * Retrieves many subjects at once, each in the requested format, or only whether each exists
+     * @return the result of each lookup, in the order requested
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/subjects/lookup")
+    @ResponseBody
+    public CompletableFuture<List<SubjectLookupResult>> lookup(@RequestBody List<SubjectLookup> lookups) {
+        if (lookups.size() > config.getSubjectPageMaxSize()) {
+            throw new InvalidRequestException("Unable to retrieve more than " + config.getSubjectPageMaxSize() + " subjects at once");
+        }
+        for (SubjectLookup lookup : lookups) {
+            if (lookup.getSubjectId() == null) {
+                throw new InvalidRequestException("Unable to retrieve subject since subjectId is missing");
+            }
         }
-        return subject;
+        return executor.matching(() -> engine.getSubjects(lookups));
+    }
+
+    /**
+     * Exports many subjects at once, with their templates converted to the given format, for transfer to other systems
+     * @return the result of each lookup, in the order requested, with subjects that cannot be found marked as not existing
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/subjects/export")
+    @ResponseBody
+    public CompletableFuture<List<SubjectLookupResult>> export(@RequestBody List<String> subjectIds,
+                                                               @RequestParam(value = "format") BiometricTemplateFormat format) {
+        List<SubjectLookup> lookups = new ArrayList<>();
+        for (String subjectId : subjectIds) {
+            lookups.add(new SubjectLookup(subjectId, format, false));
+        }
+        return lookup(lookups);
+    }
+
+    /**
+     * Compares the given subject with the enrolled templates of the subject with the given subjectId only, without searching other subjects
+     * @return the match score and whether the subject is verified, 404 if the subject cannot be found, or 400 if the given
+     * subject has no fingerprint templates to compare
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/subject/{subjectId}/verify")
+    @ResponseBody
+    public CompletableFuture<VerificationResult> verify(@PathVariable String subjectId, @RequestBody BiometricSubject subject,
+                                                        @RequestParam(value = "profile", required = false) String profile) {
+        engine.checkProbe(subject);
+        return executor.matching(() -> engine.verify(subjectId, subject, profile));
+    }
+
+    /**
+     * Adds the given fingerprint at the given finger position (eg. LEFT_INDEX_FINGER) of an existing subject, replacing
+     * any finger the subject already has at that position.  The subject's other fingers are left as they are
+     * @return 404 if the subject cannot be found
+     */
+    @RequestMapping(method = RequestMethod.PUT, value = "/subject/{subjectId}/finger/{position}")
+    @ResponseBody
+    public CompletableFuture<Void> putFinger(@PathVariable String subjectId, @PathVariable String position, @RequestBody Fingerprint fingerprint) {
+        return executor.matching(() -> {
+            engine.putFinger(subjectId, position, fingerprint);
+            return null;
+        });
+    }
+
+    /**
+     * Removes the finger at the given finger position of an existing subject
+     * @return 404 if the subject cannot be found or has no finger at that position
+     */
+    @RequestMapping(method = RequestMethod.DELETE, value = "/subject/{subjectId}/finger/{position}")
+    @ResponseBody
+    public CompletableFuture<Void> removeFinger(@PathVariable String subjectId, @PathVariable String position) {
+        return executor.matching(() -> {
+            engine.removeFinger(subjectId, position);
+            return null;
+        });
     }
 
     /**
@@ -85,11 +220,114 @@ public class SubjectController {
      */
     @RequestMapping(method = RequestMethod.DELETE, value = "/subject/{subjectId}")
     @ResponseBody
-    public void delete(@PathVariable String subjectId) {
-        BiometricSubject subject = engine.getSubject(subjectId);
-        if (subject == null) {
-            throw new SubjectNotFoundException(subjectId);
+    public CompletableFuture<Void> delete(@PathVariable String subjectId) {
+        return executor.matching(() -> {
+            engine.deleteSubject(subjectId);
+            return null;
+        });
+    }
+
+    /**
+     * Deletes many subjects at once
+     * @return the subjectIds that were deleted, and those that could not be found
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/subjects/delete")
+    @ResponseBody
+    public CompletableFuture<DeletionResult> deleteSubjects(@RequestBody List<String> subjectIds) {
+        if (subjectIds.size() > config.getSubjectPageMaxSize()) {
+            throw new InvalidRequestException("Unable to delete more than " + config.getSubjectPageMaxSize() + " subjects at once, queue them for purging instead");
+        }
+        if (subjectIds.contains(null)) {
+            throw new InvalidRequestException("Unable to delete subject since subjectId is missing");
+        }
+        return executor.matching(() -> engine.deleteSubjects(subjectIds));
+    }
+
+    /**
+     * Queues any number of subjects to be deleted in the background, in batches that give way to live traffic
+     * @return 202 Accepted, with the progress of the purge
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/subjects/purge")
+    @ResponseBody
+    public PurgeStatus purge(@RequestBody List<String> subjectIds, HttpServletResponse response) {
+        if (subjectIds.contains(null)) {
+            throw new InvalidRequestException("Unable to purge subject since subjectId is missing");
+        }
+        PurgeStatus status = purger.enqueue(subjectIds);
+        response.setStatus(HttpStatus.ACCEPTED.value());
+        return status;
+    }
+
+    /**
+     * @return the progress of purging subjects in the background
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/subjects/purge")
+    @ResponseBody
+    public PurgeStatus getPurgeStatus() {
+        return purger.getStatus();
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the page of up to pageSize subjects following the given cursor
+     */
+    private SubjectPage getPage(String cursor, int pageSize, Long modifiedSince, boolean idsOnly, BiometricTemplateFormat format) {
+        List<String> subjectIds = engine.getSubjectIds(SubjectPage.fromCursor(cursor), pageSize + 1, modifiedSince);
+        SubjectPage page = new SubjectPage();
+        if (subjectIds.size() > pageSize) {
+            subjectIds = subjectIds.subList(0, pageSize);
+            page.setNextCursor(SubjectPage.toCursor(subjectIds.get(pageSize - 1)));
+        }
+        page.setSubjectIds(new ArrayList<>(subjectIds));
+        if (!idsOnly) {
+            List<SubjectLookup> lookups = new ArrayList<>();
+            for (String subjectId : subjectIds) {
+                lookups.add(new SubjectLookup(subjectId, format, false));
+            }
+            List<BiometricSubject> subjects = new ArrayList<>();
+            for (SubjectLookupResult result : engine.getSubjects(lookups)) {
+                if (result.getSubject() != null) {
+                    subjects.add(result.getSubject()); // Subjects may have been deleted since they were listed
+                }
+            }
+            page.setSubjects(subjects);
+        }
+        return page;
+    }
+
+    /**
+     * @return the saved subject, with a 201 Created status and its location
+     */
+    private ResponseEntity<BiometricSubject> doCreate(BiometricSubject subject, UriComponentsBuilder ucBuilder) {
+        BiometricSubject saved = engine.enroll(subject);
+        URI location = ucBuilder.path("/subject/{subjectId}").buildAndExpand(saved.getSubjectId()).toUri();
+        return ResponseEntity.created(location).body(saved);
+    }
+
+    /**
+     * @return an ETag for the given version of a subject in the given format
+     */
+    private String getETag(long version, BiometricTemplateFormat format) {
+        return "\"" + version + "-" + (format == null ? BiometricTemplateFormat.PROPRIETARY : format) + "\"";
+    }
+
+    /**
+     * @return true if the given If-None-Match header lists the given ETag, or is a wildcard
+     */
+    private boolean isMatch(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
         }
-        engine.deleteSubject(subjectId);
+        return false;
     }
 }
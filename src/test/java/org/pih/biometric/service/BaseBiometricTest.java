@@ -11,13 +11,19 @@ package org.pih.biometric.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.IOUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.runner.RunWith;
+import org.pih.biometric.service.api.BiometricClientPool;
 import org.pih.biometric.service.api.BiometricMatchingEngine;
+import org.pih.biometric.service.api.IdentificationCoalescer;
+import org.pih.biometric.service.api.NativeResourceTracker;
 import org.pih.biometric.service.model.BiometricConfig;
 import org.pih.biometric.service.model.BiometricSubject;
 import org.pih.biometric.service.model.BiometricTemplateFormat;
 import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.NativeResourceStats;
+import org.pih.biometric.service.web.RequestDeadlineFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Bean;
@@ -26,6 +32,9 @@ import org.springframework.context.annotation.Import;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.web.context.WebApplicationContext;
 
 import java.io.File;
@@ -34,6 +43,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
 
 /**
@@ -62,9 +74,23 @@ public abstract class BaseBiometricTest {
     @Autowired
     protected BiometricConfig config;
 
+    @Autowired
+    protected BiometricClientPool clientPool;
+
+    @Autowired
+    protected IdentificationCoalescer coalescer;
+
+    @Autowired
+    protected RequestDeadlineFilter requestDeadlineFilter;
+
+    @Autowired
+    protected NativeResourceTracker resourceTracker;
+
     @Before
     public void setup() throws Exception {
-        this.mockMvc = webAppContextSetup(webApplicationContext).build();
+        this.mockMvc = webAppContextSetup(webApplicationContext).addFilters(requestDeadlineFilter).build();
+        clientPool.invalidate();
+        coalescer.invalidate();
         if (DB_FILE.exists()) {
             DB_FILE.delete();
         }
@@ -73,6 +99,34 @@ public abstract class BaseBiometricTest {
         loadSubjectsToDb();
     }
 
+    /**
+     * Fails the test if any native objects created during it have not been disposed of, once idle clients are released
+     */
+    @After
+    public void checkNativeResources() throws Exception {
+        clientPool.invalidate();
+        StringBuilder leaked = new StringBuilder("Native objects not disposed of:");
+        for (NativeResourceStats stats : resourceTracker.getStats()) {
+            if (stats.getLive() > 0) {
+                leaked.append(" ").append(stats.getLive()).append(" ").append(stats.getType()).append(" at ").append(stats.getSite());
+            }
+        }
+        assertThat(leaked.toString(), resourceTracker.getLiveCount(), is(0));
+    }
+
+    /**
+     * Convenience method to perform a request, waiting for the result of any asynchronous processing and dispatching it
+     */
+    protected ResultActions perform(RequestBuilder requestBuilder) throws Exception {
+        ResultActions actions = mockMvc.perform(requestBuilder);
+        MvcResult result = actions.andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result.getAsyncResult(60000);
+            return mockMvc.perform(asyncDispatch(result));
+        }
+        return actions;
+    }
+
     /**
      * Sub-classes can override this method to load the database with initial templates
      */
@@ -115,6 +169,11 @@ public abstract class BaseBiometricTest {
             config.setMatchingThreshold(72);
             config.setTemplateSize(BiometricConfig.TemplateSize.LARGE);
             config.setSqliteDatabasePath(DB_FILE.getAbsolutePath());
+            config.setChangeLogEnabled(true);
+            config.setWarmupEnabled(false); // Tests warm up the engine themselves, rather than while other tests run
+            BiometricConfig.MatchingProfile strict = new BiometricConfig.MatchingProfile();
+            strict.setMatchingThreshold(1000);
+            config.getMatchingProfiles().put("strict", strict);
             List<File> licenseFiles = new ArrayList<>();
             if (LICENSE_DIR.exists()) {
                 for (File f : LICENSE_DIR.listFiles()) {
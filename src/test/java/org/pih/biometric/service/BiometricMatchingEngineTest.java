@@ -9,15 +9,43 @@
  */
 package org.pih.biometric.service;
 
+import com.neurotec.biometrics.NBiometricStatus;
+import com.neurotec.biometrics.NFRecord;
+import com.neurotec.biometrics.NSubject;
+import com.neurotec.biometrics.client.NBiometricClient;
 import org.junit.Test;
 import org.pih.biometric.service.api.BiometricMatchingEngine;
+import org.pih.biometric.service.api.SubjectChangeLog;
+import org.pih.biometric.service.exception.DeadlineExceededException;
+import org.pih.biometric.service.exception.PoorQualityException;
+import org.pih.biometric.service.model.BiometricMatch;
 import org.pih.biometric.service.model.BiometricSubject;
 import org.pih.biometric.service.model.BiometricTemplateFormat;
+import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.IdentificationOptions;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.pih.biometric.service.model.SubjectChange;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 /**
  * Tests for the matching engine
@@ -27,6 +55,9 @@ public class BiometricMatchingEngineTest extends BaseBiometricTest {
     @Autowired
     BiometricMatchingEngine matchingEngine;
 
+    @Autowired
+    SubjectChangeLog changeLog;
+
     @Test
     public void shouldGetTemplatesInVariousFormats() throws Exception {
         String subjectId = "101-01-1";
@@ -43,4 +74,215 @@ public class BiometricMatchingEngineTest extends BaseBiometricTest {
         String isoFormat = matchingEngine.getSubject(subjectId, BiometricTemplateFormat.ISO).getFingerprints().get(0).getTemplate();
         assertThat(isoFormat, not(defaultFormat));
     }
+
+    @Test
+    public void shouldRememberSearchResultsUntilSubjectsChange() throws Exception {
+        config.setMatchResultMemoMs(60000);
+        try {
+            BiometricSubject probe = loadSubjectFromResource("101-01-1");
+            IdentificationResult first = matchingEngine.search(probe, new IdentificationOptions());
+            assertThat(first.getMatches().size(), is(0));
+
+            // Each request receives its own copy of the remembered result
+            first.getMatches().add(new BiometricMatch("101-02-1", 100));
+            IdentificationResult second = matchingEngine.search(probe, new IdentificationOptions());
+            assertThat(second, not(sameInstance(first)));
+            assertThat(second.getMatches().size(), is(0));
+
+            matchingEngine.enroll(loadSubjectFromResource("101-01-1"));
+            IdentificationResult afterEnroll = matchingEngine.search(probe, new IdentificationOptions());
+            assertThat(afterEnroll.getMatches().size(), is(1));
+
+            AtomicInteger searches = new AtomicInteger();
+            Supplier<IdentificationResult> search = () -> {
+                searches.incrementAndGet();
+                return afterEnroll;
+            };
+            IdentificationResult remembered = coalescer.execute(probe, new IdentificationOptions(), search);
+            assertThat(coalescer.execute(probe, new IdentificationOptions(), search).getMatches().get(0).getSubjectId(), is("101-01-1"));
+            assertThat(remembered.getMatches().get(0).getSubjectId(), is("101-01-1"));
+            assertThat(searches.get(), is(0)); // Remembered from the search after enrolling
+        }
+        finally {
+            config.setMatchResultMemoMs(0);
+        }
+    }
+
+    @Test
+    public void shouldSearchAgainIfSharedSearchExceedsDeadlineOfItsOwnRequest() throws Exception {
+        BiometricSubject probe = loadSubjectFromResource("101-01-1");
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch releaseLeader = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> leader = executor.submit(() -> coalescer.execute(probe, new IdentificationOptions(), () -> {
+                leaderStarted.countDown();
+                try {
+                    releaseLeader.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new DeadlineExceededException("identification");
+            }));
+            leaderStarted.await();
+
+            AtomicInteger searches = new AtomicInteger();
+            Thread releaser = new Thread(() -> {
+                try {
+                    Thread.sleep(200); // Allow the request below to wait on the leader
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                releaseLeader.countDown();
+            });
+            releaser.start();
+            IdentificationResult result = coalescer.execute(probe, new IdentificationOptions(), () -> {
+                searches.incrementAndGet();
+                return new IdentificationResult(new ArrayList<>());
+            });
+            releaser.join();
+
+            assertThat(result.getMatches().size(), is(0));
+            assertThat(searches.get(), is(1));
+            Throwable leaderFailure = null;
+            try {
+                leader.get();
+            }
+            catch (ExecutionException e) {
+                leaderFailure = e.getCause();
+            }
+            assertThat(leaderFailure instanceof DeadlineExceededException, is(true));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldKeepFingersPatchedConcurrently() throws Exception {
+        BiometricSubject subject = loadSubjectFromResource("101-01-1");
+        subject.getFingerprints().get(0).setType("RIGHT_INDEX_FINGER");
+        matchingEngine.enroll(subject);
+        Fingerprint leftThumb = loadSubjectFromResource("101-02-1").getFingerprints().get(0);
+        Fingerprint rightThumb = loadSubjectFromResource("101-03-1").getFingerprints().get(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> matchingEngine.putFinger("101-01-1", "LEFT_THUMB", leftThumb));
+            Future<?> second = executor.submit(() -> matchingEngine.putFinger("101-01-1", "RIGHT_THUMB", rightThumb));
+            first.get();
+            second.get();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        List<String> types = new ArrayList<>();
+        for (Fingerprint fp : matchingEngine.getSubject("101-01-1").getFingerprints()) {
+            types.add(fp.getType());
+        }
+        assertThat(types, containsInAnyOrder("RIGHT_INDEX_FINGER", "LEFT_THUMB", "RIGHT_THUMB"));
+    }
+
+    @Test
+    public void shouldMatchSubjectAfterCompactingTemplate() throws Exception {
+        matchingEngine.enroll(loadSubjectFromResource("101-01-1"));
+        int sizeBefore = getTemplateSize("101-01-1");
+        int saved = matchingEngine.compactSubject("101-01-1", NFRecord.FLAG_SKIP_RIDGE_COUNTS | NFRecord.FLAG_SKIP_CURVATURES | NFRecord.FLAG_SKIP_GS);
+        assertThat(saved, greaterThan(0));
+        assertThat(getTemplateSize("101-01-1"), is(sizeBefore - saved));
+        assertThat(matchingEngine.getSubjectIds(), contains("101-01-1"));
+
+        List<BiometricMatch> matches = matchingEngine.identify(loadSubjectFromResource("101-01-1"));
+        assertThat(matches.size(), is(1));
+        assertThat(matches.get(0).getSubjectId(), is("101-01-1"));
+    }
+
+    @Test
+    public void shouldApplyReplicatedChangesRegardlessOfMinEnrollQuality() throws Exception {
+        matchingEngine.enroll(loadSubjectFromResource("101-01-1"));
+        List<SubjectChange> changes = new ArrayList<>();
+        changeLog.readSince(changeLog.getLastSequence() - 1, changes::add);
+        matchingEngine.deleteSubject("101-01-1");
+
+        config.setMinEnrollQuality(101);
+        try {
+            PoorQualityException rejected = null;
+            try {
+                matchingEngine.enroll(loadSubjectFromResource("101-01-1"));
+            }
+            catch (PoorQualityException e) {
+                rejected = e;
+            }
+            assertThat(rejected, notNullValue());
+
+            // The replica converges with the leader, even though it would not accept the enrollment itself
+            matchingEngine.applyReplicatedChange(changes.get(0));
+            matchingEngine.applyReplicatedChange(changes.get(0));
+            assertThat(matchingEngine.getSubjectIds(), contains("101-01-1"));
+            assertThat(matchingEngine.identify(loadSubjectFromResource("101-01-1")).size(), is(1));
+
+            SubjectChange deletion = new SubjectChange(SubjectChange.Type.DELETE, "101-01-1", null);
+            matchingEngine.applyReplicatedChange(deletion);
+            matchingEngine.applyReplicatedChange(deletion);
+            assertThat(matchingEngine.getSubjectIds(), empty());
+        }
+        finally {
+            config.setMinEnrollQuality(0);
+        }
+    }
+
+    @Test
+    public void shouldRefreshWarmClientsOfOtherProfilesWhenSubjectsChange() throws Exception {
+        clientPool.fill("strict");
+        int idleCount = clientPool.getIdleCount("strict");
+        matchingEngine.enroll(loadSubjectFromResource("101-01-1"));
+        assertThat(clientPool.getIdleCount("strict"), is(idleCount));
+
+        // The client was created before the enrollment, and is brought up to date as it is borrowed
+        NBiometricClient client = clientPool.borrow("strict");
+        try {
+            NSubject[] subjects = client.list();
+            assertThat(subjects.length, is(1));
+            for (NSubject subject : subjects) {
+                subject.dispose();
+            }
+        }
+        finally {
+            clientPool.release(client, false);
+        }
+    }
+
+    @Test
+    public void shouldMatchProbeSubmittedInStandardFormats() throws Exception {
+        matchingEngine.enroll(loadSubjectFromResource("101-01-1"));
+        for (BiometricTemplateFormat format : new BiometricTemplateFormat[] { BiometricTemplateFormat.ISO, BiometricTemplateFormat.ANSI }) {
+            BiometricSubject probe = matchingEngine.getSubject("101-01-1", format);
+            probe.setSubjectId(null);
+            List<BiometricMatch> matches = matchingEngine.identify(probe);
+            assertThat(matches.size(), is(1));
+            assertThat(matches.get(0).getSubjectId(), is("101-01-1"));
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the size in bytes of the template stored in the database for the given subject
+     */
+    private int getTemplateSize(String subjectId) {
+        NBiometricClient client = clientPool.borrow(null);
+        NSubject subject = new NSubject();
+        try {
+            subject.setId(subjectId);
+            assertThat(client.get(subject), is(NBiometricStatus.OK));
+            return subject.getTemplateBuffer().toByteArray().length;
+        }
+        finally {
+            subject.dispose();
+            clientPool.release(client, false);
+        }
+    }
 }
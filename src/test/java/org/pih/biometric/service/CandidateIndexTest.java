@@ -0,0 +1,157 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service;
+
+import com.neurotec.biometrics.NFPosition;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pih.biometric.service.api.BiometricGallery;
+import org.pih.biometric.service.api.CandidateIndex;
+import org.pih.biometric.service.api.GallerySnapshotManager;
+import org.pih.biometric.service.model.BiometricMatch;
+import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Tests for selecting the candidates for a search from the index of gallery features
+ */
+public class CandidateIndexTest extends BaseBiometricTest {
+
+    private static final File SNAPSHOT_DIR = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".snapshots");
+
+    @Autowired
+    CandidateIndex candidateIndex;
+
+    @Autowired
+    GallerySnapshotManager snapshotManager;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Before
+    public void enableFilters() throws Exception {
+        config.setGalleryEnabled(true);
+        config.setSnapshotDirectory(SNAPSHOT_DIR.getAbsolutePath());
+        config.setPrefilterEnabled(true);
+        config.setPrefilterMinCandidates(1);
+        config.setPositionFilterEnabled(true);
+        config.setPositionFilterIncludeUnknown(false);
+    }
+
+    @After
+    public void disableFilters() throws Exception {
+        config.setGalleryEnabled(false);
+        config.setSnapshotDirectory(null);
+        config.setPrefilterEnabled(false);
+        config.setPrefilterMinCandidates(100);
+        config.setPositionFilterEnabled(false);
+        config.setPositionFilterIncludeUnknown(true);
+        gallery.clear();
+        FileUtils.deleteQuietly(SNAPSHOT_DIR);
+    }
+
+    @Test
+    public void shouldScanOnlySubjectsInCompatibleBuckets() throws Exception {
+        enroll("101-01-1", "RIGHT_INDEX_FINGER");
+        enroll("101-02-1", "LEFT_THUMB");
+        enroll("101-03-1", "LEFT_THUMB");
+        snapshotManager.loadGallery();
+        assertThat(candidateIndex.size(), is(3));
+
+        CandidateIndex.Selection selection = candidateIndex.select(gallery.get("101-01-1").getTemplate());
+        assertThat(selection.getScanned(), lessThan(gallery.size()));
+        assertThat(selection.getSubjectIds(), contains("101-01-1"));
+
+        BiometricSubject probe = loadSubjectFromResource("101-01-2");
+        probe.getFingerprints().get(0).setType("RIGHT_INDEX_FINGER");
+        IdentificationResult result = matchingEngine.search(probe);
+        assertThat(result.getMatches().get(0).getSubjectId(), is("101-01-1"));
+    }
+
+    @Test
+    public void shouldSearchPositionPartitionsKeptCurrentAsSubjectsChange() throws Exception {
+        config.setPrefilterEnabled(false);
+        enroll("101-01-1", "RIGHT_INDEX_FINGER");
+        enroll("101-02-1", "LEFT_THUMB");
+        snapshotManager.loadGallery();
+        assertThat(candidateIndex.select(gallery.get("101-01-1").getTemplate()).isPartitioned(), is(true));
+
+        assertThat(matchIds(search("101-01-2", "RIGHT_INDEX_FINGER")), contains("101-01-1"));
+        assertThat(search("101-01-2", "LEFT_THUMB").getMatches(), empty());
+
+        enroll("101-03-1", "RIGHT_INDEX_FINGER");
+        assertThat(matchIds(search("101-03-1", "RIGHT_INDEX_FINGER")), contains("101-03-1"));
+
+        matchingEngine.deleteSubject("101-01-1");
+        assertThat(search("101-01-2", "RIGHT_INDEX_FINGER").getMatches(), empty());
+    }
+
+    @Test
+    public void shouldRestrictCandidateTemplatesToSearchPositions() throws Exception {
+        enroll("101-01-1", "RIGHT_INDEX_FINGER");
+        snapshotManager.loadGallery();
+        byte[] template = gallery.get("101-01-1").getTemplate();
+
+        assertThat(candidateIndex.getCandidateTemplate("101-01-1", EnumSet.of(NFPosition.RIGHT_INDEX_FINGER)), sameInstance(template));
+        assertThat(candidateIndex.getCandidateTemplate("101-01-1", EnumSet.of(NFPosition.LEFT_THUMB)), nullValue());
+    }
+
+    @Test
+    public void shouldNotSelectCandidatesIfFiltersWereDisabledWhenGalleryLoaded() throws Exception {
+        enroll("101-01-1", "RIGHT_INDEX_FINGER");
+        config.setPrefilterEnabled(false);
+        config.setPositionFilterEnabled(false);
+        snapshotManager.loadGallery();
+        assertThat(candidateIndex.size(), is(0));
+
+        config.setPositionFilterEnabled(true);
+        assertThat(candidateIndex.select(gallery.get("101-01-1").getTemplate()), nullValue());
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    private void enroll(String subjectId, String type) throws Exception {
+        BiometricSubject subject = loadSubjectFromResource(subjectId);
+        subject.getFingerprints().get(0).setType(type);
+        matchingEngine.enroll(subject);
+    }
+
+    private IdentificationResult search(String subjectId, String type) throws Exception {
+        BiometricSubject probe = loadSubjectFromResource(subjectId);
+        probe.setSubjectId(null);
+        probe.getFingerprints().get(0).setType(type);
+        return matchingEngine.search(probe);
+    }
+
+    private List<String> matchIds(IdentificationResult result) {
+        List<String> ret = new ArrayList<>();
+        for (BiometricMatch match : result.getMatches()) {
+            ret.add(match.getSubjectId());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pih.biometric.service.api.BiometricGallery;
+import org.pih.biometric.service.api.GallerySnapshotManager;
+import org.pih.biometric.service.api.SubjectChangeLog;
+import org.pih.biometric.service.exception.InvalidRequestException;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * Tests for persisting the gallery to snapshots and restoring it on startup
+ */
+public class GallerySnapshotManagerTest extends BaseBiometricTest {
+
+    private static final File SNAPSHOT_DIR = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".snapshots");
+
+    @Autowired
+    GallerySnapshotManager snapshotManager;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    SubjectChangeLog changeLog;
+
+    @Before
+    public void enableGallery() throws Exception {
+        FileUtils.deleteQuietly(SNAPSHOT_DIR);
+        config.setGalleryEnabled(true);
+        config.setSnapshotDirectory(SNAPSHOT_DIR.getAbsolutePath());
+    }
+
+    @After
+    public void disableGallery() throws Exception {
+        config.setGalleryEnabled(false);
+        config.setSnapshotDirectory(null);
+        config.setSnapshotsToKeep(2);
+        config.setChangeLogRetentionHours(168);
+        gallery.clear();
+        FileUtils.deleteQuietly(SNAPSHOT_DIR);
+    }
+
+    @Test
+    public void shouldRestoreGalleryFromSnapshot() throws Exception {
+        loadSubjectToDb("101-01-1");
+        loadSubjectToDb("101-02-1");
+        snapshotManager.loadGallery();
+        assertThat(getSnapshots().length, is(1));
+        assertThat(gallery.size(), is(2));
+        byte[] template = gallery.get("101-01-1").getTemplate();
+        long modifiedKnownSince = gallery.getModifiedKnownSince();
+
+        Thread.sleep(10);
+        snapshotManager.loadGallery();
+        assertThat(gallery.size(), is(2));
+        assertThat(gallery.get("101-01-1").getTemplate(), is(template));
+        assertThat(gallery.getModifiedKnownSince(), is(modifiedKnownSince)); // Would be later if reloaded from the database
+    }
+
+    @Test
+    public void shouldReplayChangesRecordedAfterSnapshot() throws Exception {
+        loadSubjectToDb("101-01-1");
+        snapshotManager.loadGallery();
+        loadSubjectToDb("101-02-1");
+        matchingEngine.deleteSubject("101-01-1");
+        long lastSequence = changeLog.getLastSequence();
+
+        snapshotManager.loadGallery();
+        assertThat(getSnapshots().length, is(1));
+        assertThat(gallery.size(), is(1));
+        assertThat(gallery.get("101-02-1").getVersion(), is(lastSequence - 1));
+        assertThat(gallery.get("101-02-1").isModifiedKnown(), is(true));
+    }
+
+    @Test
+    public void shouldFallBackToEarlierSnapshotIfLatestIsCorrupt() throws Exception {
+        loadSubjectToDb("101-01-1");
+        snapshotManager.loadGallery();
+        loadSubjectToDb("101-02-1");
+        snapshotManager.takeSnapshot();
+        File[] snapshots = getSnapshots();
+        assertThat(snapshots.length, is(2));
+
+        File latest = new File(SNAPSHOT_DIR, "gallery-" + changeLog.getLastSequence() + ".snapshot");
+        RandomAccessFile raf = new RandomAccessFile(latest, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xFF);
+        }
+        finally {
+            raf.close();
+        }
+
+        snapshotManager.loadGallery();
+        assertThat(gallery.size(), is(2));
+        assertThat(gallery.get("101-02-1"), notNullValue()); // Replayed from the change log onto the earlier snapshot
+    }
+
+    @Test
+    public void shouldRemoveOldSnapshotsAndTruncateChangeLog() throws Exception {
+        config.setSnapshotsToKeep(1);
+        config.setChangeLogRetentionHours(0);
+        loadSubjectToDb("101-01-1");
+        snapshotManager.loadGallery();
+        loadSubjectToDb("101-02-1");
+        loadSubjectToDb("101-03-1");
+        Thread.sleep(10);
+        snapshotManager.takeSnapshot();
+
+        File[] snapshots = getSnapshots();
+        assertThat(snapshots.length, is(1));
+        assertThat(snapshots[0].getName(), is("gallery-" + changeLog.getLastSequence() + ".snapshot"));
+        assertThat(changeLog.getEarliestAvailableSequence(), is(changeLog.getLastSequence()));
+        assertThat(changeLog.readSince(changeLog.getEarliestAvailableSequence(), change -> true), is(0));
+
+        snapshotManager.loadGallery();
+        assertThat(gallery.size(), is(3));
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void shouldRefuseModifiedSinceBeforeGalleryWasLoadedFromDatabase() throws Exception {
+        loadSubjectToDb("101-01-1");
+        snapshotManager.loadGallery();
+        assertThat(gallery.get("101-01-1").isModifiedKnown(), is(false));
+        assertThat(matchingEngine.getSubjectIds(null, 10, gallery.getModifiedKnownSince()).size(), is(0));
+        matchingEngine.getSubjectIds(null, 10, 0L);
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    private File[] getSnapshots() {
+        File[] ret = SNAPSHOT_DIR.listFiles((dir, name) -> name.endsWith(".snapshot"));
+        return (ret == null ? new File[0] : ret);
+    }
+}
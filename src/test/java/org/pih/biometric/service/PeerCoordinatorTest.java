@@ -0,0 +1,237 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pih.biometric.service.api.PeerCoordinator;
+import org.pih.biometric.service.api.RequestDeadline;
+import org.pih.biometric.service.exception.SubjectNotFoundException;
+import org.pih.biometric.service.model.BiometricMatch;
+import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.IdentificationOptions;
+import org.pih.biometric.service.model.IdentificationResult;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Tests for coordinating peer nodes, against two peers that each answer requests from the coordinator
+ */
+public class PeerCoordinatorTest extends BaseBiometricTest {
+
+    private static final int PEER_TIMEOUT_MS = 1000;
+
+    @Autowired
+    PeerCoordinator peerCoordinator;
+
+    private StubPeer peerA;
+    private StubPeer peerB;
+
+    @Before
+    public void startPeers() throws Exception {
+        peerA = new StubPeer();
+        peerB = new StubPeer();
+        config.setPeerUrls(Arrays.asList(peerA.getUrl(), peerB.getUrl()));
+        config.setPeerTimeoutMs(PEER_TIMEOUT_MS);
+        peerCoordinator.startup();
+    }
+
+    @After
+    public void stopPeers() throws Exception {
+        peerCoordinator.shutdown();
+        config.setPeerUrls(new ArrayList<>());
+        peerA.stop();
+        peerB.stop();
+    }
+
+    @Test
+    public void shouldMergeMatchesFromAllPeers() throws Exception {
+        peerA.matches = new BiometricMatch[] { new BiometricMatch("a1", 90), new BiometricMatch("a2", 40) };
+        peerB.matches = new BiometricMatch[] { new BiometricMatch("b1", 70) };
+
+        IdentificationOptions options = new IdentificationOptions();
+        options.setMaxResults(2);
+        IdentificationResult result = peerCoordinator.identify(loadSubjectFromResource("101-01-1"), options);
+
+        assertThat(result.isPartial(), is(false));
+        assertThat(subjectIds(result), contains("a1", "b1"));
+        assertThat(peerA.requests, contains("POST /match"));
+        assertThat(peerB.requests, contains("POST /match"));
+    }
+
+    @Test
+    public void shouldReturnPartialResultIfPeerTimesOut() throws Exception {
+        peerA.matches = new BiometricMatch[] { new BiometricMatch("a1", 90) };
+        peerB.matches = new BiometricMatch[] { new BiometricMatch("b1", 95) };
+        peerB.delayMs = PEER_TIMEOUT_MS * 3;
+
+        long startTime = System.currentTimeMillis();
+        IdentificationResult result = peerCoordinator.identify(loadSubjectFromResource("101-01-1"), new IdentificationOptions());
+
+        assertThat(System.currentTimeMillis() - startTime < PEER_TIMEOUT_MS * 2, is(true));
+        assertThat(result.isPartial(), is(true));
+        assertThat(result.getUnavailablePeers(), contains(peerB.getUrl()));
+        assertThat(subjectIds(result), contains("a1"));
+    }
+
+    @Test
+    public void shouldRouteEachSubjectToThePeerThatOwnsIt() throws Exception {
+        String subjectOnA = subjectOwnedBy(peerA);
+        String subjectOnB = subjectOwnedBy(peerB);
+        for (String subjectId : new String[] { subjectOnA, subjectOnB }) {
+            BiometricSubject subject = loadSubjectFromResource("101-01-1");
+            subject.setSubjectId(subjectId);
+            peerCoordinator.enroll(subject);
+        }
+        assertThat(peerA.requests, contains("POST /subject"));
+        assertThat(peerB.requests, contains("POST /subject"));
+
+        peerCoordinator.deleteSubjects(Arrays.asList(subjectOnA, subjectOnB, subjectOwnedBy(peerA)));
+        assertThat(peerA.requests, contains("POST /subject", "POST /subjects/delete"));
+        assertThat(peerB.requests, contains("POST /subject", "POST /subjects/delete"));
+    }
+
+    @Test
+    public void shouldPassTimeRemainingOnToPeersForEveryCall() throws Exception {
+        BiometricSubject subject = loadSubjectFromResource("101-01-1");
+        subject.setSubjectId(subjectOwnedBy(peerA));
+        RequestDeadline.set(System.currentTimeMillis() + 5000);
+        try {
+            peerCoordinator.enroll(subject);
+            peerCoordinator.update(subject);
+            peerCoordinator.deleteSubject(subject.getSubjectId());
+        }
+        finally {
+            RequestDeadline.clear();
+        }
+        assertThat(peerA.requests, contains("POST /subject", "PUT /subject", "DELETE /subject/" + subject.getSubjectId()));
+        assertThat(peerA.timeouts.size(), is(3)); // Only requests with the header are recorded
+    }
+
+    @Test(expected = SubjectNotFoundException.class)
+    public void shouldReportSubjectNotFoundWhenUpdatingOnPeer() throws Exception {
+        BiometricSubject subject = loadSubjectFromResource("101-01-1");
+        subject.setSubjectId(subjectOwnedBy(peerA));
+        peerA.status = 404;
+        try {
+            peerCoordinator.update(subject);
+        }
+        finally {
+            assertThat(peerB.requests, empty());
+        }
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    private List<String> subjectIds(IdentificationResult result) {
+        List<String> ret = new ArrayList<>();
+        for (BiometricMatch match : result.getMatches()) {
+            ret.add(match.getSubjectId());
+        }
+        return ret;
+    }
+
+    /**
+     * @return a new subjectId that is partitioned to the given peer
+     */
+    private String subjectOwnedBy(StubPeer peer) {
+        for (int i = 0; ; i++) {
+            String subjectId = "subject-" + peer.getUrl().hashCode() + "-" + i;
+            if (peerCoordinator.getPeerFor(subjectId).equals(peer.getUrl()) && !peer.owned.contains(subjectId)) {
+                peer.owned.add(subjectId);
+                return subjectId;
+            }
+        }
+    }
+
+    /**
+     * A peer node that records the requests it receives, answering matches with the given matches, requests to enroll
+     * or delete by echoing the request body, and anything else with the given status
+     */
+    private class StubPeer {
+
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        final List<String> timeouts = new CopyOnWriteArrayList<>();
+        final List<String> owned = new ArrayList<>();
+        volatile BiometricMatch[] matches = new BiometricMatch[0];
+        volatile long delayMs = 0;
+        volatile int status = 200;
+
+        StubPeer() throws Exception {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.setExecutor(executor);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        String getUrl() {
+            return "http://localhost:" + server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        private void handle(HttpExchange exchange) {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                requests.add(exchange.getRequestMethod() + " " + path);
+                String timeout = exchange.getRequestHeaders().getFirst(RequestDeadline.TIMEOUT_HEADER);
+                if (timeout != null) {
+                    timeouts.add(timeout);
+                }
+                byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+                if (delayMs > 0) {
+                    Thread.sleep(delayMs);
+                }
+                byte[] response = body;
+                if (path.equals("/match")) {
+                    response = objectMapper.writeValueAsBytes(matches);
+                }
+                else if (path.equals("/subjects/delete")) {
+                    response = "{\"deleted\":[],\"notFound\":[]}".getBytes("UTF-8");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                if (status != 200) {
+                    exchange.sendResponseHeaders(status, -1);
+                }
+                else {
+                    exchange.sendResponseHeaders(200, response.length);
+                    exchange.getResponseBody().write(response);
+                }
+            }
+            catch (Exception e) {
+                // The coordinator gave up waiting
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service;
+
+import com.neurotec.biometrics.NFRecord;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pih.biometric.service.api.BiometricGallery;
+import org.pih.biometric.service.api.GallerySnapshotManager;
+import org.pih.biometric.service.api.TemplateCompactor;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Tests for the background job that compacts enrolled templates
+ */
+public class TemplateCompactorTest extends BaseBiometricTest {
+
+    private static final File STATE_FILE = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".compaction");
+    private static final File SNAPSHOT_DIR = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".snapshots");
+    private static final int DEFAULT_FLAGS = NFRecord.FLAG_SKIP_RIDGE_COUNTS | NFRecord.FLAG_SKIP_BLOCKED_ORIENTS | NFRecord.FLAG_SKIP_CURVATURES | NFRecord.FLAG_SKIP_GS;
+
+    @Autowired
+    TemplateCompactor compactor;
+
+    @Autowired
+    GallerySnapshotManager snapshotManager;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @Before
+    public void enableCompaction() throws Exception {
+        config.setGalleryEnabled(true);
+        config.setSnapshotDirectory(SNAPSHOT_DIR.getAbsolutePath());
+        config.setCompactionEnabled(true);
+        config.setCompactionStatePath(STATE_FILE.getAbsolutePath());
+        config.setCompactionBatchSize(1);
+        config.setCompactionDelayMs(0);
+    }
+
+    @After
+    public void disableCompaction() throws Exception {
+        config.setCompactionEnabled(false);
+        config.setCompactionStatePath(null);
+        config.setCompactionBatchSize(100);
+        config.setCompactionDelayMs(100);
+        FileUtils.deleteQuietly(STATE_FILE);
+        config.setGalleryEnabled(false);
+        config.setSnapshotDirectory(null);
+        gallery.clear();
+        FileUtils.deleteQuietly(SNAPSHOT_DIR);
+    }
+
+    @Test
+    public void shouldResumeCompactionAfterSubjectInStateFile() throws Exception {
+        loadSubjectToDb("101-01-1");
+        loadSubjectToDb("101-02-1");
+        loadSubjectToDb("101-03-1");
+        FileUtils.writeStringToFile(STATE_FILE, DEFAULT_FLAGS + "\n101-01-1", "UTF-8");
+        snapshotManager.loadGallery();
+        compactor.startup();
+
+        compactor.compactBatch();
+        assertThat(getPosition(), is("101-02-1"));
+        compactor.compactBatch();
+        assertThat(getPosition(), is("101-03-1"));
+        compactor.compactBatch();
+        assertThat(getPosition(), is("*"));
+    }
+
+    @Test
+    public void shouldRestartCompactionIfDataToSkipHasChanged() throws Exception {
+        loadSubjectToDb("101-01-1");
+        loadSubjectToDb("101-02-1");
+        FileUtils.writeStringToFile(STATE_FILE, NFRecord.FLAG_SKIP_GS + "\n*", "UTF-8");
+        snapshotManager.loadGallery();
+        compactor.startup();
+
+        compactor.compactBatch();
+        assertThat(getPosition(), is("101-01-1"));
+    }
+
+    //***** CONVENIENCE METHODS *****
+
+    /**
+     * @return the last subjectId compacted, as saved in the state file, or * once compaction is complete
+     */
+    private String getPosition() throws Exception {
+        List<String> lines = FileUtils.readLines(STATE_FILE, "UTF-8");
+        return lines.get(1);
+    }
+}
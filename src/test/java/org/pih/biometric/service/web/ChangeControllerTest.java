@@ -0,0 +1,87 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.pih.biometric.service.web;
+
+import org.junit.Test;
+import org.pih.biometric.service.BaseBiometricTest;
+import org.pih.biometric.service.api.SubjectChangeLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+/**
+ * Tests the change log REST controller
+ */
+public class ChangeControllerTest extends BaseBiometricTest {
+
+    @Autowired
+    SubjectChangeLog changeLog;
+
+    @Test
+    public void testGetChangesSinceSequence() throws Exception {
+        long since = changeLog.getLastSequence();
+        loadSubjectToDb("101-01-1");
+        matchingEngine.deleteSubject("101-01-1");
+
+        ResultActions actions = getChanges(since, null);
+        actions.andExpect(jsonPath("$.length()", is(2)));
+        actions.andExpect(jsonPath("$[0].sequence", is((int) since + 1)));
+        actions.andExpect(jsonPath("$[0].type", is("ENROLL")));
+        actions.andExpect(jsonPath("$[0].subjectId", is("101-01-1")));
+        actions.andExpect(jsonPath("$[0].template", notNullValue()));
+        actions.andExpect(jsonPath("$[1].type", is("DELETE")));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+    }
+
+    @Test
+    public void testGetChangesWithLimit() throws Exception {
+        long since = changeLog.getLastSequence();
+        loadSubjectToDb("101-01-1");
+        loadSubjectToDb("101-02-1");
+
+        ResultActions actions = getChanges(since, 1);
+        actions.andExpect(jsonPath("$.length()", is(1)));
+        actions.andExpect(jsonPath("$[0].subjectId", is("101-01-1")));
+    }
+
+    @Test
+    public void testGetChangesFailsIfChangeFollowingSequenceIsMissing() throws Exception {
+        long since = changeLog.getLastSequence();
+        loadSubjectToDb("101-01-1");
+        changeLog.advanceTo(since + 5);
+        loadSubjectToDb("101-02-1");
+
+        MockHttpServletRequestBuilder builder = get("/changes").param("since", Long.toString(since + 2));
+        MvcResult result = mockMvc.perform(builder).andReturn();
+        assertThat(result.getResponse().getStatus(), is(HttpStatus.GONE.value()));
+    }
+
+    protected ResultActions getChanges(long since, Integer limit) throws Exception {
+        MockHttpServletRequestBuilder builder = get("/changes")
+                .param("since", Long.toString(since))
+                .contentType(MediaType.APPLICATION_JSON_UTF8);
+        if (limit != null) {
+            builder.param("limit", limit.toString());
+        }
+        MvcResult result = mockMvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+        return mockMvc.perform(asyncDispatch(result));
+    }
+}
@@ -9,13 +9,21 @@
  */
 package org.pih.biometric.service.web;
 
+import com.jayway.jsonpath.JsonPath;
 import org.junit.Test;
 import org.pih.biometric.service.BaseBiometricTest;
+import org.pih.biometric.service.api.BiometricGallery;
+import org.pih.biometric.service.api.GallerySnapshotManager;
+import org.pih.biometric.service.api.RequestDeadline;
 import org.pih.biometric.service.model.BiometricSubject;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,6 +39,12 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  */
 public class MatchControllerTest extends BaseBiometricTest {
 
+    @Autowired
+    BiometricGallery gallery;
+
+    @Autowired
+    GallerySnapshotManager snapshotManager;
+
     @Override
     protected List<BiometricSubject> loadSubjectsToDb() throws Exception {
         List<BiometricSubject> l = new ArrayList<>();
@@ -86,9 +100,140 @@ public class MatchControllerTest extends BaseBiometricTest {
         assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
     }
 
+    @Test
+    public void testMaxResultsReturnsBestMatches() throws Exception {
+        loadSubjectToDb("101-01-2");
+        String subjectId = "101-01-1";
+        ResultActions actions = match(subjectId, post("/match").param("maxResults", "1"));
+        actions.andExpect(jsonPath("$.length()", is(1)));
+        actions.andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+    }
+
+    @Test
+    public void testMinScoreExcludesWeakerMatches() throws Exception {
+        loadSubjectToDb("101-01-2");
+        String subjectId = "101-01-1";
+        MvcResult all = match(subjectId).andReturn();
+        List<Integer> scores = JsonPath.read(all.getResponse().getContentAsString(), "$[*].matchScore");
+        assertThat(scores.size(), is(2));
+
+        ResultActions actions = match(subjectId, post("/match").param("minScore", Integer.toString(scores.get(0))));
+        actions.andExpect(jsonPath("$.length()", is(1)));
+        actions.andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+    }
+
+    @Test
+    public void testFirstMatchOnly() throws Exception {
+        String subjectId = "101-01-1";
+        ResultActions actions = match(subjectId, post("/match").param("maxResults", "1").param("minScore", config.getMatchingThreshold().toString()));
+        actions.andExpect(jsonPath("$.length()", is(1)));
+        actions.andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+    }
+
+    @Test
+    public void testInvalidMaxResults() throws Exception {
+        ResultActions actions = match("101-01-1", post("/match").param("maxResults", "0"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    @Test
+    public void testMatchWithProfile() throws Exception {
+        String subjectId = "101-01-1";
+        match(subjectId, post("/match").param("profile", "default")).andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+        match(subjectId, post("/match").param("profile", "strict")).andExpect(jsonPath("$.length()", is(0)));
+        match(subjectId).andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+    }
+
+    @Test
+    public void testUnknownProfile() throws Exception {
+        ResultActions actions = match("101-01-1", post("/match").param("profile", "unknown"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    @Test
+    public void testExactTemplateMatchWithPrefilter() throws Exception {
+        config.setPrefilterEnabled(true);
+        config.setPrefilterMinCandidates(1);
+        config.setPrefilterFallbackEnabled(false);
+        try {
+            loadGallery();
+            String subjectId = "101-01-1";
+            ResultActions actions = match(subjectId);
+            actions.andExpect(jsonPath("$.length()", is(1)));
+            actions.andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+        }
+        finally {
+            resetGallery();
+        }
+    }
+
+    @Test
+    public void testMatchWithPositionFilter() throws Exception {
+        config.setPositionFilterEnabled(true);
+        config.setPrefilterFallbackEnabled(false);
+        try {
+            loadGallery();
+            String subjectId = "101-01-1";
+            BiometricSubject probe = loadSubjectFromResource(subjectId);
+            probe.getFingerprints().get(0).setType("RIGHT_INDEX_FINGER");
+
+            // Enrolled fingers of unknown position are searched by default
+            match(probe).andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+
+            config.setPositionFilterIncludeUnknown(false);
+            match(probe).andExpect(jsonPath("$.length()", is(0)));
+        }
+        finally {
+            resetGallery();
+        }
+    }
+
+    @Test
+    public void testMatchAfterDeadline() throws Exception {
+        long deadline = System.currentTimeMillis() - 1000;
+        ResultActions actions = match("101-01-1", post("/match").header(RequestDeadline.DEADLINE_HEADER, deadline));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.GATEWAY_TIMEOUT.value()));
+    }
+
+    @Test
+    public void testMatchWithinTimeout() throws Exception {
+        String subjectId = "101-01-1";
+        ResultActions actions = match(subjectId, post("/match").header(RequestDeadline.TIMEOUT_HEADER, 60000));
+        actions.andExpect(jsonPath("$[0].subjectId", is(subjectId)));
+    }
+
+    protected void loadGallery() throws Exception {
+        config.setGalleryEnabled(true);
+        config.setSnapshotDirectory(Files.createTempDirectory("snapshots").toString());
+        snapshotManager.loadGallery();
+    }
+
+    protected void resetGallery() {
+        config.setGalleryEnabled(false);
+        config.setSnapshotDirectory(null);
+        config.setPrefilterEnabled(false);
+        config.setPrefilterMinCandidates(100);
+        config.setPrefilterFallbackEnabled(true);
+        config.setPositionFilterEnabled(false);
+        config.setPositionFilterIncludeUnknown(true);
+        gallery.clear();
+    }
+
     protected ResultActions match(String subjectId) throws Exception {
-        BiometricSubject template = loadSubjectFromResource(subjectId);
-        ResultActions actions = mockMvc.perform(post("/match")
+        return match(subjectId, post("/match"));
+    }
+
+    protected ResultActions match(String subjectId, MockHttpServletRequestBuilder request) throws Exception {
+        return match(loadSubjectFromResource(subjectId), request);
+    }
+
+    protected ResultActions match(BiometricSubject template) throws Exception {
+        return match(template, post("/match"));
+    }
+
+    protected ResultActions match(BiometricSubject template, MockHttpServletRequestBuilder request) throws Exception {
+        ResultActions actions = perform(request
                 .content(objectMapper.writeValueAsString(template))
                 .contentType(MediaType.APPLICATION_JSON_UTF8));
         return actions;
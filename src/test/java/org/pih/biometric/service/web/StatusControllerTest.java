@@ -11,19 +11,39 @@ package org.pih.biometric.service.web;
 
 import org.junit.Test;
 import org.pih.biometric.service.BaseBiometricTest;
+import org.pih.biometric.service.api.AdmissionManager;
+import org.pih.biometric.service.api.EngineWarmer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.ResultActions;
 
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
  * Tests the status REST controller
  */
 public class StatusControllerTest extends BaseBiometricTest {
 
+    @Autowired
+    AdmissionManager admissionManager;
+
+    @Autowired
+    EngineWarmer warmer;
+
     @Test
     public void statusTest() throws Exception {
         ResultActions actions = mockMvc.perform(get("/status").contentType(MediaType.APPLICATION_JSON_UTF8));
@@ -31,4 +51,109 @@ public class StatusControllerTest extends BaseBiometricTest {
         actions.andExpect(jsonPath("$.numberEnrolled", is(0)));
         actions.andExpect(jsonPath("$.enabled", is(true)));
     }
+
+    @Test
+    public void readyAfterWarmupTest() throws Exception {
+        loadSubjectToDb("101-01-1");
+        warmer.warmUp();
+        ResultActions actions = mockMvc.perform(get("/health/ready").contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(status().isOk());
+        actions.andExpect(jsonPath("$.ready", is(true)));
+        actions.andExpect(jsonPath("$.state", is("READY")));
+        actions.andExpect(jsonPath("$.warmedUp", is(true)));
+        actions.andExpect(jsonPath("$.warmupMs", notNullValue()));
+        actions.andExpect(jsonPath("$.statusMessage", nullValue()));
+        assertThat(matchingEngine.getNumberEnrolled(), is(1)); // The warm-up subject is enrolled in a scratch database only
+    }
+
+    @Test
+    public void liveTest() throws Exception {
+        ResultActions actions = mockMvc.perform(get("/health/live").contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(status().isOk());
+        actions.andExpect(jsonPath("$[?(@.name == 'clientPool')].healthy", contains(true)));
+    }
+
+    @Test
+    public void notReadyWhenSaturatedTest() throws Exception {
+        config.setMaxConcurrentOperations(1);
+        config.setReadinessQueueThreshold(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Runnable work = () -> {
+            started.countDown();
+            try {
+                finish.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Thread busy = new Thread(() -> admissionManager.execute(AdmissionManager.Operation.IDENTIFY, work));
+        Thread waiting = new Thread(() -> admissionManager.execute(AdmissionManager.Operation.IDENTIFY, work));
+        try {
+            busy.start();
+            started.await();
+            waiting.start();
+            while (admissionManager.getWaitingCount() < 1) {
+                Thread.sleep(10);
+            }
+            ResultActions actions = mockMvc.perform(get("/health/ready").contentType(MediaType.APPLICATION_JSON_UTF8));
+            actions.andExpect(status().isServiceUnavailable());
+            actions.andExpect(jsonPath("$.ready", is(false)));
+            actions.andExpect(jsonPath("$.state", is("SATURATED")));
+            actions.andExpect(jsonPath("$.checks[?(@.name == 'admissionQueue')].healthy", contains(false)));
+        }
+        finally {
+            finish.countDown();
+            busy.join();
+            waiting.join();
+            config.setMaxConcurrentOperations(0);
+            config.setReadinessQueueThreshold(80);
+        }
+    }
+
+    @Test
+    public void admissionStatusTest() throws Exception {
+        mockMvc.perform(get("/status").contentType(MediaType.APPLICATION_JSON_UTF8));
+        ResultActions actions = mockMvc.perform(get("/status/admission").contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(jsonPath("$[?(@.operation == 'READ')].admitted", contains(greaterThan(0))));
+        actions.andExpect(jsonPath("$[?(@.operation == 'READ')].active", contains(0)));
+    }
+
+    @Test
+    public void resourceStatusTest() throws Exception {
+        mockMvc.perform(get("/status").contentType(MediaType.APPLICATION_JSON_UTF8));
+        ResultActions actions = mockMvc.perform(get("/status/resources").contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(jsonPath("$[?(@.type == 'NBiometricClient')].created", contains(greaterThan(0))));
+    }
+
+    @Test
+    public void statusRejectedWhenSaturatedTest() throws Exception {
+        config.setMaxConcurrentOperations(1);
+        config.setAdmissionQueueSize(0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Thread busy = new Thread(() -> admissionManager.execute(AdmissionManager.Operation.IDENTIFY, () -> {
+            started.countDown();
+            try {
+                finish.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        try {
+            busy.start();
+            started.await();
+            ResultActions actions = perform(get("/subject/101-01-1").contentType(MediaType.APPLICATION_JSON_UTF8));
+            assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.TOO_MANY_REQUESTS.value()));
+            actions.andExpect(header().string(HttpHeaders.RETRY_AFTER, Integer.toString(config.getAdmissionRetryAfterSeconds())));
+        }
+        finally {
+            finish.countDown();
+            busy.join();
+            config.setMaxConcurrentOperations(0);
+            config.setAdmissionQueueSize(100);
+        }
+    }
 }
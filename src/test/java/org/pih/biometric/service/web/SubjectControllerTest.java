@@ -9,15 +9,30 @@
  */
 package org.pih.biometric.service.web;
 
+import com.jayway.jsonpath.JsonPath;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
 import org.junit.Test;
 import org.pih.biometric.service.BaseBiometricTest;
+import org.pih.biometric.service.api.BiometricGallery;
+import org.pih.biometric.service.api.GallerySnapshotManager;
+import org.pih.biometric.service.api.SubjectPurger;
+import org.pih.biometric.service.api.TemplateFormatConverter;
+import org.pih.biometric.service.model.BiometricMatch;
 import org.pih.biometric.service.model.BiometricSubject;
+import org.pih.biometric.service.model.Fingerprint;
+import org.pih.biometric.service.model.SubjectLookup;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.ResultActions;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -30,6 +45,28 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  */
 public class SubjectControllerTest extends BaseBiometricTest {
 
+    private static final File SNAPSHOT_DIR = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".snapshots");
+
+    @Autowired
+    SubjectPurger purger;
+
+    @Autowired
+    TemplateFormatConverter formatConverter;
+
+    @Autowired
+    GallerySnapshotManager snapshotManager;
+
+    @Autowired
+    BiometricGallery gallery;
+
+    @After
+    public void disableGallery() throws Exception {
+        config.setGalleryEnabled(false);
+        config.setSnapshotDirectory(null);
+        gallery.clear();
+        FileUtils.deleteQuietly(SNAPSHOT_DIR);
+    }
+
     @Override
     protected List<BiometricSubject> loadSubjectsToDb() throws Exception {
         List<BiometricSubject> l = new ArrayList<>();
@@ -88,8 +125,21 @@ public class SubjectControllerTest extends BaseBiometricTest {
         assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.CONFLICT.value()));
     }
 
+    @Test
+    public void testPostSubjectBelowMinimumQuality() throws Exception {
+        config.setMinEnrollQuality(101);
+        try {
+            ResultActions actions = postSubject(loadSubjectFromResource("101-03-1"));
+            assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.UNPROCESSABLE_ENTITY.value()));
+            assertThat(matchingEngine.getNumberEnrolled(), is(2));
+        }
+        finally {
+            config.setMinEnrollQuality(0);
+        }
+    }
+
     protected ResultActions postSubject(BiometricSubject subject) throws Exception {
-        ResultActions actions = mockMvc.perform(post("/subject")
+        ResultActions actions = perform(post("/subject")
                 .content(objectMapper.writeValueAsString(subject))
                 .contentType(MediaType.APPLICATION_JSON_UTF8));
         return actions;
@@ -148,7 +198,7 @@ public class SubjectControllerTest extends BaseBiometricTest {
     }
 
     protected ResultActions putSubject(BiometricSubject subject) throws Exception {
-        ResultActions actions = mockMvc.perform(put("/subject")
+        ResultActions actions = perform(put("/subject")
                 .content(objectMapper.writeValueAsString(subject))
                 .contentType(MediaType.APPLICATION_JSON_UTF8));
         return actions;
@@ -176,8 +226,81 @@ public class SubjectControllerTest extends BaseBiometricTest {
         assertThat(matchingEngine.getNumberEnrolled(), is(2));
     }
 
+    @Test
+    public void testGetSubjectNotModified() throws Exception {
+        enableGallery();
+        ResultActions actions = getSubject("101-01-1");
+        String etag = actions.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(etag, notNullValue());
+
+        actions = perform(get("/subject/101-01-1").header(HttpHeaders.IF_NONE_MATCH, etag));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.NOT_MODIFIED.value()));
+        actions.andExpect(content().string(isEmptyOrNullString()));
+
+        actions = perform(get("/subject/101-01-1").param("format", "ISO").header(HttpHeaders.IF_NONE_MATCH, etag));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+
+        BiometricSubject subject = loadSubjectFromResource("101-03-1");
+        subject.setSubjectId("101-01-1");
+        putSubject(subject);
+        actions = perform(get("/subject/101-01-1").header(HttpHeaders.IF_NONE_MATCH, etag));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+        assertThat(actions.andReturn().getResponse().getHeader(HttpHeaders.ETAG), not(etag));
+    }
+
+    @Test
+    public void testGetSubjectWithoutETagIfGalleryNotEnabled() throws Exception {
+        ResultActions actions = getSubject("101-01-1");
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+        assertThat(actions.andReturn().getResponse().getHeader(HttpHeaders.ETAG), nullValue());
+    }
+
     protected ResultActions getSubject(String subjectId) throws Exception {
-        ResultActions actions = mockMvc.perform(get("/subject/"+subjectId)
+        ResultActions actions = perform(get("/subject/"+subjectId)
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        return actions;
+    }
+
+    //********** VERIFY ***********
+
+    @Test
+    public void testVerifyMatchingSubject() throws Exception {
+        ResultActions actions = verifySubject("101-01-1", loadSubjectFromResource("101-01-2"));
+        actions.andExpect(content().contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(jsonPath("$.subjectId", is("101-01-1")));
+        actions.andExpect(jsonPath("$.verified", is(true)));
+        actions.andExpect(jsonPath("$.matchScore", greaterThan(config.getMatchingThreshold())));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+    }
+
+    @Test
+    public void testVerifyDifferentSubject() throws Exception {
+        ResultActions actions = verifySubject("101-01-1", loadSubjectFromResource("101-03-1"));
+        actions.andExpect(jsonPath("$.subjectId", is("101-01-1")));
+        actions.andExpect(jsonPath("$.verified", is(false)));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+    }
+
+    @Test
+    public void testVerifyMissingSubject() throws Exception {
+        ResultActions actions = verifySubject("missing-subject", loadSubjectFromResource("101-01-1"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.NOT_FOUND.value()));
+    }
+
+    @Test
+    public void testVerifySubjectWithoutTemplates() throws Exception {
+        BiometricSubject subject = loadSubjectFromResource("101-01-2");
+        subject.getFingerprints().get(0).setTemplate(null);
+        ResultActions actions = verifySubject("101-01-1", subject);
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.BAD_REQUEST.value()));
+
+        actions = verifySubject("101-01-1", new BiometricSubject());
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    protected ResultActions verifySubject(String subjectId, BiometricSubject subject) throws Exception {
+        ResultActions actions = perform(post("/subject/"+subjectId+"/verify")
+                .content(objectMapper.writeValueAsString(subject))
                 .contentType(MediaType.APPLICATION_JSON_UTF8));
         return actions;
     }
@@ -202,9 +325,154 @@ public class SubjectControllerTest extends BaseBiometricTest {
         assertThat(matchingEngine.getNumberEnrolled(), is(2));
     }
 
+    @Test
+    public void testDeleteSubjects() throws Exception {
+        assertThat(matchingEngine.getNumberEnrolled(), is(2));
+        ResultActions actions = perform(post("/subjects/delete")
+                .content(objectMapper.writeValueAsString(Arrays.asList("101-01-1", "101-99-1")))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(jsonPath("$.deleted", contains("101-01-1")));
+        actions.andExpect(jsonPath("$.notFound", contains("101-99-1")));
+        assertThat(matchingEngine.getNumberEnrolled(), is(1));
+    }
+
+    @Test
+    public void testPurgeSubjects() throws Exception {
+        assertThat(matchingEngine.getNumberEnrolled(), is(2));
+        ResultActions actions = perform(post("/subjects/purge")
+                .content(objectMapper.writeValueAsString(Arrays.asList("101-01-1", "101-02-1")))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.ACCEPTED.value()));
+        purger.purgeBatches();
+        assertThat(matchingEngine.getNumberEnrolled(), is(0));
+        actions = perform(get("/subjects/purge"));
+        actions.andExpect(jsonPath("$.queued", is(0)));
+    }
+
     protected ResultActions deleteSubject(String subjectId) throws Exception {
-        ResultActions actions = mockMvc.perform(delete("/subject/"+subjectId)
+        ResultActions actions = perform(delete("/subject/"+subjectId)
                 .contentType(MediaType.APPLICATION_JSON_UTF8));
         return actions;
     }
+
+    //********** LIST ***********
+
+    @Test
+    public void testListSubjectIdsByPage() throws Exception {
+        enableGallery();
+        ResultActions actions = perform(get("/subjects").param("idsOnly", "true").param("limit", "1"));
+        actions.andExpect(jsonPath("$.subjectIds", contains("101-01-1")));
+        actions.andExpect(jsonPath("$.subjects", nullValue()));
+        String cursor = JsonPath.read(actions.andReturn().getResponse().getContentAsString(), "$.nextCursor");
+        assertThat(cursor, notNullValue());
+
+        actions = perform(get("/subjects").param("idsOnly", "true").param("limit", "1").param("cursor", cursor));
+        actions.andExpect(jsonPath("$.subjectIds", contains("101-02-1")));
+        actions.andExpect(jsonPath("$.nextCursor", nullValue()));
+    }
+
+    @Test
+    public void testListSubjects() throws Exception {
+        enableGallery();
+        ResultActions actions = perform(get("/subjects"));
+        actions.andExpect(jsonPath("$.subjectIds", contains("101-01-1", "101-02-1")));
+        actions.andExpect(jsonPath("$.subjects[0].subjectId", is("101-01-1")));
+        actions.andExpect(jsonPath("$.subjects[0].fingerprints", hasSize(greaterThan(0))));
+    }
+
+    @Test
+    public void testListSubjectsRequiresGallery() throws Exception {
+        ResultActions actions = perform(get("/subjects"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.SERVICE_UNAVAILABLE.value()));
+    }
+
+    @Test
+    public void testListSubjectsModifiedSinceRequiresGallery() throws Exception {
+        ResultActions actions = perform(get("/subjects").param("modifiedSince", "0"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    @Test
+    public void testLookupSubjects() throws Exception {
+        List<SubjectLookup> lookups = new ArrayList<>();
+        lookups.add(new SubjectLookup("101-01-1", null, false));
+        lookups.add(new SubjectLookup("101-02-1", null, true));
+        lookups.add(new SubjectLookup("101-99-1", null, false));
+        ResultActions actions = perform(post("/subjects/lookup")
+                .content(objectMapper.writeValueAsString(lookups))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(jsonPath("$[*].subjectId", contains("101-01-1", "101-02-1", "101-99-1")));
+        actions.andExpect(jsonPath("$[*].exists", contains(true, true, false)));
+        actions.andExpect(jsonPath("$[0].subject.fingerprints", hasSize(greaterThan(0))));
+        actions.andExpect(jsonPath("$[1].subject", nullValue()));
+        actions.andExpect(jsonPath("$[2].subject", nullValue()));
+    }
+
+    @Test
+    public void testExportSubjects() throws Exception {
+        formatConverter.invalidate("101-01-1");
+        int cached = formatConverter.getCacheSize();
+        ResultActions actions = perform(post("/subjects/export").param("format", "ISO")
+                .content(objectMapper.writeValueAsString(Arrays.asList("101-01-1", "101-99-1")))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        actions.andExpect(jsonPath("$[*].exists", contains(true, false)));
+        actions.andExpect(jsonPath("$[0].subject.fingerprints", hasSize(greaterThan(0))));
+        actions.andExpect(jsonPath("$[0].subject.fingerprints[*].format", everyItem(is("ISO"))));
+        assertThat(formatConverter.getCacheSize(), is(cached + 1));
+
+        matchingEngine.update(loadSubjectFromResource("101-01-1"));
+        assertThat(formatConverter.getCacheSize(), is(cached));
+    }
+
+    //********** FINGERS ***********
+
+    @Test
+    public void testPutAndRemoveFinger() throws Exception {
+        BiometricSubject probe = loadSubjectFromResource("101-03-1");
+        assertThat(matchingEngine.identify(probe).size(), is(0));
+
+        Fingerprint fingerprint = probe.getFingerprints().get(0);
+        ResultActions actions = perform(put("/subject/101-01-1/finger/LEFT_INDEX_FINGER")
+                .content(objectMapper.writeValueAsString(fingerprint))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+        List<BiometricMatch> matches = matchingEngine.identify(probe);
+        assertThat(matches.size(), is(1));
+        assertThat(matches.get(0).getSubjectId(), is("101-01-1"));
+
+        actions = perform(delete("/subject/101-01-1/finger/LEFT_INDEX_FINGER"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.OK.value()));
+        assertThat(matchingEngine.identify(probe).size(), is(0));
+        assertThat(matchingEngine.identify(loadSubjectFromResource("101-01-1")).size(), is(1));
+
+        actions = perform(delete("/subject/101-01-1/finger/LEFT_INDEX_FINGER"));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.NOT_FOUND.value()));
+    }
+
+    @Test
+    public void testPutFingerWithUnknownPosition() throws Exception {
+        Fingerprint fingerprint = loadSubjectFromResource("101-03-1").getFingerprints().get(0);
+        ResultActions actions = perform(put("/subject/101-01-1/finger/LEFT_TOE")
+                .content(objectMapper.writeValueAsString(fingerprint))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    @Test
+    public void testPutFingerForMissingSubject() throws Exception {
+        Fingerprint fingerprint = loadSubjectFromResource("101-03-1").getFingerprints().get(0);
+        ResultActions actions = perform(put("/subject/101-99-1/finger/LEFT_INDEX_FINGER")
+                .content(objectMapper.writeValueAsString(fingerprint))
+                .contentType(MediaType.APPLICATION_JSON_UTF8));
+        assertThat(actions.andReturn().getResponse().getStatus(), is(HttpStatus.NOT_FOUND.value()));
+    }
+
+    /**
+     * Enables the gallery, loading it from the subjects in the database
+     */
+    private void enableGallery() {
+        config.setGalleryEnabled(true);
+        config.setSnapshotDirectory(SNAPSHOT_DIR.getAbsolutePath());
+        snapshotManager.loadGallery();
+    }
 }